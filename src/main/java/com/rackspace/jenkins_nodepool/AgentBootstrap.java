@@ -0,0 +1,252 @@
+package com.rackspace.jenkins_nodepool;
+
+import com.trilead.ssh2.ChannelCondition;
+import com.trilead.ssh2.Connection;
+import com.trilead.ssh2.Session;
+import hudson.AbortException;
+import hudson.model.TaskListener;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import static java.lang.String.format;
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.WARNING;
+
+/**
+ * Prepares a new node for its agent with a single SSH session: one shell script reports the environment, checks for
+ * Java, installs it if it is missing and receives the agent jar on its standard input unless the node already has it.
+ * <p>
+ * Launching the same way step by step takes a session for the environment, one or two for java -version, one for the
+ * installation and an SFTP subsystem for the jar, each with its own channel setup round trips and copier threads. The
+ * script marks the end of each step on its standard output, which is how the time spent checking or installing Java
+ * and copying the jar is measured. The bootstrap is used unless the 'disabled' system property is set or the JDK
+ * installer can't express its installation as a shell command.
+ */
+final class AgentBootstrap {
+
+    private static final Logger LOG = Logger.getLogger(AgentBootstrap.class.getName());
+
+    /**
+     * Fall back to separate sessions for each launch step
+     */
+    static final boolean DISABLED = Boolean.getBoolean(AgentBootstrap.class.getName() + ".disabled");
+
+    /**
+     * Prefix of the lines the script prints at the end of each step
+     */
+    static final String MARKER = "@@nodepool-bootstrap ";
+
+    static final String JAVA_PRESENT = "java-present";
+    static final String JAVA_INSTALLED = "java-installed";
+    static final String JAVA_MISSING = "java-missing";
+    static final String JAR_CURRENT = "jar-current";
+    static final String JAR_WANTED = "jar-wanted";
+    static final String JAR_RECEIVED = "jar-received";
+
+    /**
+     * How long to wait for the exit status once the script has closed its output
+     */
+    private static final long EXIT_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(30);
+
+    /**
+     * Time spent on each step of a bootstrap
+     */
+    static final class Timings {
+        private long javaNanos;
+        private long jarNanos;
+        private boolean installed;
+        private boolean copied;
+
+        /**
+         * @return the time taken to find or install Java
+         */
+        long getJavaNanos() {
+            return javaNanos;
+        }
+
+        /**
+         * @return the time taken to check and, if needed, receive the agent jar once Java was ready
+         */
+        long getJarNanos() {
+            return jarNanos;
+        }
+
+        /**
+         * @return true if Java had to be installed
+         */
+        boolean isInstalled() {
+            return installed;
+        }
+
+        /**
+         * @return true if the jar was sent, false if the node already had it
+         */
+        boolean isCopied() {
+            return copied;
+        }
+    }
+
+    private final Connection connection;
+    private final String installCommand;
+    private final String workingDirectory;
+    private final String jarName;
+
+    /**
+     * Creates a bootstrap.
+     *
+     * @param connection       an authenticated connection to the node
+     * @param installCommand   shell command that installs Java
+     * @param workingDirectory where the agent jar is written
+     * @param jarName          the file name of the agent jar
+     */
+    AgentBootstrap(final Connection connection, final String installCommand, final String workingDirectory,
+                   final String jarName) {
+        this.connection = connection;
+        this.installCommand = installCommand;
+        this.workingDirectory = workingDirectory;
+        this.jarName = jarName;
+    }
+
+    /**
+     * Runs the bootstrap script, sending it the agent jar if the node doesn't already have it.
+     *
+     * @param tl  receives the script's output
+     * @param jar the agent jar
+     * @return the time spent on each step
+     * @throws IOException          if the session fails or the script exits with an error
+     * @throws InterruptedException if interrupted while waiting for the script
+     */
+    Timings run(final TaskListener tl, final AgentJar jar) throws IOException, InterruptedException {
+        final Timings timings = new Timings();
+        final Session session = connection.openSession();
+        try {
+            final long start = System.nanoTime();
+            session.execCommand(script(installCommand, workingDirectory, jarName, jar.getLength(), jar.getSha256()));
+            session.pipeStderr(new DelegateNoCloseOutputStream(tl.getLogger()));
+
+            long javaReady = start;
+            final BufferedReader stdout = new BufferedReader(
+                    new InputStreamReader(session.getStdout(), StandardCharsets.UTF_8));
+            String line;
+            while ((line = stdout.readLine()) != null) {
+                if (!line.startsWith(MARKER)) {
+                    tl.getLogger().println(line);
+                    continue;
+                }
+                final String step = line.substring(MARKER.length()).trim();
+                final long now = System.nanoTime();
+                LOG.log(FINE, format("Bootstrap of %s reached %s after %d ms", connection.getHostname(), step,
+                        TimeUnit.NANOSECONDS.toMillis(now - start)));
+                switch (step) {
+                    case JAVA_INSTALLED:
+                        timings.installed = true;
+                        // fall through
+                    case JAVA_PRESENT:
+                        javaReady = now;
+                        timings.javaNanos = now - start;
+                        break;
+                    case JAVA_MISSING:
+                        // as before the bootstrap, a failed check after installing is only reported
+                        javaReady = now;
+                        timings.javaNanos = now - start;
+                        tl.getLogger().println("Java still can't be run after installing it on " +
+                                connection.getHostname());
+                        LOG.log(WARNING, format("Java still can't be run after installing it on %s",
+                                connection.getHostname()));
+                        break;
+                    case JAR_WANTED:
+                        // the script prints nothing more until it has read the whole jar
+                        try (OutputStream stdin = session.getStdin()) {
+                            jar.writeTo(stdin);
+                        }
+                        timings.copied = true;
+                        break;
+                    case JAR_CURRENT:
+                    case JAR_RECEIVED:
+                        timings.jarNanos = now - javaReady;
+                        break;
+                    default:
+                        break;
+                }
+            }
+
+            session.waitForCondition(ChannelCondition.EXIT_STATUS, EXIT_TIMEOUT_MS);
+            final Integer exitCode = session.getExitStatus();
+            if (exitCode == null || exitCode != 0) {
+                throw new AbortException(format("Agent bootstrap on %s failed with exit code %s",
+                        connection.getHostname(), exitCode));
+            }
+            return timings;
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Builds the bootstrap script. Every command that could read standard input before the jar does is given
+     * /dev/null. The install command runs without errexit, as it would on its own, and only its exit status decides
+     * whether the bootstrap fails. The jar is only asked for when the node has no copy with the same SHA-256 digest,
+     * and it is written to a temporary file and checked for size before it replaces the old one.
+     *
+     * @param installCommand   shell command that installs Java
+     * @param workingDirectory where the agent jar is written
+     * @param jarName          the file name of the agent jar
+     * @param jarLength        the size of the agent jar in bytes
+     * @param jarSha256        the hex SHA-256 digest of the agent jar
+     * @return the script
+     */
+    static String script(final String installCommand, final String workingDirectory, final String jarName,
+                         final int jarLength, final String jarSha256) {
+        final String jar = quote(jarName);
+        final String tmp = quote(jarName + ".tmp");
+        return "set -e\n" +
+                "set\n" +
+                "mkdir -p " + quote(workingDirectory) + "\n" +
+                "cd " + quote(workingDirectory) + "\n" +
+                "if java -version </dev/null >/dev/null 2>&1; then\n" +
+                "  echo '" + MARKER + JAVA_PRESENT + "'\n" +
+                "else\n" +
+                "  rc=0\n" +
+                "  (set +e\n" +
+                "  " + installCommand + "\n" +
+                "  ) </dev/null || rc=$?\n" +
+                "  if [ \"$rc\" -ne 0 ]; then\n" +
+                "    echo \"Java installation failed with exit code $rc\" >&2\n" +
+                "    exit \"$rc\"\n" +
+                "  fi\n" +
+                "  if java -version </dev/null >/dev/null 2>&1; then\n" +
+                "    echo '" + MARKER + JAVA_INSTALLED + "'\n" +
+                "  else\n" +
+                "    echo '" + MARKER + JAVA_MISSING + "'\n" +
+                "  fi\n" +
+                "fi\n" +
+                "current=\n" +
+                "if [ -f " + jar + " ]; then\n" +
+                "  current=$( (sha256sum " + jar + " || shasum -a 256 " + jar + ") 2>/dev/null </dev/null" +
+                " | cut -d ' ' -f 1) || true\n" +
+                "fi\n" +
+                "if [ \"$current\" = '" + jarSha256 + "' ]; then\n" +
+                "  echo '" + MARKER + JAR_CURRENT + "'\n" +
+                "  exit 0\n" +
+                "fi\n" +
+                "echo '" + MARKER + JAR_WANTED + "'\n" +
+                "rm -f " + tmp + "\n" +
+                "cat > " + tmp + "\n" +
+                "test $(wc -c < " + tmp + ") -eq " + jarLength + "\n" +
+                "mv -f " + tmp + " " + jar + "\n" +
+                "echo '" + MARKER + JAR_RECEIVED + "'\n";
+    }
+
+    /**
+     * Quotes a value for the shell.
+     */
+    static String quote(final String value) {
+        return "'" + value.replace("'", "'\\''") + "'";
+    }
+}
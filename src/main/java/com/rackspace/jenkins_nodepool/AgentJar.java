@@ -0,0 +1,114 @@
+package com.rackspace.jenkins_nodepool;
+
+import hudson.model.Slave;
+import hudson.plugins.sshslaves.SSHLauncher;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The agent jar, read and hashed once per controller rather than on every launch.
+ * <p>
+ * The SHA-256 digest lets the launcher leave a node's existing copy of the jar alone when it is already the right one,
+ * e.g. on a reused node or an image with the jar baked in.
+ */
+final class AgentJar {
+
+    /**
+     * Size of the chunks the jar is written in
+     */
+    private static final int CHUNK_SIZE = 32 * 1024;
+
+    private static volatile AgentJar instance;
+
+    private final byte[] bytes;
+    private final String sha256;
+
+    /**
+     * Creates an agent jar.
+     *
+     * @param bytes the content of the jar
+     */
+    AgentJar(final byte[] bytes) {
+        this.bytes = bytes;
+        this.sha256 = sha256(bytes);
+    }
+
+    /**
+     * Returns the agent jar of this controller, reading it on first use.
+     *
+     * @return the agent jar
+     * @throws IOException if the jar can't be read
+     */
+    static AgentJar get() throws IOException {
+        if (instance == null) {
+            synchronized (AgentJar.class) {
+                if (instance == null) {
+                    instance = new AgentJar(new Slave.JnlpJar(SSHLauncher.AGENT_JAR).readFully());
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * @return the size of the jar in bytes
+     */
+    int getLength() {
+        return bytes.length;
+    }
+
+    /**
+     * @return the content of the jar, not to be modified
+     */
+    byte[] getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return the lower case hex SHA-256 digest of the jar
+     */
+    String getSha256() {
+        return sha256;
+    }
+
+    /**
+     * Writes the jar to a stream in chunks, so a slow channel applies back-pressure as it goes.
+     *
+     * @param out the stream, left open
+     * @throws IOException if writing fails
+     */
+    void writeTo(final OutputStream out) throws IOException {
+        for (int off = 0; off < bytes.length; off += CHUNK_SIZE) {
+            out.write(bytes, off, Math.min(CHUNK_SIZE, bytes.length - off));
+        }
+        out.flush();
+    }
+
+    /**
+     * Returns true if the given digest, as printed by sha256sum, is the digest of this jar.
+     *
+     * @param digest a hex digest, may be null or empty
+     * @return true if the digests match
+     */
+    boolean matches(final String digest) {
+        return digest != null && sha256.equalsIgnoreCase(digest.trim());
+    }
+
+    static String sha256(final byte[] bytes) {
+        final MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every JRE has SHA-256
+            throw new IllegalStateException(e);
+        }
+        final StringBuilder hex = new StringBuilder(64);
+        for (byte b : md.digest(bytes)) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,176 @@
+package com.rackspace.jenkins_nodepool;
+
+import hudson.model.Computer;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import static java.lang.String.format;
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.WARNING;
+
+/**
+ * Removes agents from Jenkins after a grace period, without a thread sleeping through the grace period of each one.
+ * <p>
+ * An agent is often selected for deletion right after its build finishes, while processes may still be talking to
+ * it, and deleting it straight away fills the log with IOExceptions. Deletions are therefore timed on the shared
+ * NodePool scheduler and only handed to a worker once the grace period is over, at most 'maxConcurrent' at a time.
+ * A node that is already queued or being deleted is not queued again.
+ */
+final class DeferredDeletionQueue {
+
+    private static final Logger LOG = Logger.getLogger(DeferredDeletionQueue.class.getName());
+
+    /**
+     * Time to wait before deleting an agent
+     */
+    static final long GRACE_SEC = Long.getLong(DeferredDeletionQueue.class.getName() + ".graceSeconds", 30L);
+
+    /**
+     * Maximum number of deletions running at once
+     */
+    static final int MAX_CONCURRENT = Integer.getInteger(DeferredDeletionQueue.class.getName() + ".maxConcurrent", 8);
+
+    private static volatile DeferredDeletionQueue instance;
+
+    private final ScheduledExecutorService scheduler;
+    private final Executor executor;
+    private final long graceMs;
+    private final Semaphore running;
+
+    /**
+     * Nodes that are waiting for their grace period to end, waiting for a worker, or being deleted
+     */
+    private final Map<String, Runnable> pending = new ConcurrentHashMap<>();
+
+    /**
+     * Nodes whose grace period is over, in the order it ended
+     */
+    private final Queue<String> ready = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Creates a deletion queue.
+     *
+     * @param scheduler     times the grace periods
+     * @param executor      runs the deletions
+     * @param graceMs       the grace period in milliseconds
+     * @param maxConcurrent the maximum number of deletions running at once
+     */
+    DeferredDeletionQueue(final ScheduledExecutorService scheduler, final Executor executor, final long graceMs,
+                          final int maxConcurrent) {
+        this.scheduler = scheduler;
+        this.executor = executor;
+        this.graceMs = graceMs;
+        this.running = new Semaphore(Math.max(1, maxConcurrent));
+    }
+
+    /**
+     * Returns the shared deletion queue, which runs deletions on the Jenkins remoting thread pool.
+     *
+     * @return the deletion queue
+     */
+    static DeferredDeletionQueue get() {
+        if (instance == null) {
+            synchronized (DeferredDeletionQueue.class) {
+                if (instance == null) {
+                    instance = new DeferredDeletionQueue(NodePoolScheduler.get().getScheduler(),
+                            Computer.threadPoolForRemoting, TimeUnit.SECONDS.toMillis(GRACE_SEC), MAX_CONCURRENT);
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Queues the deletion of a node once the grace period is over.
+     *
+     * @param nodeName the name of the node
+     * @param deletion deletes the node
+     * @return false if the node was already queued, in which case the given deletion is discarded
+     */
+    boolean schedule(final String nodeName, final Runnable deletion) {
+        if (pending.putIfAbsent(nodeName, deletion) != null) {
+            LOG.log(FINE, format("Deletion of %s is already queued", nodeName));
+            return false;
+        }
+        LOG.log(FINE, format("Deleting %s in %d ms", nodeName, graceMs));
+        try {
+            scheduler.schedule(() -> {
+                ready.add(nodeName);
+                drain();
+            }, graceMs, TimeUnit.MILLISECONDS);
+        } catch (RuntimeException e) {
+            pending.remove(nodeName, deletion);
+            throw e;
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the deletion of the node is queued or in progress.
+     *
+     * @param nodeName the name of the node
+     * @return true if the node is queued for deletion
+     */
+    boolean isPending(final String nodeName) {
+        return pending.containsKey(nodeName);
+    }
+
+    /**
+     * Returns the number of deletions that are queued or in progress.
+     *
+     * @return the number of pending deletions
+     */
+    int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Hands ready deletions to the executor while there is room.
+     */
+    private void drain() {
+        while (!ready.isEmpty() && running.tryAcquire()) {
+            final String nodeName = ready.poll();
+            if (nodeName == null) {
+                running.release();
+                return;
+            }
+            try {
+                executor.execute(() -> delete(nodeName));
+            } catch (RuntimeException e) {
+                LOG.log(WARNING, format("%s error while queueing deletion of %s. Message: %s",
+                        e.getClass().getSimpleName(), nodeName, e.getLocalizedMessage()));
+                pending.remove(nodeName);
+                running.release();
+            }
+        }
+    }
+
+    /**
+     * Runs the deletion of a node and then starts the next ready one.
+     *
+     * @param nodeName the name of the node
+     */
+    private void delete(final String nodeName) {
+        try {
+            final Runnable deletion = pending.get(nodeName);
+            if (deletion != null) {
+                deletion.run();
+            }
+        } catch (RuntimeException e) {
+            LOG.log(WARNING, format("%s error while deleting node %s. Message: %s",
+                    e.getClass().getSimpleName(), nodeName, e.getLocalizedMessage()));
+        } finally {
+            pending.remove(nodeName);
+            running.release();
+            drain();
+        }
+    }
+}
@@ -3,22 +3,41 @@ package com.rackspace.jenkins_nodepool;
 import com.google.gson.Gson;
 import com.rackspace.jenkins_nodepool.models.NodeModel;
 import com.rackspace.jenkins_nodepool.models.NodeRequestModel;
-import hudson.model.Computer;
 import hudson.model.Node;
 import hudson.model.Run;
 import hudson.model.labels.LabelAtom;
 import hudson.security.ACL;
 import hudson.security.ACLContext;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
 
 import java.nio.charset.StandardCharsets;
 import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
-import java.util.concurrent.locks.Lock;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import jenkins.model.Jenkins;
 import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.recipes.cache.TreeCacheEvent;
+import org.apache.zookeeper.KeeperException;
 import org.jenkinsci.plugins.workflow.job.WorkflowRun;
 
 import static java.lang.String.format;
@@ -26,6 +45,13 @@ import static java.util.logging.Level.*;
 
 /**
  * This class implements the logic for the background janitor thread.
+ * <p>
+ * The janitor is event driven: build completions, agent state changes, hold changes and (when the ZooKeeper cache
+ * is enabled) node ZNode changes mark the affected Jenkins nodes dirty, and only those nodes are examined. Hold
+ * expirations are scheduled in a delay queue. A full reconciliation of all Jenkins and ZooKeeper nodes still runs
+ * every 'sleep_seconds' as a safety net for anything the events miss. Unless 'sleep_seconds' is set, that is every
+ * minute, as it was before the janitor had events, and only every ten minutes once every NodePool has a ZooKeeper
+ * cache reporting node ZNode changes.
  */
 
 class Janitor implements Runnable {
@@ -36,31 +62,102 @@ class Janitor implements Runnable {
     private static final Logger LOG = Logger.getLogger(JanitorialListener.class.getName());
 
     /**
-     * Janitor check interval in seconds.
+     * Full reconciliation interval in seconds, the only way changes made in ZooKeeper are noticed without a cache.
      */
     private static final Long SLEEP_SECS_DEFAULT = 60L;
 
+    /**
+     * Full reconciliation interval in seconds when every NodePool has a cache that reports node ZNode changes.
+     */
+    private static final long CACHED_SLEEP_SECS_DEFAULT = 600L;
+
+    /**
+     * Maximum time a full reconciliation waits for the ZooKeeper scans of the NodePool clusters.
+     */
+    static final long SCAN_TIMEOUT_SEC = Long.getLong(Janitor.class.getName() + ".scan_timeout_seconds", 300L);
+
+    /**
+     * Delay before the first full reconciliation, so Jenkins can finish loading its nodes.
+     */
+    private static final long INITIAL_DELAY_MS = 60000L;
+
+    /**
+     * The running janitor, if any.
+     */
+    private static volatile Janitor instance;
+
     private long sleepMilliseconds;
 
+    /**
+     * True if the interval was set with the 'sleep_seconds' property, in which case it is used as is.
+     */
+    private boolean sleepConfigured;
+
+    /**
+     * Names of Jenkins nodes that need to be examined.
+     */
+    private final LinkedBlockingQueue<String> dirty = new LinkedBlockingQueue<>();
+
+    /**
+     * Pending hold expirations.
+     */
+    private final DelayQueue<HoldExpiry> holds = new DelayQueue<>();
+
+    /**
+     * Hold expiration time of each node that has an entry in the holds queue, avoids queueing duplicates.
+     */
+    private final Map<String, Long> scheduledHolds = new ConcurrentHashMap<>();
+
+    /**
+     * Caches we are already listening to.
+     */
+    private final Set<ZooKeeperCache> watchedCaches = Collections.newSetFromMap(new WeakHashMap<>());
+
+    /**
+     * A node whose hold expires at a given time.
+     */
+    private static final class HoldExpiry implements Delayed {
+        private final String nodeName;
+        private final long epochMs;
+
+        HoldExpiry(String nodeName, long epochMs) {
+            this.nodeName = nodeName;
+            this.epochMs = epochMs;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(epochMs - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            return Long.compare(getDelay(TimeUnit.MILLISECONDS), o.getDelay(TimeUnit.MILLISECONDS));
+        }
+    }
+
     /**
      * JSON reader/writer helper
      */
     private Gson gson = new Gson();
 
     /**
-     * A reference to the Zookeeper connection framework
+     * Runs the ZooKeeper scans, one worker per NodePool cluster.
      */
-    private CuratorFramework conn;
+    private final ExecutorService scanners = Executors.newCachedThreadPool(
+            new NamingThreadFactory(new DaemonThreadFactory(), "NodePool janitor scan"));
 
     Janitor() {
-        // by default, sleep for 60 seconds between cleaning attempts.
+        // by default, wait 60 seconds between full reconciliations.
         final String propertyKey = Janitor.class.getName() + ".sleep_seconds";
+        sleepConfigured = System.getProperty(propertyKey) != null;
         String sleepSeconds = System.getProperty(propertyKey, SLEEP_SECS_DEFAULT.toString());
 
         // Convert to a long value and milliseconds - use default if a format error
         try {
             sleepMilliseconds = Long.parseLong(sleepSeconds) * 1000L;
         } catch (NumberFormatException nfe) {
+            sleepConfigured = false;
             LOG.log(Level.WARNING, format("Unable to convert system property '%s' with value '%s' to milliseconds. " +
                     "Using default value: %d ms.", propertyKey, sleepSeconds, SLEEP_SECS_DEFAULT * 1000L));
             sleepMilliseconds = SLEEP_SECS_DEFAULT * 1000L;
@@ -81,31 +178,171 @@ class Janitor implements Runnable {
         LOG.log(SEVERE, "Janitor Thread Exited - this shouldn't happen, resources may leak.");
     }
 
-    private CuratorFramework getConn() throws NodePoolException{
-        // Grab a reference to the NodePool ZK connection
-        CuratorFramework conn;
-        if (NodePools.get().getNodePools().isEmpty()) {
-            throw new NodePoolException("No Nodepools Configured, can't obtain zookeeper connection.");
-        } else {
-            conn = NodePools.get().getNodePools().get(0).getConn();
-        }
-        return conn;
-    }
-
     /**
      * Run with system permissions already set.
      */
     private void runAsSystem() {
+        instance = this;
+        long nextReconcile = System.currentTimeMillis() + Math.min(sleepMilliseconds, INITIAL_DELAY_MS);
         while (true) {
             try {
-                Thread.sleep(sleepMilliseconds);
-                clean();
+                if (System.currentTimeMillis() >= nextReconcile) {
+                    clean();
+                    nextReconcile = System.currentTimeMillis() + reconcileInterval();
+                }
+                watchCaches();
+
+                // Sleep until something changes, a hold expires or the next reconciliation is due
+                long waitMs = nextReconcile - System.currentTimeMillis();
+                final HoldExpiry nextHold = holds.peek();
+                if (nextHold != null) {
+                    waitMs = Math.min(waitMs, nextHold.getDelay(TimeUnit.MILLISECONDS));
+                }
+                final Set<String> names = new HashSet<>();
+                final String first = dirty.poll(Math.max(0, waitMs), TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    names.add(first);
+                    dirty.drainTo(names);
+                }
+                HoldExpiry expired;
+                while ((expired = holds.poll()) != null) {
+                    scheduledHolds.remove(expired.nodeName, expired.epochMs);
+                    names.add(expired.nodeName);
+                }
+                cleanDirty(names);
+            } catch (InterruptedException e) {
+                LOG.log(WARNING, "Janitor interrupted, exiting");
+                return;
             } catch (Exception e) {
                 LOG.log(WARNING, "Cleanup failed: " + e.getMessage(), e);
             }
         }
     }
 
+    /**
+     * Marks the named Jenkins node as needing to be examined by the running janitor.
+     *
+     * @param nodeName the Jenkins node name
+     */
+    static void nodeChanged(final String nodeName) {
+        final Janitor janitor = instance;
+        if (janitor != null && nodeName != null) {
+            janitor.dirty.add(nodeName);
+        }
+    }
+
+    /**
+     * Marks the agents that were used by the given build as needing to be examined by the running janitor.
+     *
+     * @param run the completed build
+     */
+    static void buildCompleted(final Run<?, ?> run) {
+        final Janitor janitor = instance;
+        final Jenkins jenkins = Jenkins.getInstanceOrNull();
+        if (janitor == null || jenkins == null) {
+            return;
+        }
+        for (Node node : jenkins.getNodes()) {
+            if (node instanceof NodePoolSlave) {
+                final NodePoolJob job = ((NodePoolSlave) node).getJob();
+                if (job == null || job.getRun() == null || job.getRun() == run) {
+                    janitor.dirty.add(node.getNodeName());
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the time until the next full reconciliation. Without a cache, node ZNodes removed by NodePool and
+     * leaked requests are only found by reconciling, so the longer default only applies when every NodePool reports
+     * node ZNode changes.
+     *
+     * @return the interval in milliseconds
+     */
+    private long reconcileInterval() {
+        if (sleepConfigured) {
+            return sleepMilliseconds;
+        }
+        final List<NodePool> nodePools = NodePools.get().getNodePools();
+        for (NodePool nodePool : nodePools) {
+            if (nodePool.getCache() == null) {
+                return sleepMilliseconds;
+            }
+        }
+        return nodePools.isEmpty() ? sleepMilliseconds : TimeUnit.SECONDS.toMillis(CACHED_SLEEP_SECS_DEFAULT);
+    }
+
+    /**
+     * Listens to the node ZNodes of every NodePool that has a read cache, so that agents whose NodePool node
+     * changes or disappears are examined straight away.
+     */
+    private void watchCaches() {
+        for (NodePool nodePool : NodePools.get().getNodePools()) {
+            final ZooKeeperCache cache = nodePool.getCache();
+            if (cache == null || watchedCaches.contains(cache)) {
+                continue;
+            }
+            watchedCaches.add(cache);
+            final String nodeRoot = format("/%s/", nodePool.getNodeRoot());
+            cache.addListener((client, event) -> {
+                if (event.getData() == null || !event.getData().getPath().startsWith(nodeRoot)) {
+                    return;
+                }
+                if (event.getType() == TreeCacheEvent.Type.NODE_UPDATED
+                        || event.getType() == TreeCacheEvent.Type.NODE_REMOVED) {
+                    zkNodeChanged(event.getData().getPath().substring(nodeRoot.length()));
+                }
+            });
+        }
+    }
+
+    /**
+     * Marks the Jenkins node backed by the given NodePool node as needing to be examined.
+     *
+     * @param id the NodePool node id
+     */
+    private void zkNodeChanged(final String id) {
+        final Jenkins jenkins = Jenkins.getInstanceOrNull();
+        if (jenkins == null) {
+            return;
+        }
+        for (Node node : jenkins.getNodes()) {
+            if (node instanceof NodePoolSlave) {
+                final NodePoolNode npn = ((NodePoolSlave) node).getNodePoolNode();
+                if (npn != null && id.equals(npn.getZKID())) {
+                    dirty.add(node.getNodeName());
+                }
+            }
+        }
+    }
+
+    /**
+     * Examines only the named Jenkins nodes.
+     *
+     * @param names Jenkins node names
+     */
+    private void cleanDirty(final Set<String> names) {
+        if (names.isEmpty()) {
+            return;
+        }
+        final Jenkins jenkins = Jenkins.getInstanceOrNull();
+        if (jenkins == null) {
+            return;
+        }
+        LOG.log(FINEST, format("Janitor examining %d changed nodes", names.size()));
+        for (String name : names) {
+            final Node node = jenkins.getNode(name);
+            if (node instanceof NodePoolSlave) {
+                try {
+                    cleanJenkinsNode((NodePoolSlave) node);
+                } catch (RuntimeException e) {
+                    LOG.log(WARNING, format("%s error while examining node %s. Message: %s",
+                            e.getClass().getSimpleName(), name, e.getLocalizedMessage()));
+                }
+            }
+        }
+    }
+
     /**
      * Examines the nodes defined in both Jenkins and the NodePool service.
      * <p>
@@ -117,18 +354,94 @@ class Janitor implements Runnable {
      * <li>The node build is complete and is not held</li>
      * </ul>
      */
-    private void clean() throws NodePoolException {
+    private void clean() throws InterruptedException {
         LOG.log(FINEST, "--------------------- Janitor scanning -------------------");
-        // This cleanup doesn't require a zookeeper connection, so run before
-        // getConn() which may throw NodePoolException. If it does, it will
-        // be handled by runAsSystem.
+        final long start = System.nanoTime();
         cleanJenkinsNodes();
-        conn = getConn();
-        showZookeeperRequests();
-        cleanZookeeperNodes();
+        scanClusters();
+        pruneHistory();
+        NodePoolMetrics.get().janitorPass(start);
         LOG.log(FINEST, "--------------------- Janitor scanning done --------------");
     }
 
+    /**
+     * Deletes expired job history, which would otherwise only happen when the history starts a new segment.
+     */
+    private void pruneHistory() {
+        final NodePoolJobHistoryStore history = NodePools.get().getHistoryStore();
+        if (history != null) {
+            history.prune();
+        }
+    }
+
+    /**
+     * Scans the requests and nodes of every configured NodePool cluster, each on its own worker. Waits at most
+     * 'scan_timeout_seconds' for the scans, a scan that takes longer carries on in the background and that cluster is
+     * skipped by later passes until it finishes, so a slow ZooKeeper ensemble does not hold up the others.
+     *
+     * @throws InterruptedException if interrupted while waiting for the scans
+     */
+    private void scanClusters() throws InterruptedException {
+        final List<NodePool> nodePools = NodePools.get().getNodePools();
+        if (nodePools.isEmpty()) {
+            LOG.log(FINEST, "No NodePools configured - unable to query for requests and nodes.");
+            return;
+        }
+
+        final List<Future<?>> scans = new ArrayList<>();
+        for (NodePool nodePool : nodePools) {
+            final JanitorScanStats.ClusterStats stats =
+                    JanitorScanStats.get().forCluster(JanitorScanStats.clusterName(nodePool));
+            if (!JanitorScanStats.get().started(stats)) {
+                LOG.log(WARNING, format("Previous scan of NodePool %s has not finished after %d ms, skipping it",
+                        stats.getCluster(), System.currentTimeMillis() - stats.getLastStartMs()));
+                continue;
+            }
+            try {
+                scans.add(scanners.submit(() -> scanCluster(nodePool, stats)));
+            } catch (RejectedExecutionException e) {
+                JanitorScanStats.get().finished(stats, 0, true);
+                throw e;
+            }
+        }
+
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(SCAN_TIMEOUT_SEC);
+        for (Future<?> scan : scans) {
+            try {
+                scan.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                LOG.log(WARNING, format("NodePool scans did not finish within %d seconds, leaving them running",
+                        SCAN_TIMEOUT_SEC));
+                return;
+            } catch (ExecutionException e) {
+                // scanCluster logs its own failures
+                LOG.log(FINE, "NodePool scan failed: " + e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Scans the requests and nodes of a single NodePool cluster and records how long it took.
+     *
+     * @param nodePool the cluster
+     * @param stats    the statistics for the cluster
+     */
+    private void scanCluster(final NodePool nodePool, final JanitorScanStats.ClusterStats stats) {
+        final long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            failed = !showZookeeperRequests(nodePool);
+            failed = !cleanZookeeperNodes(nodePool) || failed;
+        } catch (RuntimeException e) {
+            LOG.log(WARNING, format("%s error while scanning NodePool %s. Message: %s",
+                    e.getClass().getSimpleName(), stats.getCluster(), e.getLocalizedMessage()), e);
+        } finally {
+            final long durationMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            JanitorScanStats.get().finished(stats, durationMs, failed);
+            LOG.log(FINE, format("Scanned NodePool %s in %d ms", stats.getCluster(), durationMs));
+        }
+    }
+
     /**
      * Examines all the nodes Jenkins currently has, and looks for NodePool nodes that should be removed from
      * Jenkins.
@@ -156,58 +469,8 @@ class Janitor implements Runnable {
                 LOG.log(FINEST, "No Jenkins nodes registered.");
             } else {
                 for (Node node : jenkins.getNodes()) {
-                    if (!(node instanceof NodePoolSlave)) {
-                        continue;
-                    }
-
-                    final NodePoolSlave nodePoolSlave = (NodePoolSlave) node;
-                    NodePoolJob nodePoolJob = nodePoolSlave.getJob();
-
-                    LOG.log(FINEST, "Evaluating NodePool Node: " + nodePoolSlave);
-                    if (nodePoolJob == null) {
-                        LOG.log(FINE, format("NodePool Node: %s does not have a job. Cleaning node...", nodePoolSlave));
-                        cleanNode(nodePoolSlave, "Job Reference is null");
-                        continue;
-                    }
-
-                    WorkflowRun run = (WorkflowRun) nodePoolJob.getRun();
-                    if (run == null) {
-                        LOG.log(WARNING, format("NodePool Node: %s does not have a workflow run object associated with the job. Skipping.", nodePoolSlave));
-                        continue;
-                    }
-
-                    if (run.isBuilding()) {
-                        // The associated build is still executing,
-                        // don't remove the node under any circumstances
-                        // Timeouts are handled in the jobs, not here.
-                        LOG.log(FINEST, format("Node %s is still building a job. Skipping cleanup.", nodePoolSlave));
-                    } else if (nodePoolSlave.isHeld()) {
-                        // Build has ended, but node could be held.
-                        // Grab the hold until time - need to compare it to current time to determine if our hold has expired
-                        final long holdUtilEpochMs = ((NodePoolSlave) node).getHoldUnitEpochMs();
-                        long now = System.currentTimeMillis();
-                        if (now > holdUtilEpochMs) {
-                            // Build complete and hold expired, clean node
-                            LOG.log(INFO, format(
-                                    "Removing held node: %s - job is done and hold has expired - hold until time: %s, current time: %s",
-                                    nodePoolSlave,
-                                    NodePoolUtils.getFormattedDateTime(holdUtilEpochMs, ZoneOffset.UTC),
-                                    NodePoolUtils.getFormattedDateTime(now, ZoneOffset.UTC)));
-                            ((NodePoolSlave) node).setHeld(false);
-                            cleanNode(nodePoolSlave, "Hold expired");
-                        } else {
-                            // Build complete, but hold has not expired so retain node
-                            LOG.log(FINE, format(
-                                    "Skipping held node: %s - job is running: %b, held: %b - hold until time: %s, current time: %s",
-                                    nodePoolSlave, nodePoolJob.getRun().isBuilding(), nodePoolSlave.isHeld(),
-                                    NodePoolUtils.getFormattedDateTime(holdUtilEpochMs, ZoneOffset.UTC),
-                                    NodePoolUtils.getFormattedDateTime(System.currentTimeMillis(), ZoneOffset.UTC)));
-                        }
-                    } else {
-                        // Build complete and node isn't held, clean it.
-                        LOG.log(INFO, format("Removing node %s because the build it was created for (%s) is no longer running.",
-                                nodePoolSlave, run.getExternalizableId()));
-                        cleanNode(nodePoolSlave, "Build Complete");
+                    if (node instanceof NodePoolSlave) {
+                        cleanJenkinsNode((NodePoolSlave) node);
                     }
                 }
             }
@@ -220,6 +483,95 @@ class Janitor implements Runnable {
         }
     }
 
+    /**
+     * Examines a single NodePool agent and removes it from Jenkins if it is no longer needed.
+     *
+     * @param nodePoolSlave the agent
+     */
+    private void cleanJenkinsNode(final NodePoolSlave nodePoolSlave) {
+        NodePoolJob nodePoolJob = nodePoolSlave.getJob();
+
+        LOG.log(FINEST, "Evaluating NodePool Node: " + nodePoolSlave);
+        if (nodePoolJob == null) {
+            LOG.log(FINE, format("NodePool Node: %s does not have a job. Cleaning node...", nodePoolSlave));
+            cleanNode(nodePoolSlave, "Job Reference is null");
+            return;
+        }
+
+        if (nodePoolJob.isWarm()) {
+            // agents launched ahead of demand are kept until their warm pool retires them
+            if (!WarmPool.wanted(nodePoolSlave)) {
+                LOG.log(INFO, format("Removing warm agent %s as its warm pool no longer needs it.", nodePoolSlave));
+                cleanNode(nodePoolSlave, "Warm agent no longer needed");
+            }
+            return;
+        }
+
+        WorkflowRun run = (WorkflowRun) nodePoolJob.getRun();
+        if (run == null) {
+            LOG.log(WARNING, format("NodePool Node: %s does not have a workflow run object associated with the job. Skipping.", nodePoolSlave));
+            return;
+        }
+
+        if (run.isBuilding()) {
+            // The associated build is still executing,
+            // don't remove the node under any circumstances
+            // Timeouts are handled in the jobs, not here.
+            LOG.log(FINEST, format("Node %s is still building a job. Skipping cleanup.", nodePoolSlave));
+        } else if (nodePoolSlave.isHeld()) {
+            // Build has ended, but node could be held.
+            // Grab the hold until time - need to compare it to current time to determine if our hold has expired
+            final long holdUtilEpochMs = nodePoolSlave.getHoldUnitEpochMs();
+            long now = System.currentTimeMillis();
+            if (now > holdUtilEpochMs) {
+                // Build complete and hold expired, clean node
+                LOG.log(INFO, format(
+                        "Removing held node: %s - job is done and hold has expired - hold until time: %s, current time: %s",
+                        nodePoolSlave,
+                        NodePoolUtils.getFormattedDateTime(holdUtilEpochMs, ZoneOffset.UTC),
+                        NodePoolUtils.getFormattedDateTime(now, ZoneOffset.UTC)));
+                nodePoolSlave.setHeld(false);
+                cleanNode(nodePoolSlave, "Hold expired");
+            } else {
+                // Build complete, but hold has not expired so retain node and look again when it does
+                LOG.log(FINE, format(
+                        "Skipping held node: %s - job is running: %b, held: %b - hold until time: %s, current time: %s",
+                        nodePoolSlave, nodePoolJob.getRun().isBuilding(), nodePoolSlave.isHeld(),
+                        NodePoolUtils.getFormattedDateTime(holdUtilEpochMs, ZoneOffset.UTC),
+                        NodePoolUtils.getFormattedDateTime(System.currentTimeMillis(), ZoneOffset.UTC)));
+                scheduleHoldExpiry(nodePoolSlave.getNodeName(), holdUtilEpochMs);
+            }
+        } else {
+            // Build complete and node isn't held, clean it.
+            LOG.log(INFO, format("Removing node %s because the build it was created for (%s) is no longer running.",
+                    nodePoolSlave, run.getExternalizableId()));
+            cleanNode(nodePoolSlave, "Build Complete");
+        }
+    }
+
+    /**
+     * Arranges for the named node to be examined once its hold expires.
+     *
+     * @param nodeName        the Jenkins node name
+     * @param holdUntilEpochMs the hold expiry time in milliseconds since epoch
+     */
+    void scheduleHoldExpiry(final String nodeName, final long holdUntilEpochMs) {
+        final Long previous = scheduledHolds.put(nodeName, holdUntilEpochMs);
+        if (previous == null || previous != holdUntilEpochMs) {
+            // a stale entry for an earlier expiry just causes an extra look at the node
+            holds.add(new HoldExpiry(nodeName, holdUntilEpochMs));
+        }
+    }
+
+    /**
+     * Returns the number of queued hold expirations.
+     *
+     * @return the size of the hold expiry queue
+     */
+    int getScheduledHoldCount() {
+        return holds.size();
+    }
+
     /**
      * Mark the given slave node as offline and then remove it from Jenkins.
      * <p>
@@ -229,21 +581,14 @@ class Janitor implements Runnable {
      * @param reason        the reason why the node is being removed
      */
     private void cleanNode(NodePoolSlave nodePoolSlave, String reason) {
-        // Executed from a thread pool so that
-        // the 30s waits don't block the Janitor.
-        Computer.threadPoolForRemoting.submit(() -> {
-            try {
-                // We may select a node for cleanup immediately after a build
-                // has completed. In this case there may still be processes
-                // communicating with the node. Give those 30s to terminate
-                // to prevent IOExceptions in the log.
-                // This is run from a background thread, so the wait
-                // won't block anything.
-                Thread.sleep(30000L);
-            } catch (InterruptedException ex) {
-                //meh we woke up.
-            }
-
+        final String name = nodePoolSlave.getNodeName();
+        scheduledHolds.remove(name);
+        // We may select a node for cleanup immediately after a build
+        // has completed. In this case there may still be processes
+        // communicating with the node, so the deletion queue gives those
+        // a grace period to terminate to prevent IOExceptions in the log.
+        // A node that is already queued is not queued again.
+        final boolean scheduled = DeferredDeletionQueue.get().schedule(name, () -> {
             try {
                 NodePoolComputer c = (NodePoolComputer) nodePoolSlave.toComputer();
                 NodePoolNode npn = nodePoolSlave.getNodePoolNode();
@@ -272,6 +617,9 @@ class Janitor implements Runnable {
                         e.getClass().getSimpleName(), nodePoolSlave, e.getLocalizedMessage()));
             }
         });
+        if (scheduled) {
+            NodePoolMetrics.get().janitorCleaned();
+        }
     }
 
     /**
@@ -287,38 +635,39 @@ class Janitor implements Runnable {
     }
 
     /**
-     * Shows the current requests in Zookeeper
+     * Shows the current requests of a NodePool cluster in Zookeeper
+     *
+     * @param nodePool the cluster
+     * @return false if the requests could not be read
      */
-    private void showZookeeperRequests() {
+    private boolean showZookeeperRequests(final NodePool nodePool) {
         LOG.log(FINEST, "Looking for requests...");
 
         try {
-            if (NodePools.get().getNodePools().isEmpty()) {
-                LOG.log(FINEST, "No NodePools configured - unable to query for requests.");
+            final CuratorFramework conn = nodePool.getConn();
+            final String zkNodesRequestRootPath = format("/%s", nodePool.getRequestRoot());
+            // Read and parse the data into POJO models, the reads are pipelined
+            final List<ZooKeeperBatchReader.Entry<NodeRequestModel>> requests =
+                    new ZooKeeperBatchReader<>(conn, nodePool.getCache(), NodeRequestModel.class)
+                            .readChildren(zkNodesRequestRootPath);
+            if (requests.isEmpty()) {
+                LOG.log(FINEST, "No Node Requests registered.");
             } else {
-                final String zkNodesRequestRootPath = format("/%s", NodePools.get().getNodePools().get(0).getRequestRoot());
-                final List<String> nodesRequestPaths = conn.getChildren().forPath(zkNodesRequestRootPath);
-                if (nodesRequestPaths.isEmpty()) {
-                    LOG.log(FINEST, "No Node Requests registered.");
-                } else {
-                    for (String nodeRequestPath : nodesRequestPaths) {
-                        // Read and parse the data into a POJO model
-                        final String path = format("%s/%s", zkNodesRequestRootPath, nodeRequestPath);
-                        final byte[] data = conn.getData().forPath(path);
-                        // Check to see if we were able to load any data
-                        if (data == null || data.length == 0) {
-                            LOG.log(WARNING, format("Unable to load data at node: %s. Data is is null or empty.", path));
+                for (ZooKeeperBatchReader.Entry<NodeRequestModel> request : requests) {
+                    final String path = request.getPath();
+                    // Check to see if we were able to load any data
+                    if (!request.hasData()) {
+                        LOG.log(WARNING, format("Unable to load data at node: %s. Data is is null or empty.", path));
+                    } else {
+                        final NodeRequestModel model = request.getModel();
+                        if (model == null) {
+                            LOG.log(WARNING, format("Unable to load data model at node: %s. Model is null or empty.", path));
                         } else {
-                            final NodeRequestModel model = gson.fromJson(new String(data, StandardCharsets.UTF_8), NodeRequestModel.class);
-                            if (model == null) {
-                                LOG.log(WARNING, format("Unable to load data model at node: %s. Model is null or empty.", path));
-                            } else {
-                                LOG.log(FINEST, format("Node Request, path: %s, state: %s, requestor: %s, build id: %s",
-                                        path,
-                                        model.getState(),
-                                        model.getRequestor(),
-                                        model.getBuild_id()));
-                            }
+                            LOG.log(FINEST, format("Node Request, path: %s, state: %s, requestor: %s, build id: %s",
+                                    path,
+                                    model.getState(),
+                                    model.getRequestor(),
+                                    model.getBuild_id()));
                         }
                     }
                 }
@@ -329,105 +678,114 @@ class Janitor implements Runnable {
         } catch (Exception e) {
             LOG.log(WARNING, format("%s error while querying for NodePool requests and nodes. Message: %s",
                     e.getClass().getSimpleName(), e.getLocalizedMessage()));
+            return false;
         }
+        return true;
     }
 
     /**
-     * Cleans any stale zookeeper nodes that have been used and are currently not running.
+     * Cleans any stale zookeeper nodes of a NodePool cluster that have been used and are currently not running.
+     *
+     * @param nodePool the cluster
+     * @return false if the nodes could not be read
      */
-    private void cleanZookeeperNodes() {
+    private boolean cleanZookeeperNodes(final NodePool nodePool) {
         LOG.log(FINEST, "Looking for Zookeeper nodes...");
 
         try {
-            if (NodePools.get().getNodePools().isEmpty()) {
-                LOG.log(FINEST, "No nodepools configured - unable to query for zookeeper nodes.");
+            // Scan for nodes listed in Zookeeper (not in Jenkins)
+            final CuratorFramework conn = nodePool.getConn();
+            final String zkNodesRootPath = format("/%s", nodePool.getNodeRoot());
+            // Read and parse the data into data models, the reads are pipelined
+            final List<ZooKeeperBatchReader.Entry<NodeModel>> nodes =
+                    new ZooKeeperBatchReader<>(conn, nodePool.getCache(), NodeModel.class)
+                            .readChildren(zkNodesRootPath);
+            if (nodes.isEmpty()) {
+                LOG.log(FINEST, "No NodePool nodes registered in Zookeeper. Expecting reserved nodes (min-ready).");
             } else {
-                // Scan for nodes listed in Zookeeper (not in Jenkins)
-                final String zkNodesRootPath = format("/%s", NodePools.get().getNodePools().get(0).getNodeRoot());
-                final List<String> nodesPaths = conn.getChildren().forPath(zkNodesRootPath);
-                if (nodesPaths.isEmpty()) {
-                    LOG.log(FINEST, "No NodePool nodes registered in Zookeeper. Expecting reserved nodes (min-ready).");
-                } else {
-                    for (String nodePath : nodesPaths) {
-                        // Read and parse the data into a data model
-                        final String path = format("%s/%s", zkNodesRootPath, nodePath);
-                        final byte[] data = conn.getData().forPath(path);
-                        // Check to see if we were able to load any data
-                        if (data == null || data.length == 0) {
-                            LOG.log(WARNING, format("Unable to load data at node: %s. Data is is null or empty.", nodePath));
-                            // Let's skip for now - not much we can do other than delete the znode. It could be in the
-                            // process of being created and the data hasn't been written/saved yet...
-                            continue;
-                        }
+                for (ZooKeeperBatchReader.Entry<NodeModel> node : nodes) {
+                    final String nodePath = node.getName();
+                    final String path = node.getPath();
+                    // Check to see if we were able to load any data
+                    if (!node.hasData()) {
+                        LOG.log(WARNING, format("Unable to load data at node: %s. Data is is null or empty.", nodePath));
+                        // Let's skip for now - not much we can do other than delete the znode. It could be in the
+                        // process of being created and the data hasn't been written/saved yet...
+                        continue;
+                    }
 
-                        // Convert the JSON data to a POJO model
-                        final NodeModel model = gson.fromJson(new String(data, StandardCharsets.UTF_8), NodeModel.class);
-                        if (model == null) {
-                            LOG.log(WARNING, format("Unable to load data model at node: %s. Model is null or empty.", nodePath));
-                            continue;
-                        }
+                    final NodeModel model = node.getModel();
+                    if (model == null) {
+                        LOG.log(WARNING, format("Unable to load data model at node: %s. Model is null or empty.", nodePath));
+                        continue;
+                    }
 
-                        // If we have a build id, then we should get a Run object - will be null if node isn't allocated
-                        // to a job yet (on standby/min-ready)
-                        Run run = null;
-                        if (model.getBuild_id() != null) {
-                            run = Run.fromExternalizableId(model.getBuild_id());
-                        }
+                    // If we have a build id, then we should get a Run object - will be null if node isn't allocated
+                    // to a job yet (on standby/min-ready)
+                    Run run = null;
+                    if (model.getBuild_id() != null) {
+                        run = Run.fromExternalizableId(model.getBuild_id());
+                    }
 
-                        if (model.getAllocated_to() == null) {
-                            LOG.log(FINEST, format("Reserved Node: %s, region: %s, held: %b, allocated to: %s",
-                                    nodePath,
-                                    model.getRegion(),
-                                    (model.getHold_job() != null),
-                                    model.getAllocated_to()));
-                        } else if (run != null && model.getBuild_id() != null && run.isBuilding()) {
-                            // Node is being used: we have an external id, a build id, and it's currently building
-                            LOG.log(FINE, format("In-Use Node: %s, region: %s, held: %b, allocated to: %s, build id: %s, is running: %s",
-                                    nodePath,
-                                    model.getRegion(),
-                                    (model.getHold_job() != null),
-                                    model.getAllocated_to(),
-                                    model.getBuild_id(),
-                                    run.isBuilding()));
-                        } else if (run != null && model.getBuild_id() != null && !run.isBuilding() && model.getHold_job() != null) {
-                            LOG.log(FINEST, format("Retired Node (held): %s, region: %s, held: %b, allocated to: %s, build id: %s, is running: %s.",
-                                    nodePath,
-                                    model.getRegion(),
-                                    (model.getHold_job() != null),
-                                    model.getAllocated_to(),
-                                    model.getBuild_id(),
-                                    run.isBuilding()));
-                        } else if (run != null && model.getBuild_id() != null && !run.isBuilding() && model.getHold_job() == null) {
-                            LOG.log(FINEST, format("Retired Node (not held): %s, region: %s, held: %b, allocated to: %s, build id: %s, is running: %s - should REMOVE this node.",
-                                    nodePath,
-                                    model.getRegion(),
-                                    (model.getHold_job() != null),
-                                    model.getAllocated_to(),
-                                    model.getBuild_id(),
-                                    run.isBuilding()));
-
-                            // Toggle the state to used
-                            model.setState(NodePoolState.USED);
-
-                            // Save the changes back to ZK
-                            final String jsonStringModel = gson.toJson(model, NodeModel.class);
-                            conn.setData().forPath(path, jsonStringModel.getBytes(StandardCharsets.UTF_8));
-                            LOG.log(FINEST, format("Retired Node (not held): %s, region: %s, held: %b, allocated to: %s, build id: %s, is running: %s - changed state to USED - launcher should remove.",
-                                    nodePath,
-                                    model.getRegion(),
-                                    (model.getHold_job() != null),
-                                    model.getAllocated_to(),
-                                    model.getBuild_id(),
-                                    run.isBuilding()));
-                        } else {
-                            LOG.log(WARNING, format("Unknown/Unsupported State of Node: %s, region: %s, held: %b, allocated to: %s, build id: %s, is running: %s",
-                                    nodePath,
-                                    model.getRegion(),
-                                    (model.getHold_job() != null),
-                                    model.getAllocated_to(),
-                                    model.getBuild_id(),
-                                    (run == null ? "null" : run.isBuilding())));
+                    if (model.getAllocated_to() == null) {
+                        LOG.log(FINEST, format("Reserved Node: %s, region: %s, held: %b, allocated to: %s",
+                                nodePath,
+                                model.getRegion(),
+                                (model.getHold_job() != null),
+                                model.getAllocated_to()));
+                    } else if (run != null && model.getBuild_id() != null && run.isBuilding()) {
+                        // Node is being used: we have an external id, a build id, and it's currently building
+                        LOG.log(FINE, format("In-Use Node: %s, region: %s, held: %b, allocated to: %s, build id: %s, is running: %s",
+                                nodePath,
+                                model.getRegion(),
+                                (model.getHold_job() != null),
+                                model.getAllocated_to(),
+                                model.getBuild_id(),
+                                run.isBuilding()));
+                    } else if (run != null && model.getBuild_id() != null && !run.isBuilding() && model.getHold_job() != null) {
+                        LOG.log(FINEST, format("Retired Node (held): %s, region: %s, held: %b, allocated to: %s, build id: %s, is running: %s.",
+                                nodePath,
+                                model.getRegion(),
+                                (model.getHold_job() != null),
+                                model.getAllocated_to(),
+                                model.getBuild_id(),
+                                run.isBuilding()));
+                    } else if (run != null && model.getBuild_id() != null && !run.isBuilding() && model.getHold_job() == null) {
+                        LOG.log(FINEST, format("Retired Node (not held): %s, region: %s, held: %b, allocated to: %s, build id: %s, is running: %s - should REMOVE this node.",
+                                nodePath,
+                                model.getRegion(),
+                                (model.getHold_job() != null),
+                                model.getAllocated_to(),
+                                model.getBuild_id(),
+                                run.isBuilding()));
+
+                        // Toggle the state to used
+                        model.setState(NodePoolState.USED);
+
+                        // Save the changes back to ZK, unless the node changed since we read it
+                        final String jsonStringModel = gson.toJson(model, NodeModel.class);
+                        try {
+                            conn.setData().withVersion(node.getStat() == null ? -1 : node.getStat().getVersion())
+                                    .forPath(path, jsonStringModel.getBytes(StandardCharsets.UTF_8));
+                        } catch (KeeperException.BadVersionException | KeeperException.NoNodeException e) {
+                            LOG.log(FINE, format("Node %s changed while being retired, will look again next pass", nodePath));
+                            continue;
                         }
+                        LOG.log(FINEST, format("Retired Node (not held): %s, region: %s, held: %b, allocated to: %s, build id: %s, is running: %s - changed state to USED - launcher should remove.",
+                                nodePath,
+                                model.getRegion(),
+                                (model.getHold_job() != null),
+                                model.getAllocated_to(),
+                                model.getBuild_id(),
+                                run.isBuilding()));
+                    } else {
+                        LOG.log(WARNING, format("Unknown/Unsupported State of Node: %s, region: %s, held: %b, allocated to: %s, build id: %s, is running: %s",
+                                nodePath,
+                                model.getRegion(),
+                                (model.getHold_job() != null),
+                                model.getAllocated_to(),
+                                model.getBuild_id(),
+                                (run == null ? "null" : run.isBuilding())));
                     }
                 }
             }
@@ -437,6 +795,8 @@ class Janitor implements Runnable {
         } catch (Exception e) {
             LOG.log(WARNING, format("%s error while querying for Zookeeper nodes. Message: %s",
                     e.getClass().getSimpleName(), e.getLocalizedMessage()));
+            return false;
         }
+        return true;
     }
 }
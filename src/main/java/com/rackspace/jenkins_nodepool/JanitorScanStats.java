@@ -0,0 +1,177 @@
+package com.rackspace.jenkins_nodepool;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timing of the janitor's ZooKeeper scans, one entry per NodePool cluster, shown on the NodePool management page so
+ * that a slow or failing cluster is visible.
+ */
+public final class JanitorScanStats {
+
+    private static final JanitorScanStats INSTANCE = new JanitorScanStats();
+
+    private final Map<String, ClusterStats> stats = new ConcurrentHashMap<>();
+
+    private JanitorScanStats() {
+    }
+
+    /**
+     * Returns the shared scan statistics.
+     *
+     * @return the scan statistics
+     */
+    public static JanitorScanStats get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Scan statistics for one cluster
+     */
+    public static final class ClusterStats {
+        private final String cluster;
+        private final AtomicLong scans = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicLong skipped = new AtomicLong();
+        private final AtomicLong totalDurationMs = new AtomicLong();
+        private final AtomicLong maxDurationMs = new AtomicLong();
+        private volatile long lastStartMs;
+        private volatile long lastDurationMs;
+        private volatile boolean running;
+
+        ClusterStats(String cluster) {
+            this.cluster = cluster;
+        }
+
+        public String getCluster() {
+            return cluster;
+        }
+
+        /**
+         * @return the number of completed scans, including failed ones
+         */
+        public long getScans() {
+            return scans.get();
+        }
+
+        public long getFailures() {
+            return failures.get();
+        }
+
+        /**
+         * @return the number of scans that were skipped because the previous scan had not finished
+         */
+        public long getSkipped() {
+            return skipped.get();
+        }
+
+        /**
+         * @return true while a scan is in progress
+         */
+        public boolean isRunning() {
+            return running;
+        }
+
+        /**
+         * @return the start time of the most recent scan in milliseconds since epoch, or 0 if there has been none
+         */
+        public long getLastStartMs() {
+            return lastStartMs;
+        }
+
+        public long getLastDurationMs() {
+            return lastDurationMs;
+        }
+
+        public long getMeanDurationMs() {
+            final long n = scans.get();
+            return n == 0 ? 0 : totalDurationMs.get() / n;
+        }
+
+        public long getMaxDurationMs() {
+            return maxDurationMs.get();
+        }
+    }
+
+    /**
+     * Returns the statistics for the named cluster.
+     *
+     * @param cluster the cluster name
+     * @return the statistics for the cluster
+     */
+    ClusterStats forCluster(final String cluster) {
+        return stats.computeIfAbsent(cluster, ClusterStats::new);
+    }
+
+    /**
+     * Returns the statistics of every cluster, slowest first.
+     *
+     * @return a snapshot list of the statistics
+     */
+    public List<ClusterStats> getClusterStats() {
+        final List<ClusterStats> list = new ArrayList<>(stats.values());
+        list.sort(Comparator.comparingLong(ClusterStats::getLastDurationMs).reversed()
+                .thenComparing(ClusterStats::getCluster));
+        return Collections.unmodifiableList(list);
+    }
+
+    /**
+     * Discards all statistics.
+     */
+    void reset() {
+        stats.clear();
+    }
+
+    /**
+     * Marks the start of a scan.
+     *
+     * @param s the cluster statistics
+     * @return false if a scan of the cluster is already in progress, in which case the caller must not scan
+     */
+    boolean started(final ClusterStats s) {
+        synchronized (s) {
+            if (s.running) {
+                s.skipped.incrementAndGet();
+                return false;
+            }
+            s.running = true;
+            s.lastStartMs = System.currentTimeMillis();
+            return true;
+        }
+    }
+
+    /**
+     * Marks the end of a scan.
+     *
+     * @param s          the cluster statistics
+     * @param durationMs how long the scan took
+     * @param failed     true if the scan failed
+     */
+    void finished(final ClusterStats s, final long durationMs, final boolean failed) {
+        synchronized (s) {
+            s.running = false;
+            s.lastDurationMs = durationMs;
+        }
+        s.scans.incrementAndGet();
+        if (failed) {
+            s.failures.incrementAndGet();
+        }
+        s.totalDurationMs.addAndGet(durationMs);
+        s.maxDurationMs.accumulateAndGet(durationMs, Math::max);
+    }
+
+    /**
+     * Returns the name under which a cluster's statistics are kept.
+     *
+     * @param nodePool the cluster
+     * @return the label prefix and connection string of the cluster
+     */
+    static String clusterName(final NodePool nodePool) {
+        return nodePool.getClusterName();
+    }
+}
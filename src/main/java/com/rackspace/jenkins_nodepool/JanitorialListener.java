@@ -4,8 +4,11 @@ import hudson.Extension;
 import hudson.model.Computer;
 import hudson.model.TaskListener;
 import hudson.slaves.ComputerListener;
+import hudson.slaves.OfflineCause;
 import jenkins.model.Jenkins;
 
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
 import java.io.IOException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -39,10 +42,25 @@ public class JanitorialListener extends ComputerListener {
     public void onOnline(Computer c, TaskListener listener) throws IOException, InterruptedException {
         if (c instanceof Jenkins.MasterComputer) {
             startJanitor();
+        } else if (c instanceof NodePoolComputer) {
+            Janitor.nodeChanged(c.getName());
         }
 
     }
 
+    /**
+     * Have the janitor look at NodePool agents that go offline.
+     *
+     * @param c Computer that went offline
+     * @param cause the reason it went offline, may be null
+     */
+    @Override
+    public void onOffline(@Nonnull Computer c, @CheckForNull OfflineCause cause) {
+        if (c instanceof NodePoolComputer) {
+            Janitor.nodeChanged(c.getName());
+        }
+    }
+
     /**
      * Start the Janitor Thread
      */
@@ -0,0 +1,21 @@
+package com.rackspace.jenkins_nodepool;
+
+import hudson.Extension;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Lets the janitor know when a build completes so that the NodePool agents it used are removed straight away,
+ * rather than at the next full janitor pass.
+ */
+@Extension
+public class JanitorialRunListener extends RunListener<Run<?, ?>> {
+
+    @Override
+    public void onCompleted(Run<?, ?> run, @Nonnull TaskListener listener) {
+        Janitor.buildCompleted(run);
+    }
+}
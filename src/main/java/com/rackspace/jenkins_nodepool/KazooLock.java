@@ -23,16 +23,16 @@
  */
 package com.rackspace.jenkins_nodepool;
 
+import java.time.Duration;
 import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import org.apache.curator.framework.api.CuratorWatcher;
 import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException.NoNodeException;
 import org.apache.zookeeper.KeeperException.NodeExistsException;
 import org.apache.zookeeper.WatchedEvent;
 
@@ -154,81 +154,179 @@ public class KazooLock {
      * @throws KazooLockException  if there is an issue with the node path not conforming to the expected format
      */
     static Integer sequenceNumberForPath(String path) throws KazooLockException {
-        Pattern p = Pattern.compile("_([0-9]+)$");
-        Matcher m = p.matcher(path);
-        boolean matches = m.find();
-        if (matches){
-            return Integer.valueOf(m.group(1));
+        final int sequence = NodePoolPaths.sequenceNumber(path);
+        if (sequence >= 0) {
+            return sequence;
         } else {
             throw new KazooLockException("Found non sequential node: "+path);
         }
     }
 
     /**
-     * Poll for the given contender ZNode to disappear
+     * Returns the name of the contender immediately ahead of us in the queue, that is the contender with the highest
+     * sequence number lower than ours. Children that are not lock contenders are ignored.
+     *
+     * @param contenders the children of the lock ZNode
+     * @return the name of our predecessor, or null if we are first in line
+     */
+    String predecessor(final List<String> contenders) {
+        String predecessor = null;
+        int predecessorSequence = -1;
+        for (final String contender : contenders) {
+            final int contenderSequence = NodePoolPaths.sequenceNumber(contender);
+            if (contenderSequence < 0) {
+                LOG.log(Level.FINEST, "Ignoring non contender child of lock:{0}", contender);
+                continue;
+            }
+            if (contenderSequence < sequence && contenderSequence > predecessorSequence) {
+                predecessor = contender;
+                predecessorSequence = contenderSequence;
+            }
+        }
+        return predecessor;
+    }
+
+    /**
+     * Wait for the given contender ZNode to disappear
      *
      * @param path  path to the lock contender ZNode
-     * @throws Exception  on lock acquisition timeout or ZooKeeper error
+     * @param deadline  System.nanoTime() value at which to give up
+     * @return false if the deadline passed first
+     * @throws Exception  on ZooKeeper error
      */
-    private void waitForNodeRemoval(String path) throws Exception {
+    private boolean waitForNodeRemoval(String path, long deadline) throws Exception {
         final KazooLockWatcher klw = new KazooLockWatcher();
-        while (nodePool.getConn().checkExists().usingWatcher(klw).forPath(path) != null) {
-            final WatchedEvent we = (WatchedEvent)klw.poll(timeout, unit);
-            if (we == null){
-                throw new KazooLockException("Timeout Acquiring Lock for node: "+this.path);
-            }
+        if (nodePool.getConn().checkExists().usingWatcher(klw).forPath(path) == null) {
+            return true;
         }
+        final long remaining = deadline - System.nanoTime();
+        // any event on our predecessor means it is time to look at the queue again
+        return remaining > 0 && klw.poll(remaining, TimeUnit.NANOSECONDS) != null;
     }
 
     /**
      * Acquire the lock for the current process
+     * <p>
+     * Follows the standard ZooKeeper lock recipe: each contender only watches the contender immediately ahead of
+     * it, so releasing the lock wakes a single waiter. The timeout applies to the acquisition as a whole.
      *
-     * @throws Exception if any ZooKeeper error occurs
+     * @throws Exception if any ZooKeeper error occurs, or the lock can't be acquired within the timeout
      */
     public void acquire() throws Exception {
+        if (!tryAcquire(Duration.ofNanos(unit.toNanos(timeout)))) {
+            throw new KazooLockException("Timeout Acquiring Lock for node: " + this.path);
+        }
+    }
+
+    /**
+     * Try to acquire the lock for the current process, giving up once the given time has passed.
+     *
+     * @param timeout  the maximum time to wait for the lock, in total
+     * @return true if the lock was acquired, false if the timeout passed first
+     * @throws Exception if any ZooKeeper error occurs
+     */
+    public boolean tryAcquire(Duration timeout) throws Exception {
+        final long start = System.nanoTime();
+        final long deadline = start + timeout.toNanos();
+        final KazooLockMetrics metrics = KazooLockMetrics.get();
+        final KazooLockMetrics.PathStats stats = metrics.forPath(path);
+        metrics.started(stats);
         state = State.LOCKING;
         LOG.log(Level.FINEST, "KazooLock.acquire");
-        final byte[] requestor = (
-                nodePool.getRequestor()
-                +"_"+nodePoolJob.getBuildId()
-        ).getBytes(nodePool.getCharset());
-        // 1. Ensure path to be locked exists
         try {
-            nodePool.getConn().create()
-                    .creatingParentsIfNeeded()
-                    .forPath(path, requestor);
-        } catch (NodeExistsException ex) {
-            // node already exists, nothing to do.
+            final byte[] requestor = (
+                    nodePool.getRequestor()
+                    +"_"+nodePoolJob.getBuildId()
+            ).getBytes(nodePool.getCharset());
+            // 1. Ensure path to be locked exists
+            try {
+                nodePool.getConn().create()
+                        .creatingParentsIfNeeded()
+                        .forPath(path, requestor);
+            } catch (NodeExistsException ex) {
+                // node already exists, nothing to do.
+            }
+
+            // 2. Create create path and determine our sequence
+            node = nodePool.getConn().create()
+                    .withMode(CreateMode.EPHEMERAL_SEQUENTIAL)
+                    .forPath(create_path, requestor);
+            LOG.log(Level.FINEST, "Lock contender created:" + node);
+        } catch (Exception e) {
+            state = State.UNLOCKED;
+            metrics.failed(stats);
+            throw e;
         }
 
-        // 2. Create create path and determine our sequence
-        node = nodePool.getConn().create()
-                .withMode(CreateMode.EPHEMERAL_SEQUENTIAL)
-                .forPath(create_path, requestor);
-        LOG.log(Level.FINEST, "Lock contender created:" + node);
-        sequence = sequenceNumberForPath(node);
-
-        // 3. Wait for any child nodes with lower seq numbers
-        final List<String> contenders = nodePool.getConn().getChildren().forPath(path);
-        for (final String contender : contenders){
-            LOG.log(Level.FINEST, "Found contender for lock:{0}", contender);
-            final Integer contenderSequence = sequenceNumberForPath(contender);
-            if (contenderSequence < sequence){
-                // This contender is ahead of us in the queue,
-                // watch and wait
-                waitForNodeRemoval(path+"/"+contender);
-                /**
-                 * Waiting for node removal may take a long time
-                 * during which other contenders may be added to
-                 * the list. However any contenders added during
-                 * our wait will have a higher sequence number
-                 * than us, so must wait for us before acquiring.
-                 */
+        try {
+            sequence = sequenceNumberForPath(node);
+
+            // 3. Wait for the contender ahead of us to go away. It may go
+            // away without releasing the lock (e.g. its session expired) so
+            // the queue is listed again after each wake up.
+            boolean first = true;
+            while (true) {
+                final List<String> contenders = nodePool.getConn().getChildren().forPath(path);
+                if (first) {
+                    metrics.queued(stats, predecessorCount(contenders));
+                    first = false;
+                }
+                final String predecessor = predecessor(contenders);
+                if (predecessor == null) {
+                    break;
+                }
+                LOG.log(Level.FINEST, "Waiting for lock predecessor:{0}", predecessor);
+                if (!waitForNodeRemoval(path + "/" + predecessor, deadline)) {
+                    LOG.log(Level.FINE, "Timeout Acquiring Lock {0}", path);
+                    // leave the queue, otherwise everyone behind us would
+                    // wait until our session expires
+                    abandon();
+                    metrics.timedOut(stats);
+                    return false;
+                }
             }
+        } catch (Exception e) {
+            abandon();
+            metrics.failed(stats);
+            throw e;
         }
+        metrics.acquired(stats, System.nanoTime() - start);
         LOG.log(Level.FINE, "Lock Acquired {0}", path);
         state = State.LOCKED;
+        return true;
+    }
 
+    /**
+     * Returns the number of contenders ahead of us in the queue.
+     *
+     * @param contenders the children of the lock ZNode
+     * @return the number of contenders with a lower sequence number than ours
+     */
+    private int predecessorCount(final List<String> contenders) {
+        int count = 0;
+        for (final String contender : contenders) {
+            final int contenderSequence = NodePoolPaths.sequenceNumber(contender);
+            if (contenderSequence >= 0 && contenderSequence < sequence) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Remove our contender ZNode after a failed acquisition.
+     */
+    private void abandon() {
+        try {
+            nodePool.getConn().delete().guaranteed().forPath(node);
+        } catch (NoNodeException e) {
+            // already gone
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, format("%s occurred while removing lock contender %s. Message: %s",
+                    e.getClass().getSimpleName(), node, e.getLocalizedMessage()));
+        }
+        node = null;
+        state = State.UNLOCKED;
     }
 
     /**
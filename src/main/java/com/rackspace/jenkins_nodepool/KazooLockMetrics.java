@@ -0,0 +1,189 @@
+package com.rackspace.jenkins_nodepool;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock acquisition statistics, shown on the NodePool management page so that slow or contended locks are visible.
+ * <p>
+ * Statistics are grouped by lock path with numeric segments (node ids) replaced by '*', e.g. every node lock is
+ * counted under /nodes/&#42;/lock, which keeps the number of entries bounded.
+ */
+public final class KazooLockMetrics {
+
+    private static final KazooLockMetrics INSTANCE = new KazooLockMetrics();
+
+    private final Map<String, PathStats> stats = new ConcurrentHashMap<>();
+
+    private KazooLockMetrics() {
+    }
+
+    /**
+     * Returns the shared lock statistics.
+     *
+     * @return the lock statistics
+     */
+    public static KazooLockMetrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Statistics for one group of lock paths
+     */
+    public static final class PathStats {
+        private final String path;
+        private final LongAdder acquired = new LongAdder();
+        private final LongAdder timeouts = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder waiting = new LongAdder();
+        private final LongAdder latencyNanos = new LongAdder();
+        private final AtomicLong maxLatencyNanos = new AtomicLong();
+        private final LongAdder depth = new LongAdder();
+        private final AtomicLong maxDepth = new AtomicLong();
+
+        PathStats(String path) {
+            this.path = path;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public long getAcquired() {
+            return acquired.sum();
+        }
+
+        public long getTimeouts() {
+            return timeouts.sum();
+        }
+
+        public long getFailures() {
+            return failures.sum();
+        }
+
+        /**
+         * @return the number of acquisitions currently in progress
+         */
+        public long getWaiting() {
+            return waiting.sum();
+        }
+
+        /**
+         * @return the mean time taken by successful acquisitions in milliseconds
+         */
+        public long getMeanLatencyMs() {
+            final long n = acquired.sum();
+            return n == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(latencyNanos.sum() / n);
+        }
+
+        /**
+         * @return the longest time taken by a successful acquisition in milliseconds
+         */
+        public long getMaxLatencyMs() {
+            return TimeUnit.NANOSECONDS.toMillis(maxLatencyNanos.get());
+        }
+
+        /**
+         * @return the mean number of contenders ahead in the queue when joining it, to two decimal places
+         */
+        public double getMeanDepth() {
+            final long n = acquired.sum() + timeouts.sum() + failures.sum();
+            return n == 0 ? 0 : Math.round(100.0 * depth.sum() / n) / 100.0;
+        }
+
+        /**
+         * @return the largest number of contenders ahead in the queue when joining it
+         */
+        public long getMaxDepth() {
+            return maxDepth.get();
+        }
+    }
+
+    /**
+     * Returns the statistics group for the given lock path.
+     *
+     * @param lockPath the path of the lock ZNode
+     * @return the statistics for the path
+     */
+    PathStats forPath(final String lockPath) {
+        return stats.computeIfAbsent(groupFor(lockPath), PathStats::new);
+    }
+
+    /**
+     * Returns the statistics of every lock path group, most contended first.
+     *
+     * @return a snapshot list of the statistics
+     */
+    public List<PathStats> getPathStats() {
+        final List<PathStats> list = new ArrayList<>(stats.values());
+        list.sort(Comparator.comparingLong(PathStats::getMaxDepth).reversed()
+                .thenComparing(PathStats::getPath));
+        return Collections.unmodifiableList(list);
+    }
+
+    /**
+     * Discards all statistics.
+     */
+    void reset() {
+        stats.clear();
+    }
+
+    void started(final PathStats s) {
+        s.waiting.increment();
+    }
+
+    void queued(final PathStats s, final int predecessors) {
+        s.depth.add(predecessors);
+        s.maxDepth.accumulateAndGet(predecessors, Math::max);
+    }
+
+    void acquired(final PathStats s, final long elapsedNanos) {
+        s.waiting.decrement();
+        s.acquired.increment();
+        s.latencyNanos.add(elapsedNanos);
+        s.maxLatencyNanos.accumulateAndGet(elapsedNanos, Math::max);
+        NodePoolMetrics.get().lockAcquired(elapsedNanos);
+    }
+
+    void timedOut(final PathStats s) {
+        s.waiting.decrement();
+        s.timeouts.increment();
+        NodePoolMetrics.get().lockTimedOut();
+    }
+
+    void failed(final PathStats s) {
+        s.waiting.decrement();
+        s.failures.increment();
+    }
+
+    /**
+     * Replaces the numeric segments of a lock path with '*'.
+     *
+     * @param lockPath the path of the lock ZNode
+     * @return the group name
+     */
+    static String groupFor(final String lockPath) {
+        final StringBuilder sb = new StringBuilder(lockPath.length());
+        int start = 0;
+        while (start <= lockPath.length()) {
+            int end = lockPath.indexOf('/', start);
+            if (end < 0) {
+                end = lockPath.length();
+            }
+            final String segment = lockPath.substring(start, end);
+            sb.append(NodePoolPaths.isDigits(segment) ? "*" : segment);
+            if (end < lockPath.length()) {
+                sb.append('/');
+            }
+            start = end + 1;
+        }
+        return sb.toString();
+    }
+}
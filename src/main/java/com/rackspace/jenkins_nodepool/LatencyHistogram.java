@@ -0,0 +1,160 @@
+package com.rackspace.jenkins_nodepool;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A fixed size, lock-free latency histogram in the style of HdrHistogram.
+ * <p>
+ * Values are recorded in microseconds into log-linear buckets: each power of two is split into 16 equal sub-buckets,
+ * so a percentile is accurate to within 1/16 (6.25%) of its value. Values up to about 12 days are tracked, larger ones
+ * are counted in the last bucket. Recording is a few atomic increments and allocates nothing.
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Largest tracked value is 2^MAX_EXPONENT - 1 microseconds
+     */
+    private static final int MAX_EXPONENT = 40;
+
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumMicros = new LongAdder();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    /**
+     * Records the time elapsed since the given start.
+     *
+     * @param startNanos a {@link System#nanoTime()} value
+     */
+    public void recordSince(final long startNanos) {
+        recordMicros(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+    }
+
+    /**
+     * Records a value.
+     *
+     * @param micros the value in microseconds, negative values are recorded as 0
+     */
+    public void recordMicros(final long micros) {
+        final long value = Math.max(0, micros);
+        counts.incrementAndGet(bucketIndex(value));
+        count.increment();
+        sumMicros.add(value);
+        if (value > maxMicros.get()) {
+            maxMicros.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    /**
+     * @return the number of recorded values
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return the mean of the recorded values in milliseconds
+     */
+    public double getMeanMs() {
+        final long n = count.sum();
+        return n == 0 ? 0 : toMs(sumMicros.sum() / n);
+    }
+
+    /**
+     * @return the largest recorded value in milliseconds
+     */
+    public double getMaxMs() {
+        return toMs(maxMicros.get());
+    }
+
+    /**
+     * Returns the value below which the given percentage of recorded values fall.
+     *
+     * @param percentile the percentile, 0 to 100
+     * @return the percentile in milliseconds, or 0 if nothing has been recorded
+     */
+    public double getPercentileMs(final double percentile) {
+        final long total = count.sum();
+        if (total == 0) {
+            return 0;
+        }
+        final long target = Math.max(1, (long) Math.ceil(Math.min(100.0, Math.max(0.0, percentile)) / 100.0 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                // the highest value in the bucket, but never more than the largest value actually seen
+                return toMs(Math.min(highestInBucket(i), maxMicros.get()));
+            }
+        }
+        return toMs(maxMicros.get());
+    }
+
+    /**
+     * Discards all recorded values.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.reset();
+        sumMicros.reset();
+        maxMicros.set(0);
+    }
+
+    /**
+     * Returns the bucket for a value.
+     *
+     * @param value a non-negative value
+     * @return the bucket index
+     */
+    static int bucketIndex(final long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent >= MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        final int shift = exponent - SUB_BUCKET_BITS;
+        final int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Returns the smallest value that falls in a bucket.
+     *
+     * @param index the bucket index
+     * @return the lowest value of the bucket
+     */
+    static long lowestInBucket(final int index) {
+        final int group = index / SUB_BUCKETS;
+        final int subBucket = index % SUB_BUCKETS;
+        if (group == 0) {
+            return subBucket;
+        }
+        return ((long) (SUB_BUCKETS + subBucket)) << (group - 1);
+    }
+
+    /**
+     * Returns the largest value that falls in a bucket.
+     *
+     * @param index the bucket index
+     * @return the highest value of the bucket
+     */
+    static long highestInBucket(final int index) {
+        return index == BUCKETS - 1 ? Long.MAX_VALUE : lowestInBucket(index + 1) - 1;
+    }
+
+    private static double toMs(final long micros) {
+        return Math.round(micros / 100.0) / 10.0;
+    }
+}
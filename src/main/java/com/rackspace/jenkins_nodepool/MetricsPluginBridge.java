@@ -0,0 +1,56 @@
+package com.rackspace.jenkins_nodepool;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import jenkins.metrics.api.Metrics;
+
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static java.lang.String.format;
+
+/**
+ * Registers {@link NodePoolMetrics} in the metrics plugin's MetricRegistry.
+ * <p>
+ * This is the only class that refers to the metrics plugin, which is an optional dependency, so it must only be loaded
+ * once the plugin is known to be installed. Every metric is registered as read-through gauges, the values stay in
+ * NodePoolMetrics and nothing is recorded twice.
+ */
+final class MetricsPluginBridge {
+
+    private static final Logger LOG = Logger.getLogger(MetricsPluginBridge.class.getName());
+
+    private MetricsPluginBridge() {
+    }
+
+    /**
+     * Returns a registrar that adds each metric to the metrics plugin's registry.
+     *
+     * @return the registrar
+     */
+    static BiConsumer<String, Object> registrar() {
+        final MetricRegistry registry = Metrics.metricRegistry();
+        return (name, metric) -> {
+            try {
+                if (metric instanceof NodePoolMetrics.Counter) {
+                    final NodePoolMetrics.Counter counter = (NodePoolMetrics.Counter) metric;
+                    registry.register(name, (Gauge<Long>) counter::getCount);
+                } else if (metric instanceof NodePoolMetrics.Gauge) {
+                    final NodePoolMetrics.Gauge gauge = (NodePoolMetrics.Gauge) metric;
+                    registry.register(name, (Gauge<Long>) gauge::getValue);
+                } else if (metric instanceof NodePoolMetrics.Timer) {
+                    final LatencyHistogram h = ((NodePoolMetrics.Timer) metric).getHistogram();
+                    registry.register(name + ".count", (Gauge<Long>) h::getCount);
+                    registry.register(name + ".mean_ms", (Gauge<Double>) h::getMeanMs);
+                    registry.register(name + ".p50_ms", (Gauge<Double>) () -> h.getPercentileMs(50));
+                    registry.register(name + ".p99_ms", (Gauge<Double>) () -> h.getPercentileMs(99));
+                    registry.register(name + ".max_ms", (Gauge<Double>) h::getMaxMs);
+                }
+            } catch (IllegalArgumentException e) {
+                // already registered, e.g. by an earlier instance of the plugin
+                LOG.log(Level.FINE, format("Metric %s already registered. Message: %s", name, e.getLocalizedMessage()));
+            }
+        };
+    }
+}
@@ -34,6 +34,7 @@ import hudson.model.Computer;
 import hudson.model.Describable;
 import hudson.model.Descriptor;
 import hudson.model.ItemGroup;
+import hudson.model.Label;
 import hudson.plugins.sshslaves.SSHLauncher;
 import hudson.security.ACL;
 import hudson.security.AccessControlled;
@@ -44,12 +45,14 @@ import hudson.util.ListBoxModel;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.text.MessageFormat;
-import java.time.LocalDateTime;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.servlet.ServletException;
@@ -57,9 +60,12 @@ import javax.servlet.ServletException;
 import jenkins.model.Jenkins;
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.api.transaction.CuratorOp;
+import org.apache.curator.framework.api.transaction.CuratorTransactionResult;
 import org.apache.curator.framework.imps.CuratorFrameworkState;
 import org.apache.curator.retry.ExponentialBackoffRetry;
 import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
 import org.kohsuke.stapler.*;
 
 import static java.lang.String.format;
@@ -95,6 +101,8 @@ public class NodePool implements Describable<NodePool> {
                 .namespace(zkRoot)
                 .retryPolicy(new ExponentialBackoffRetry(1000, 3))
                 .build();
+        conn.getConnectionStateListenable().addListener(
+                (client, newState) -> NodePoolMetrics.get().connectionState(newState));
         conn.start();
         return conn;
     }
@@ -102,9 +110,34 @@ public class NodePool implements Describable<NodePool> {
     // Apparently Charset isn't serialisable.
     private static final String charset = "UTF-8";
 
+    /**
+     * How often to check whether the build is still running while waiting for an agent to come online
+     */
+    private static final long BUILD_CHECK_INTERVAL_MS = 2000;
+
 
     private transient CuratorFramework conn;
 
+    /**
+     * Optional shared read cache of the node and request ZNodes, null unless enabled
+     */
+    private transient ZooKeeperCache cache;
+
+    /**
+     * Shared watch on the request root used to wait for requests to be fulfilled, created on first use
+     */
+    private transient NodeRequestStateDispatcher requestStateDispatcher;
+
+    /**
+     * Agents launched ahead of demand, created on first use
+     */
+    private transient WarmPool warmPool;
+
+    /**
+     * Gathers first attempts of the same label into shared requests, created on first use
+     */
+    private transient NodeRequestBatcher requestBatcher;
+
     /**
      * ZooKeeper connection string
      */
@@ -162,7 +195,12 @@ public class NodePool implements Describable<NodePool> {
     private Integer installTimeout;
 
     /**
-     * List of node requests submitted to this NodePool cluster
+     * Maximum number of agents provisioned at once, null for the ProvisioningExecutor default
+     */
+    private Integer maxConcurrentProvisions;
+
+    /**
+     * List of node requests submitted to this NodePool cluster, safe to iterate while requests are added and removed
      */
     transient List<NodeRequest> requests;
 
@@ -243,11 +281,15 @@ public class NodePool implements Describable<NodePool> {
     }
 
     /**
-     * Accept the node that was created to satisfy the given request.
+     * Accept the nodes that were created to satisfy the given request.
+     * <p>
+     * All of the allocated nodes are locked first, then the IN_USE state of every node and the deletion of the
+     * request are committed as a single ZooKeeper transaction. Either all nodes are accepted or none are, in
+     * which case only the locks need to be released and the nodes remain available to NodePool.
      *
      * @param request node request
-     * @return node name as a String
-     * @throws java.lang.Exception on ZooKeeper error
+     * @return the accepted nodes
+     * @throws java.lang.Exception on ZooKeeper error, or if the nodes could not be accepted
      */
     public List<NodePoolNode> acceptNodes(NodeRequest request) throws Exception {
 
@@ -255,38 +297,71 @@ public class NodePool implements Describable<NodePool> {
 
         // refer to the request "nodeset" to know which nodes to lock.
         final List<NodePoolNode> allocatedNodes = request.getAllocatedNodes();
-        final List<NodePoolNode> acceptedNodes = new ArrayList<>();
+        final List<NodePoolNode> lockedNodes = new ArrayList<>();
 
         try {
+            final ProvisioningMetrics.Series metrics = ProvisioningMetrics.get().series(this, request.getJob());
             for (NodePoolNode node : allocatedNodes) {
                 LOG.log(INFO, format("Accepting node %s on behalf of request %s", node, request.getZKID()));
-                node.setInUse(); // TODO: debug making sure this lock stuff actually works
-                acceptedNodes.add(node);
-
+                final long lockStart = System.nanoTime();
+                node.lock();
+                metrics.record(ProvisioningMetrics.Phase.NODE_LOCK, lockStart);
+                lockedNodes.add(node);
             }
+            commitAcceptance(request, lockedNodes);
+            return lockedNodes;
         } catch (Exception e) {
-            // (if we hit this, then the request will get re-created on the next isDone() poll.)
-            LOG.log(WARNING, "Failed to lock node" + e.getMessage(), e);
+            // (if we hit this, then the request will get re-created on the next attempt.)
+            LOG.log(WARNING, "Failed to accept nodes: " + e.getMessage(), e);
 
-            // roll back acceptance on any nodes we managed to successfully accept
-            for (NodePoolNode acceptedNode : acceptedNodes) {
+            // nothing was written, so just give up the locks we managed to take
+            for (NodePoolNode lockedNode : lockedNodes) {
                 try {
-                    LOG.log(INFO, format("Releasing node %s on behalf of request %s", acceptedNode, request.getZKID()));
-                    acceptedNode.release();
-
+                    LOG.log(INFO, format("Unlocking node %s on behalf of request %s", lockedNode, request.getZKID()));
+                    lockedNode.unlock();
                 } catch (Exception lockException) {
-                    LOG.log(WARNING, "Failed to release lock on node " + acceptedNode.getName() + ": "
+                    LOG.log(WARNING, "Failed to release lock on node " + lockedNode.getName() + ": "
                             + lockException.getMessage(), lockException);
                 }
             }
-
+            throw new NodePoolException(format("Failed to accept nodes for request %s", request.getZKID()), e);
         } finally {
-            // regardless of success locking node, delete the request.
+            // regardless of success locking node, delete the request (normally already done by the transaction).
             requests.remove(request);
             request.delete();
         }
+    }
 
-        return acceptedNodes;
+    /**
+     * Marks the given (locked) nodes as IN_USE and deletes the request in a single transaction. The node writes are
+     * conditional on the version that was read, so the whole transaction is rebuilt and retried if NodePool
+     * modifies one of the nodes in the meantime.
+     *
+     * @param request the fulfilled node request
+     * @param nodes   the locked nodes allocated to the request
+     * @throws Exception if the transaction fails
+     */
+    private void commitAcceptance(NodeRequest request, List<NodePoolNode> nodes) throws Exception {
+        for (int attempt = 1; ; attempt++) {
+            final List<CuratorOp> ops = new ArrayList<>();
+            for (NodePoolNode node : nodes) {
+                ops.add(node.setStateOp(NodePoolState.IN_USE));
+            }
+            ops.add(request.deleteOp());
+            try {
+                final List<CuratorTransactionResult> results = conn.transaction().forOperations(ops);
+                for (int i = 0; i < nodes.size(); i++) {
+                    nodes.get(i).stateWritten(results.get(i).getResultStat());
+                }
+                return;
+            } catch (KeeperException.BadVersionException e) {
+                if (attempt >= ZooKeeperObject.MAX_UPDATE_ATTEMPTS) {
+                    throw e;
+                }
+                LOG.log(FINE, format("Concurrent modification while accepting nodes for request %s, retrying",
+                        request.getZKID()));
+            }
+        }
     }
 
     public Integer getRequestTimeout() {
@@ -310,10 +385,71 @@ public class NodePool implements Describable<NodePool> {
         return conn;
     }
 
+    /**
+     * Returns the shared read cache for this cluster's node and request ZNodes.
+     *
+     * @return the cache, or null if caching is disabled or the cache could not be started
+     */
+    public ZooKeeperCache getCache() {
+        initTransients();
+        return cache;
+    }
+
+    /**
+     * Returns the shared request state dispatcher for this cluster, starting it on first use.
+     *
+     * @return the dispatcher, or null if it is disabled or could not be started
+     */
+    synchronized NodeRequestStateDispatcher getRequestStateDispatcher() {
+        initTransients();
+        if (requestStateDispatcher == null && conn != null && requestRoot != null
+                && NodeRequestStateDispatcher.enabled()) {
+            final NodeRequestStateDispatcher dispatcher = new NodeRequestStateDispatcher(conn, "/" + requestRoot);
+            try {
+                dispatcher.start();
+                requestStateDispatcher = dispatcher;
+            } catch (ZookeeperException e) {
+                // fall back to a watcher per request
+                dispatcher.close();
+            }
+        }
+        return requestStateDispatcher;
+    }
+
+    /**
+     * Waits, without holding a thread, for the given request to be fulfilled, fail, or become unnecessary because the
+     * builds of all the jobs it was made for have finished. The caller must check the state it completes with.
+     *
+     * @param request             the node request
+     * @param requestTimeoutInSec how long to wait
+     * @return a future for the state that ended the wait, null if the builds have finished, or completes
+     * exceptionally with a TimeoutException
+     */
+    private CompletableFuture<NodePoolState> awaitFulfilled(final NodeRequest request, final int requestTimeoutInSec) {
+        final NodeRequestStateDispatcher dispatcher = getRequestStateDispatcher();
+        if (dispatcher != null) {
+            return dispatcher.await(request.getPath(), NodePoolState.FULFILLED, request.getJobs(),
+                    requestTimeoutInSec, TimeUnit.SECONDS);
+        }
+        final NodePoolRequestStateWatcher watcher = new NodePoolRequestStateWatcher(
+                conn, request.getPath(), NodePoolState.FULFILLED, request.getJobs());
+        return watcher.waitUntilDoneAsync(requestTimeoutInSec, TimeUnit.SECONDS);
+    }
+
     public String getConnectionString() {
         return connectionString;
     }
 
+    /**
+     * Returns the name used for this NodePool in statistics. Several NodePools may share a ZooKeeper ensemble, so the
+     * label prefix is included.
+     *
+     * @return the label prefix and connection string
+     */
+    public String getClusterName() {
+        return format("%s@%s", labelPrefix, connectionString);
+    }
+
     public String getCredentialsId() {
         return credentialsId;
     }
@@ -358,6 +494,13 @@ public class NodePool implements Describable<NodePool> {
         return priority;
     }
 
+    /**
+     * @return the maximum number of agents provisioned at once, or null to use the default
+     */
+    public Integer getMaxConcurrentProvisions() {
+        return maxConcurrentProvisions;
+    }
+
     public String getRequestRoot() {
         return requestRoot;
     }
@@ -387,6 +530,8 @@ public class NodePool implements Describable<NodePool> {
 
     public void setConnectionString(String connectionString) {
         if (!connectionString.equals(this.connectionString)) {
+            closeCache();
+            closeRequestStateDispatcher();
             conn = NodePool.createZKConnection(connectionString, getZooKeeperRoot());
         }
         this.connectionString = connectionString;
@@ -408,6 +553,11 @@ public class NodePool implements Describable<NodePool> {
         this.priority = priority;
     }
 
+    @DataBoundSetter
+    public void setMaxConcurrentProvisions(Integer maxConcurrentProvisions) {
+        this.maxConcurrentProvisions = maxConcurrentProvisions;
+    }
+
     public void setRequestRoot(String requestRoot) {
         this.requestRoot = requestRoot;
     }
@@ -417,7 +567,7 @@ public class NodePool implements Describable<NodePool> {
     }
 
     public void setRequests(List<NodeRequest> requests) {
-        this.requests = requests;
+        this.requests = requests == null ? null : new CopyOnWriteArrayList<>(requests);
         initTransients();
     }
 
@@ -427,7 +577,7 @@ public class NodePool implements Describable<NodePool> {
 
     private void initTransients() {
         if (requests == null) {
-            requests = new ArrayList<>();
+            requests = new CopyOnWriteArrayList<>();
         }
         if (conn == null && connectionString != null) {
             conn = NodePool.createZKConnection(connectionString, zooKeeperRoot);
@@ -435,6 +585,36 @@ public class NodePool implements Describable<NodePool> {
         if (conn != null && conn.getState() != CuratorFrameworkState.STARTED){
             conn.start();
         }
+        if (cache == null && conn != null && nodeRoot != null && requestRoot != null && ZooKeeperCache.enabled()) {
+            final ZooKeeperCache newCache = new ZooKeeperCache(conn, "/" + nodeRoot, "/" + requestRoot);
+            try {
+                newCache.start();
+                cache = newCache;
+            } catch (ZookeeperException e) {
+                // reads will go directly to ZooKeeper
+                newCache.close();
+            }
+        }
+    }
+
+    /**
+     * Closes the shared read cache, if there is one.
+     */
+    private void closeCache() {
+        if (cache != null) {
+            cache.close();
+            cache = null;
+        }
+    }
+
+    /**
+     * Closes the shared request state dispatcher, if there is one.
+     */
+    private synchronized void closeRequestStateDispatcher() {
+        if (requestStateDispatcher != null) {
+            requestStateDispatcher.close();
+            requestStateDispatcher = null;
+        }
     }
 
     /**
@@ -445,69 +625,117 @@ public class NodePool implements Describable<NodePool> {
      * @throws NodePoolException if the request id cannot be found
      */
     String idForPath(String path) throws NodePoolException {
-        if (path.contains("-")) {
-            List<String> parts = Arrays.asList(path.split("-"));
-            return parts.get(parts.size() - 1);
-
+        final String id = NodePoolPaths.lastDashSegment(path);
+        if (id != null) {
+            return id;
         } else {
             throw new NodePoolException("Invalid node path while looking for request id: " + path);
         }
     }
 
     /**
-     * Submit request for node(s) required to execute the given task based on the nodes associated with the specified
-     * label. Uses a default timeout of 60 seconds.
+     * Record a failed provisioning attempt and release anything that was allocated for it.
      *
-     * @param job the job to execute
-     * @throws IllegalArgumentException if timeout is less than 1 second
-     * @throws Exception                if an error occurs managing the provision components
+     * @param job the job the attempt was made for
+     * @param e   the reason the attempt failed
      */
-    public void provisionNode(NodePoolJob job) throws Exception {
-        provisionNode(job, requestTimeout, maxAttempts, installTimeout);
+    private void failAttempt(NodePoolJob job, Throwable e) {
+        // provisioning attempt failed
+        job.failAttempt(e instanceof Exception ? (Exception) e : new NodePoolException(e.toString(), e));
+        LOG.severe("Caught exception in attemptProvision:" + e.getClass() + " " + e.getMessage());
+        try {
+            LOG.log(FINE, "Releasing node after failed provisioning attempt:{0}", job.getNodePoolNode().getName());
+            job.getNodePoolNode().release();
+            try {
+                // Findbugs :(
+                NodePoolSlave nodePoolSlave = job.getNodePoolSlave();
+                if (nodePoolSlave == null) {
+                    return;
+                }
+                Computer c = nodePoolSlave.toComputer();
+                if (c != null) {
+                    c.doDoDelete();
+                }
+            } catch (IOException ex) {
+                Jenkins.getInstance().removeNode(job.getNodePoolSlave());
+            }
+        } catch (Exception ex) {
+            // Failed to cleanup node after a failed attempt
+            // This is only an optimisation, the Janitor
+            // will ensure cleanup is completed once the
+            // build is complete.
+            LOG.log(FINE, "Failed to cleanup after a failed provision attempt:{0}", e.toString());
+        }
     }
 
     /**
-     * Submit request for node(s) required to execute the given task.
+     * Submit request for node(s) required to execute the given task without blocking the calling thread.
+     *
+     * @param job job/task/build being executed
+     * @return a future that completes when the node is online, or completes exceptionally with a NodePoolException
+     * once all attempts have failed
+     */
+    public CompletableFuture<Void> provisionNodeAsync(NodePoolJob job) {
+        return provisionNodeAsync(job, requestTimeout, maxAttempts, installTimeout);
+    }
+
+    /**
+     * Submit request for node(s) required to execute the given task. Each step of an attempt is a chained stage: the
+     * request is created with a background ZooKeeper call, the wait for fulfilment is watch driven, and the wait for
+     * the agent to come online is a scheduled check, so no thread is parked while a request is outstanding. Short
+     * blocking steps run on the bounded NodePoolScheduler worker pool.
      *
      * @param job               job/task/build being executed
      * @param requestTimeoutSec the timeout in seconds to provision the node(s)
      * @param maxAttempts       maximum number of times to try to provision the node
      * @param installTimeoutSec timeout in seconds to connect to a new node and provision the JRE
-     * @throws IllegalArgumentException if timeout is less than 1 second or if the maxAttempts is less than 1
-     * @throws NodePoolException        if an error occurs managing the provision components
+     * @return a future that completes when provisioning is finished
      */
-    void provisionNode(NodePoolJob job, int requestTimeoutSec, int maxAttempts, int installTimeoutSec) throws NodePoolException {
-
+    CompletableFuture<Void> provisionNodeAsync(NodePoolJob job, int requestTimeoutSec, int maxAttempts,
+                                               int installTimeoutSec) {
         if (requestTimeoutSec < 1) {
-            throw new IllegalArgumentException("Timeout value is less than 1 second: " + requestTimeoutSec);
+            return NodePoolScheduler.failed(
+                    new IllegalArgumentException("Timeout value is less than 1 second: " + requestTimeoutSec));
         }
 
         if (maxAttempts < 1) {
-            throw new IllegalArgumentException("Maximum attempts value is less than 1: " + maxAttempts);
+            return NodePoolScheduler.failed(
+                    new IllegalArgumentException("Maximum attempts value is less than 1: " + maxAttempts));
         }
 
         initTransients();
 
-        for (int i = 0; i < maxAttempts; i++) {
-            try {
-                if (job.getRun().isBuilding()) {
-                    attemptProvision(job, requestTimeoutSec, installTimeoutSec);
-                    break;
-                } else {
-                    // build has been cancelled
-                    // nothing else to do, janitor will cleanup any remaining objects
-                    return;
-                }
+        return provisionAttemptAsync(job, 0, requestTimeoutSec, maxAttempts, installTimeoutSec);
+    }
 
-            } catch (Exception e) {
-                job.logToBoth(format("Node provisioning attempt for task: %s failed. Message: %s",
-                        job.getTask().getName(), e.getLocalizedMessage()), WARNING);
-                if (i + 1 == maxAttempts) {
-                    throw new NodePoolException(format("Maximum attempts exceeded: %d out of %d.",
-                            (i + 1), maxAttempts));
-                }
-            }
+    /**
+     * Make provisioning attempt number `attempt`, chaining the next attempt on failure.
+     */
+    private CompletableFuture<Void> provisionAttemptAsync(NodePoolJob job, int attempt, int requestTimeoutSec,
+                                                          int maxAttempts, int installTimeoutSec) {
+        if (!job.getRun().isBuilding()) {
+            // build has been cancelled
+            // nothing else to do, janitor will cleanup any remaining objects
+            return CompletableFuture.completedFuture(null);
         }
+        // the first attempt may share a request with other jobs of the same label, retries are made alone
+        final NodeRequestBatcher batcher = getRequestBatcher();
+        final CompletableFuture<Void> attemptFuture = attempt == 0 && batcher.isEnabled()
+                ? batcher.submit(job)
+                : attemptProvisionAsync(job, requestTimeoutSec, installTimeoutSec);
+        return attemptFuture.handle((v, t) -> {
+            if (t == null) {
+                return CompletableFuture.<Void>completedFuture(null);
+            }
+            final Throwable e = NodePoolScheduler.unwrap(t);
+            job.logToBoth(format("Node provisioning attempt for task: %s failed. Message: %s",
+                    job.getTask().getName(), e.getLocalizedMessage()), WARNING);
+            if (attempt + 1 >= maxAttempts) {
+                return NodePoolScheduler.<Void>failed(new NodePoolException(format(
+                        "Maximum attempts exceeded: %d out of %d.", (attempt + 1), maxAttempts)));
+            }
+            return provisionAttemptAsync(job, attempt + 1, requestTimeoutSec, maxAttempts, installTimeoutSec);
+        }).thenCompose(f -> f);
     }
 
     /**
@@ -516,149 +744,256 @@ public class NodePool implements Describable<NodePool> {
      * @param job               object for tracking overall progress of the task/job
      * @param requestTimeoutSec watcher timeout
      * @param installTimeoutSec ssh connection / jre install timeout
-     * @throws Exception if the provisioning attempt fails
+     * @return a future that completes when the attempt has finished
      */
-    void attemptProvision(NodePoolJob job, int requestTimeoutSec, int installTimeoutSec) throws Exception {
-
-        //final Task task = job.getTask();
-
-        //job.logToBoth(String.format("Waiting on node to become available for task: %s with label: %s with timeout: %d seconds...",
-        //        task.getName(), job.getLabel(), timeoutInSec));
-
-        final NodeRequest request = createNodeRequest(job);
-        requests.add(request);
-
-        try {
+    CompletableFuture<Void> attemptProvisionAsync(NodePoolJob job, int requestTimeoutSec, int installTimeoutSec) {
+        final NodePoolScheduler scheduler = NodePoolScheduler.get();
+        final long createStart = System.nanoTime();
+        return createNodeRequestAsync(job).thenComposeAsync(request -> {
+            ProvisioningMetrics.get().series(this, job).record(ProvisioningMetrics.Phase.REQUEST_CREATE, createStart);
+            requests.add(request);
             job.addAttempt(request);
-            attemptProvisionNode2(request, requestTimeoutSec, installTimeoutSec);
-        } catch (Exception e) {
-            // provisioning attempt failed
-            job.failAttempt(e);
-            LOG.severe("Caught exception in attemptProvision:" + e.getClass() + " " + e.getMessage());
-            try {
-                LOG.log(FINE, "Releasing node after failed provisioning attempt:{0}", job.getNodePoolNode().getName());
-                job.getNodePoolNode().release();
-                try {
-                    // Findbugs :(
-                    NodePoolSlave nodePoolSlave = job.getNodePoolSlave();
-                    if (nodePoolSlave == null) {
-                        return;
-                    }
-                    Computer c = nodePoolSlave.toComputer();
-                    if (c != null) {
-                        c.doDoDelete();
-                    }
-                } catch (IOException ex) {
-                    Jenkins.getInstance().removeNode(job.getNodePoolSlave());
-                }
-            } catch (Exception ex) {
-                // Failed to cleanup node after a failed attempt
-                // This is only an optimisation, the Janitor
-                // will ensure cleanup is completed once the
-                // build is complete.
-                LOG.log(FINE, "Failed to cleanup after a failed provision attempt:{0}", e.toString());
-            }
-            throw e;
-        } finally {
-            requests.remove(request);
-            request.delete();
-        }
-        job.succeed();
-    }
-
-    NodeRequest createNodeRequest(final NodePoolJob job) throws Exception {
-        return new NodeRequest(this, getPriority(), job);
+            return attemptProvisionNodeAsync(request, requestTimeoutSec, installTimeoutSec)
+                    .whenCompleteAsync((v, t) -> {
+                        if (t != null) {
+                            failAttempt(job, NodePoolScheduler.unwrap(t));
+                        }
+                        requests.remove(request);
+                        request.delete();
+                        if (t == null) {
+                            job.succeed();
+                        }
+                    }, scheduler.getWorker());
+        }, scheduler.getWorker());
     }
 
     /**
-     * Make a single provisioning attempt.
+     * Wait for a created request to be fulfilled and bring its node(s) online.
      *
      * @param request             node request object
      * @param requestTimeoutInSec watcher timeout
-     * @throws Exception if provisioning fails
+     * @param installTimeoutSec   ssh connection / jre install timeout
+     * @return a future that completes when the allocated node(s) are online
      */
-    void attemptProvisionNode2(final NodeRequest request,
-                               final int requestTimeoutInSec, final int installTimeoutSec) throws Exception {
-
-        List<NodePoolNode> allocatedNodes;
-        NodePoolJob nodePoolJob = request.getJob();
+    CompletableFuture<Void> attemptProvisionNodeAsync(final NodeRequest request,
+                                                      final int requestTimeoutInSec, final int installTimeoutSec) {
+        final NodePoolScheduler scheduler = NodePoolScheduler.get();
+        final NodePoolJob nodePoolJob = request.getJob();
         if (nodePoolJob == null) {
-            throw new NodePoolException("NodePoolJob null in NodePool.attemptProvision2 for request:" + request);
-        }
-        // Let's create a node pool watcher and wait until the request is in the desired state
-        // (or until we're timed out)
-        final NodePoolRequestStateWatcher watcher = new NodePoolRequestStateWatcher(
-                conn, request.getPath(), NodePoolState.FULFILLED, nodePoolJob);
-
-        try {
-            watcher.waitUntilDone(requestTimeoutInSec, TimeUnit.SECONDS);
-        } catch (InterruptedException e) {
-            request.delete();
-            throw new InterruptedException("Timeout waiting for request to get fulfilled: "
-                    + e.getMessage());
-        } catch (NodePoolException e) {
-            request.delete();
-            throw e;
+            return NodePoolScheduler.failed(
+                    new NodePoolException("NodePoolJob null in NodePool.attemptProvisionNodeAsync for request:" + request));
         }
-
-        // Success represents is request fulfilled - everything else is a problem.
-        if (request.getState() == NodePoolState.FULFILLED) {
-            allocatedNodes = acceptNodes(request);
-
-            // Get allocated nodes from the request and add to Jenkins
+        return awaitAndAcceptAsync(request, nodePoolJob, requestTimeoutInSec).thenCompose(allocatedNodes -> {
+            // Get allocated nodes from the request and add to Jenkins, one after the other
+            CompletableFuture<Void> launched = CompletableFuture.completedFuture(null);
             for (NodePoolNode node : allocatedNodes) {
-                // This creates the slave, then the launcher and computer
-                // it returns before the launch is complete, so errors are
-                // not handled.
-                final NodePoolSlave nps = new NodePoolSlave(node, getCredentialsId(), nodePoolJob, getJdkHome(), getJdkInstallationScript());
-                nodePoolJob.setNodePoolSlave(nps);
-                Jenkins.getInstance().addNode(nps);
-
-                LocalDateTime launchDeadline = LocalDateTime.now().plusSeconds(installTimeoutSec);
-                NodePoolComputer npc;
-                while (true) {
-                    npc = (NodePoolComputer) Jenkins.getInstance().getComputer(nodePoolJob.getNodePoolNode().getName());
-
-                    if (npc != null && !npc.isOffline()) {
-                        // node is online, great, stop waiting for it.
-                        break;
-                    }
+                launched = launched.thenCompose(x -> scheduler.compose(
+                        () -> launchAgentAsync(request, node, nodePoolJob, installTimeoutSec)));
+            }
+            return launched;
+        });
+    }
 
-                    // Check for conditions that mean that we no longer
-                    // need to wait for this node (Build finished and Timeout)
-                    if (!nodePoolJob.getRun().isBuilding()) {
-                        // If the build has completed, we no longer care if
-                        // the node managed to come online, so stop waiting.
-                        break;
+    /**
+     * Makes a single provisioning attempt for several jobs of the same label with one multi-node request. Each job is
+     * given one of the allocated nodes and the agents are launched independently, so one failed launch only fails
+     * its own job. The request is waited for until it is fulfilled or none of the jobs' builds is running any more.
+     *
+     * @param jobs              the jobs, all for the same label
+     * @param requestTimeoutSec watcher timeout
+     * @param installTimeoutSec ssh connection / jre install timeout
+     * @return a future per job, in the order of the jobs, that completes when the job's agent is online
+     */
+    List<CompletableFuture<Void>> attemptProvisionBatchAsync(final List<NodePoolJob> jobs, final int requestTimeoutSec,
+                                                             final int installTimeoutSec) {
+        initTransients();
+        final NodePoolScheduler scheduler = NodePoolScheduler.get();
+        final NodePoolJob first = jobs.get(0);
+        final long createStart = System.nanoTime();
+        final CompletableFuture<NodeRequest> created = NodeRequest.createBatchAsync(this, getPriority(), jobs);
+        final CompletableFuture<List<NodePoolNode>> accepted = created.thenComposeAsync(request -> {
+            ProvisioningMetrics.get().series(this, first).record(ProvisioningMetrics.Phase.REQUEST_CREATE, createStart);
+            LOG.log(FINE, format("Requested %d nodes for label %s with request %s", jobs.size(), first.getLabel(),
+                    request.getZKID()));
+            requests.add(request);
+            for (NodePoolJob job : jobs) {
+                job.addAttempt(request);
+            }
+            return awaitAndAcceptAsync(request, first, requestTimeoutSec).whenComplete((nodes, t) -> {
+                requests.remove(request);
+                request.delete();
+            });
+        }, scheduler.getWorker());
+
+        final List<CompletableFuture<Void>> results = new ArrayList<>();
+        for (NodePoolJob job : jobs) {
+            results.add(accepted.thenCompose(nodes -> {
+                for (NodePoolNode node : nodes) {
+                    if (node.getJob() == job) {
+                        return scheduler.compose(() -> launchAgentAsync(created.join(), node, job, installTimeoutSec));
                     }
-                    if (LocalDateTime.now().isAfter(launchDeadline)) {
-                        LOG.warning(format("Launch deadline expired: %s for job: %s", nps.getDisplayName(), nodePoolJob.getRun().getDisplayName()));
-                        break;
+                }
+                return NodePoolScheduler.<Void>failed(new NodePoolException(
+                        "No node was allocated for " + job + " by request " + created.join().getZKID()));
+            }).whenCompleteAsync((v, t) -> {
+                if (t != null) {
+                    // as for a single request, there is no attempt to fail if the request couldn't be created
+                    if (!created.isCompletedExceptionally()) {
+                        failAttempt(job, NodePoolScheduler.unwrap(t));
                     }
+                } else {
+                    job.succeed();
+                }
+            }, scheduler.getWorker()));
+        }
+        return results;
+    }
 
-                    Thread.sleep(500);
+    /**
+     * Waits, without holding a thread, for a request to be fulfilled and then accepts its nodes.
+     *
+     * @param request             node request object
+     * @param nodePoolJob         the job the wait is recorded for
+     * @param requestTimeoutInSec watcher timeout
+     * @return a future holding the accepted nodes
+     */
+    private CompletableFuture<List<NodePoolNode>> awaitAndAcceptAsync(final NodeRequest request,
+                                                                      final NodePoolJob nodePoolJob,
+                                                                      final int requestTimeoutInSec) {
+        final NodePoolScheduler scheduler = NodePoolScheduler.get();
+        // Wait until the request is in the desired state (or until we're timed out)
+        final long waitStart = System.nanoTime();
+        return awaitFulfilled(request, requestTimeoutInSec).handleAsync((state, t) -> {
+            if (t != null) {
+                request.delete();
+                final Throwable e = NodePoolScheduler.unwrap(t);
+                if (e instanceof TimeoutException) {
+                    throw new CompletionException(new NodePoolException(
+                            "Timeout waiting for request to get fulfilled: " + e.getMessage()));
                 }
+                throw new CompletionException(e);
+            }
+            // Success represents is request fulfilled - everything else is a problem.
+            if (state != NodePoolState.FULFILLED) {
+                throw new CompletionException(new NodePoolException(format(
+                        "Request failed or aborted while waiting for request state: %s, actual state: %s",
+                        NodePoolState.FULFILLED, state)));
+            }
+            ProvisioningMetrics.get().series(this, nodePoolJob).record(ProvisioningMetrics.Phase.REQUEST_WAIT, waitStart);
+            try {
+                return acceptNodes(request);
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, scheduler.getWorker());
+    }
 
-                if (nodePoolJob.getRun().isBuilding()) {
-                    // build still running
-                    if (npc == null || npc.isOffline()) {
-                        // build still running and node failed to come online
-                        throw new NodePoolException("Failed to launch Jenkins agent on " + nps.getNodePoolNode().getName() + " NPC: " + npc);
-                    } else {
-                        // build running and node is online, add some details to the logs
-                        nodePoolJob.logToBoth("NodePoolSlave instance " + nps.getNodePoolNode().getName() +
-                                " with host: " + nps.getNodePoolNode().getHost() +
-                                " with label: " + request.getJenkinsLabel().getDisplayName() +
-                                " from task: " + request.getTask().getName() +
-                                " for build: " + nodePoolJob.getBuildId() +
-                                " is online.");
+    /**
+     * Adds an agent for the given node to Jenkins and waits, without holding a thread, for it to come online.
+     *
+     * @param request           the fulfilled node request
+     * @param node              the accepted node
+     * @param nodePoolJob       the job the node was requested for
+     * @param installTimeoutSec ssh connection / jre install timeout
+     * @return a future that completes when the agent is online or is no longer needed
+     * @throws Exception if the agent can't be added to Jenkins
+     */
+    private CompletableFuture<Void> launchAgentAsync(final NodeRequest request, final NodePoolNode node,
+                                                     final NodePoolJob nodePoolJob, final int installTimeoutSec)
+            throws Exception {
+        // This creates the slave, then the launcher and computer
+        // it returns before the launch is complete, so errors are
+        // not handled.
+        final NodePoolScheduler scheduler = NodePoolScheduler.get();
+        final NodePoolSlave nps = new NodePoolSlave(node, getCredentialsId(), nodePoolJob, getJdkHome(), getJdkInstallationScript());
+        nodePoolJob.setNodePoolSlave(nps);
+
+        // register before adding the node so the online event can't be missed
+        final String name = nps.getNodeName();
+        final CompletableFuture<Void> online = NodePoolComputerListener.awaitOnline(name);
+        Jenkins.getInstance().addNode(nps);
+
+        // If the build has completed, we no longer care if
+        // the node managed to come online, so stop waiting.
+        scheduler.pollUntil(() -> !nodePoolJob.isNeeded(), online::isDone,
+                BUILD_CHECK_INTERVAL_MS, installTimeoutSec, TimeUnit.SECONDS)
+                .thenAccept(buildFinished -> {
+                    if (buildFinished) {
+                        online.complete(null);
                     }
+                });
+
+        return scheduler.withTimeout(online, installTimeoutSec, TimeUnit.SECONDS, () -> new TimeoutException(
+                format("Launch deadline expired: %s for job: %s", nps.getDisplayName(), nodePoolJob.getBuildId()))
+        ).handleAsync((v, t) -> {
+            if (!nodePoolJob.isNeeded()) {
+                return null;
+            }
+            final Computer npc = Jenkins.getInstance().getComputer(name);
+            if (t != null || npc == null || npc.isOffline()) {
+                final Throwable cause = t == null ? null : NodePoolScheduler.unwrap(t);
+                if (cause != null) {
+                    LOG.warning(cause.getMessage());
                 }
+                // build still running and node failed to come online
+                throw new CompletionException(new NodePoolException(
+                        "Failed to launch Jenkins agent on " + nps.getNodePoolNode().getName() + " NPC: " + npc, cause));
             }
-        } else {
-            throw new Exception(format("Request failed or aborted while waiting for request state: %s, actual state: %s",
-                    NodePoolState.FULFILLED, request.getState()));
+            // build running and node is online, add some details to the logs
+            nodePoolJob.logToBoth("NodePoolSlave instance " + nps.getNodePoolNode().getName() +
+                    " with host: " + nps.getNodePoolNode().getHost() +
+                    " with label: " + request.getJenkinsLabel().getDisplayName() +
+                    " from task: " + (nodePoolJob.getTask() == null ? "warm pool" : nodePoolJob.getTask().getName()) +
+                    " for build: " + nodePoolJob.getBuildId() +
+                    " is online.");
+            return null;
+        }, scheduler.getWorker());
+    }
+
+    /**
+     * Provision an agent for the warm pool: a single attempt whose agent is not bound to any build.
+     *
+     * @param job a warm job, see {@link NodePoolJob#warm(Label)}
+     * @return a future holding the agent once it is online
+     */
+    CompletableFuture<NodePoolSlave> provisionWarmAsync(final NodePoolJob job) {
+        initTransients();
+        return attemptProvisionAsync(job, requestTimeout, installTimeout).thenApply(v -> job.getNodePoolSlave());
+    }
+
+    /**
+     * Returns the warm pool of this NodePool.
+     *
+     * @return the warm pool
+     */
+    synchronized WarmPool getWarmPool() {
+        if (warmPool == null) {
+            warmPool = new WarmPool(this);
         }
+        return warmPool;
+    }
+
+    /**
+     * Returns the request batcher of this NodePool.
+     *
+     * @return the request batcher
+     */
+    synchronized NodeRequestBatcher getRequestBatcher() {
+        if (requestBatcher == null) {
+            requestBatcher = new NodeRequestBatcher(
+                    jobs -> attemptProvisionBatchAsync(jobs, requestTimeout, installTimeout));
+        }
+        return requestBatcher;
+    }
+
+    /**
+     * Creates the request ZNode for a job with a background ZooKeeper call.
+     *
+     * @param job the job the node is requested for
+     * @return a future holding the created request
+     */
+    CompletableFuture<NodeRequest> createNodeRequestAsync(final NodePoolJob job) {
+        return NodeRequest.createAsync(this, getPriority(), job);
     }
 
     /**
@@ -760,6 +1095,8 @@ public class NodePool implements Describable<NodePool> {
      */
     void cleanup() {
         LOG.log(INFO, format("Removing Nodepool Configuration %s", connectionString));
+        closeCache();
+        closeRequestStateDispatcher();
         if (conn != null) {
             conn.close();
         }
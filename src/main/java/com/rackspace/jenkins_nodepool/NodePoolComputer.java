@@ -109,6 +109,14 @@ public class NodePoolComputer extends SlaveComputer {
         return this.nodePoolJob;
     }
 
+    /**
+     * Set the job when a warm pool agent is bound to a build
+     * @param npj the job of the build
+     */
+    void setJob(NodePoolJob npj){
+        this.nodePoolJob = npj;
+    }
+
     public final void setNodePoolNode(NodePoolNode npn) {
         this.nodePoolNode = npn;
     }
@@ -231,19 +239,12 @@ public class NodePoolComputer extends SlaveComputer {
 
         LOG.log(Level.INFO, "Deleting NodePoolNode: {0} after task: {1}", new Object[]{computer,
                 task.getFullDisplayName()});
-        try{
-            Computer.threadPoolForRemoting.submit(() -> {
-                // Wait for other processes that may still be cleaning up
-                // as its likely a build has just finished. Not waiting
-                // here leads to IOExceptions in the log.
-                // This time is essentially free as its in a background
-                // thread.
-                try {
-                    Thread.sleep(30000L);
-                } catch (InterruptedException ex) {
-                    // meh we woke up
-                }
-
+        try {
+            // Wait for other processes that may still be cleaning up
+            // as its likely a build has just finished. Not waiting
+            // here leads to IOExceptions in the log. The deletion queue
+            // times the wait, no thread is held while waiting.
+            DeferredDeletionQueue.get().schedule(this.name, () -> {
                 Jenkins jenkins = Jenkins.getInstance();
                 try {
                     // Check that the computer is still registered with Jenkins
@@ -259,7 +260,7 @@ public class NodePoolComputer extends SlaveComputer {
                     }
                 } catch (Exception ex) {
                     LOG.log(Level.WARNING,
-                            String.format("%s error while deleting node (in threadPoolForRemtoing). Message: %s. Was it already deleted?",
+                            String.format("%s error while deleting node (in deferred deletion). Message: %s. Was it already deleted?",
                                     ex.getClass().getSimpleName(), ex.getLocalizedMessage()));
                 }
             });
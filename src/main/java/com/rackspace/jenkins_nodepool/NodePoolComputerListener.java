@@ -0,0 +1,82 @@
+package com.rackspace.jenkins_nodepool;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.TaskListener;
+import hudson.slaves.ComputerListener;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static java.lang.String.format;
+
+/**
+ * Completes the provisioning pipeline's wait for an agent as soon as Jenkins reports that the agent is online, or
+ * fails it as soon as the launch fails, so provisioning never has to poll the computer state.
+ */
+@Extension
+public class NodePoolComputerListener extends ComputerListener {
+
+    private static final Logger LOG = Logger.getLogger(NodePoolComputerListener.class.getName());
+
+    /**
+     * Outstanding waits, keyed by node name
+     */
+    private static final Map<String, CompletableFuture<Void>> pending = new ConcurrentHashMap<>();
+
+    /**
+     * Returns a future that completes when the named agent comes online, or completes exceptionally when its launch
+     * fails. Must be called before the node is added to Jenkins so that the event can't be missed.
+     *
+     * @param name the node name
+     * @return a future for the named agent
+     */
+    static CompletableFuture<Void> awaitOnline(final String name) {
+        final CompletableFuture<Void> future = pending.computeIfAbsent(name, k -> new CompletableFuture<>());
+        future.whenComplete((v, t) -> pending.remove(name, future));
+        return future;
+    }
+
+    /**
+     * Fails the wait for the named agent.
+     *
+     * @param name  the node name
+     * @param cause the reason the launch failed
+     */
+    static void launchFailed(final String name, final Throwable cause) {
+        final CompletableFuture<Void> future = pending.get(name);
+        if (future != null) {
+            LOG.log(Level.FINE, format("Launch of %s failed: %s", name, cause.getMessage()));
+            future.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * Returns the number of agents currently being waited for.
+     *
+     * @return the number of outstanding waits
+     */
+    static int getPendingCount() {
+        return pending.size();
+    }
+
+    @Override
+    public void onOnline(Computer c, TaskListener listener) {
+        if (c instanceof NodePoolComputer) {
+            final CompletableFuture<Void> future = pending.get(c.getName());
+            if (future != null) {
+                future.complete(null);
+            }
+        }
+    }
+
+    @Override
+    public void onLaunchFailure(Computer c, TaskListener taskListener) {
+        if (c instanceof NodePoolComputer) {
+            launchFailed(c.getName(), new NodePoolException(format("Failed to launch Jenkins agent on %s", c.getName())));
+        }
+    }
+}
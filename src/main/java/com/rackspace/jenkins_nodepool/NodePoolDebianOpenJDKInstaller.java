@@ -29,6 +29,17 @@ public class NodePoolDebianOpenJDKInstaller extends NodePoolJDKInstaller {
     private static final String OPEN_JDK_8_JRE_PKG = "openjdk-8-jre-headless";
     private static final String DEFAULT_OPENJDK_8_JAVA_HOME = "/usr/lib/jvm/java-8-openjdk-amd64";
 
+    /**
+     * Shell words of the installation, the remote launcher joins them with spaces
+     */
+    private static final String[] INSTALL_COMMANDS = new String[]{
+            // wait for any other apt/dpkg processes before starting
+            "while", "pgrep", "\"dpkg|apt\";", "do", "sleep", "1;", "echo", "-n", ".;", "done;",
+            "apt-get", "update",
+            "&&",
+            "apt-get", "install", OPEN_JDK_8_JRE_PKG, "-y"
+    };
+
     /**
      * Serial version UID - change this when modifying this class.
      */
@@ -78,6 +89,11 @@ public class NodePoolDebianOpenJDKInstaller extends NodePoolJDKInstaller {
         return this.jdkHome;
     }
 
+    @Override
+    public String getInstallCommand() {
+        return String.join(" ", INSTALL_COMMANDS);
+    }
+
     /**
      * Ensure that the Java is really installed.
      * If it is already installed, do nothing.
@@ -98,13 +114,7 @@ public class NodePoolDebianOpenJDKInstaller extends NodePoolJDKInstaller {
         }
 
         // Install the Openjdk 8 JRE
-        final String[] installCommands = new String[]{
-                // wait for any other apt/dpkg processes before starting
-                "while", "pgrep", "\"dpkg|apt\";", "do", "sleep", "1", "echo", "-n", ".", ";done;",
-                "apt-get", "update",
-                "&&",
-                "apt-get", "install", OPEN_JDK_8_JRE_PKG, "-y"
-        };
+        final String[] installCommands = INSTALL_COMMANDS.clone();
 
         final RemoteLauncher launcher = new RemoteLauncher(tl, connection);
 
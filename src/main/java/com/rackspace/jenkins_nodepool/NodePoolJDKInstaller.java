@@ -107,6 +107,17 @@ public abstract class NodePoolJDKInstaller extends ToolInstaller {
      */
     public abstract FilePath performInstallation(Node node, TaskListener tl, Connection connection) throws IOException, InterruptedException;
 
+    /**
+     * Returns the installation as a single shell command, which lets the launcher check for Java, install it and copy
+     * the agent jar with one SSH session (see {@link AgentBootstrap}).
+     *
+     * @return the shell command that installs Java, or null if the installation can only be done by
+     * {@link #performInstallation(Node, TaskListener, Connection)}
+     */
+    public String getInstallCommand() {
+        return null;
+    }
+
     /**
      * Routine to run a remote command to determine if java is installed (e.g. java -version).
      *
@@ -64,6 +64,11 @@ public class NodePoolJDKScriptInstaller extends NodePoolJDKInstaller {
         return jdkInstallationScript;
     }
 
+    @Override
+    public String getInstallCommand() {
+        return jdkInstallationScript;
+    }
+
     /**
      * Returns the Java home folder.
      *
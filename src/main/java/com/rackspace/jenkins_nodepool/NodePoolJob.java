@@ -37,13 +37,73 @@ public class NodePoolJob {
         logToBoth("NodepoolJob "+this.toString()+" tracking node usage with label: "+this.label.getDisplayName());
     }
 
+    /**
+     * Create a job for a warm agent, one that is launched ahead of demand and bound to a build later.
+     *
+     * @param label the label of the agent
+     */
+    private NodePoolJob(Label label) {
+        this.label = label;
+        this.queueID = -1;
+        this.task = null;
+        this.run = null;
+        this.job = null;
+    }
+
+    /**
+     * Create a job for a warm pool agent.
+     *
+     * @param label the label of the agent
+     * @return a job with no task or build
+     */
+    static NodePoolJob warm(Label label) {
+        return new NodePoolJob(label);
+    }
+
+    /**
+     * @return true if this job is for a warm pool agent that has not been bound to a build
+     */
+    public boolean isWarm() {
+        return task == null;
+    }
+
+    /**
+     * @return true while an agent provisioned for this job is still wanted
+     */
+    boolean isNeeded() {
+        return isWarm() || run.isBuilding();
+    }
+
+    /**
+     * @param jobs the jobs that share a node request
+     * @return true while an agent is still wanted by any of the jobs
+     */
+    static boolean anyNeeded(final List<NodePoolJob> jobs) {
+        for (NodePoolJob job : jobs) {
+            if (job.isWarm() || job.getRun().isBuilding()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Take over the provisioning attempts of the warm job whose agent was bound to this job, so the history shows
+     * how the agent was provisioned.
+     *
+     * @param warm the job the agent was provisioned for
+     */
+    void adoptAttempts(NodePoolJob warm) {
+        attempts.addAll(warm.getAttempts());
+    }
+
 
     /**
      * Get string identifying the build that created this task
      * @return jobName#buildNum
      */
     public String getBuildId(){
-        return run.getExternalizableId();
+        return run == null ? "warm" : run.getExternalizableId();
     }
 
     public String getOverviewString(){
@@ -138,6 +198,7 @@ public class NodePoolJob {
 
     void addAttempt(NodeRequest request) {
         attempts.add(new Attempt(request));
+        NodePoolMetrics.get().attempt(label);
         logToBoth("Nodepool Node Requested: "+request.toString());
     }
 
@@ -148,6 +209,7 @@ public class NodePoolJob {
         logToBoth("Nodepool Node Requested Failed: "+e.toString());
         // mark current attempt as a failure
         getCurrentAttempt().fail(e);
+        NodePoolMetrics.get().attemptFailed(label);
     }
 
     void succeed() {
@@ -284,7 +346,8 @@ public class NodePoolJob {
      */
     @Override
     public String toString() {
-        return "NodePoolJob[taskId=" + getTaskId() + ", task=" + task.getFullDisplayName() + ", label=" + label + "]";
+        return "NodePoolJob[taskId=" + getTaskId() + ", task=" + (task == null ? "warm" : task.getFullDisplayName())
+                + ", label=" + label + "]";
     }
 
 }
@@ -1,112 +1,268 @@
 package com.rackspace.jenkins_nodepool;
 
+import hudson.model.Job;
+import hudson.model.Run;
+
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Track historical information about Jenkins jobs handled by the plugin.
+ * <p>
+ * The history is a fixed size ring buffer, adding a job replaces the oldest one once it is full. Jobs are indexed by
+ * queue id, build id and job name. Neither adding nor reading takes a lock, iteration walks the buffer directly
+ * (newest first) and does not see jobs that are replaced while it runs.
  */
 public class NodePoolJobHistory implements Iterable<NodePoolJob> {
 
-    private static final int MAX_HISTORY_LENGTH = 250;
-    private final Object lock = new Object();
+    /**
+     * Number of jobs kept, set with the 'NodePoolJobHistory.size' system property
+     */
+    static final int MAX_HISTORY_LENGTH = Integer.getInteger(NodePoolJobHistory.class.getName() + ".size", 1000);
+
+    /**
+     * A job and the sequence number it was added with
+     */
+    private static final class Slot {
+        final long seq;
+        final NodePoolJob job;
+
+        Slot(long seq, NodePoolJob job) {
+            this.seq = seq;
+            this.job = job;
+        }
+    }
 
-    private final List<NodePoolJob> jobs;
+    private final AtomicReferenceArray<Slot> slots;
     private final int maxHistoryLength;
 
+    /**
+     * Sequence number of the next job added
+     */
+    private final AtomicLong next = new AtomicLong();
+
+    /**
+     * Sequence numbers of the jobs currently in the buffer, by queue id, build id and job name
+     */
+    private final Map<Long, Set<Long>> byQueueId = new ConcurrentHashMap<>();
+    private final Map<String, Set<Long>> byBuildId = new ConcurrentHashMap<>();
+    private final Map<String, Set<Long>> byJobName = new ConcurrentHashMap<>();
+
     public NodePoolJobHistory() {
         this(MAX_HISTORY_LENGTH);
     }
 
     public NodePoolJobHistory(final int maxHistoryLenth) {
-        this.maxHistoryLength = maxHistoryLenth;
-        jobs = new ArrayList<>(maxHistoryLenth);
+        this.maxHistoryLength = Math.max(1, maxHistoryLenth);
+        slots = new AtomicReferenceArray<>(this.maxHistoryLength);
     }
 
     /**
-     * Add job and prune the historical list if necessary.
+     * Add job, replacing the oldest job if the history is full.
      *
      * @param job a job
      */
     public void add(NodePoolJob job) {
-
-        synchronized(lock) {
-            jobs.add(0, job);
-
-            while (jobs.size() > maxHistoryLength) {
-                final int last = jobs.size() - 1;
-                jobs.remove(last);
-            }
+        final long seq = next.getAndIncrement();
+        // indexed before it is visible so that the index entry can't outlive the job
+        index(seq, job);
+        final Slot old = slots.getAndSet(slotFor(seq), new Slot(seq, job));
+        if (old != null) {
+            unindex(old.seq, old.job);
         }
     }
 
+    /**
+     * Returns the jobs from newest to oldest.
+     *
+     * @return an iterator over the history
+     */
     @Override
     public Iterator<NodePoolJob> iterator() {
-        // copy the underlying list and return -- avoid concurrent modification issues
-        List<NodePoolJob> jobsCopy;
-        synchronized(lock) {
-            jobsCopy = new ArrayList<>(this.jobs);
-        }
-        return jobsCopy.iterator();
+        final long newest = next.get() - 1;
+        final long oldest = Math.max(0, newest - maxHistoryLength + 1);
+        return new Iterator<NodePoolJob>() {
+            private long seq = newest;
+            private NodePoolJob nextJob = advance();
+
+            private NodePoolJob advance() {
+                while (seq >= oldest) {
+                    final NodePoolJob job = jobAt(seq--);
+                    if (job != null) {
+                        return job;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return nextJob != null;
+            }
+
+            @Override
+            public NodePoolJob next() {
+                if (nextJob == null) {
+                    throw new NoSuchElementException();
+                }
+                final NodePoolJob job = nextJob;
+                nextJob = advance();
+                return job;
+            }
+        };
+    }
+
+    /**
+     * Returns the number of jobs in the history.
+     *
+     * @return the history size
+     */
+    public int size() {
+        return (int) Math.min(next.get(), maxHistoryLength);
     }
 
     /**
      * Find job matching taskID
-     * @param taskId
-     * @return
+     * @param taskId the queue id of the task
+     * @return the newest matching job, or null if there is none
      */
     NodePoolJob getJob(long taskId) {
-
-        final Iterator<NodePoolJob> iter = iterator();
-        while (iter.hasNext()) {
-            final NodePoolJob job = iter.next();
-            if (job.getTaskId() == taskId) {
-                return job;
-            }
-        }
-        return null;
+        final List<NodePoolJob> jobs = lookup(byQueueId, taskId);
+        return jobs.isEmpty() ? null : jobs.get(0);
     }
 
     /**
      * Find job matching request object
-     * @param request
-     * @return
+     * @param request the request
+     * @return the job the request was made for, or null if the job is not in the history
      */
     NodePoolJob getJob(NodeRequest request){
-        return jobs
-            .stream()
-            .filter(j -> j.hasRequest(request))
-            .findFirst()
-            .get();
+        final NodePoolJob owner = request.getJob();
+        if (owner != null) {
+            for (NodePoolJob job : lookup(byQueueId, owner.getTaskId())) {
+                if (job == owner) {
+                    return job;
+                }
+            }
+        }
+        return null;
     }
 
     /**
      * Find jobs matching JobName
-     * @param jobName
-     * @return
+     * @param jobName the full name of the job
+     * @return matching jobs, newest first
      */
     List<NodePoolJob> getJobs(String jobName){
-        return jobs.stream()
-                .filter(j -> j.getRun().getDisplayName().equals(jobName))
-                .collect(Collectors.toList());
+        return lookup(byJobName, jobName);
     }
 
     /**
      * Find jobs matching JobName and Build number
      * There could be multiple as each job represents a usage
      * of a nodepool node and a build may use multiple nodes.
-     * @param jobName
-     * @param buildNum
-     * @return
+     * @param jobName the full name of the job
+     * @param buildNum the build number
+     * @return matching jobs, newest first
      */
     List<NodePoolJob> getJobs(String jobName, Integer buildNum){
-        return jobs.stream()
-                .filter(j -> j.getRun().getDisplayName().equals(jobName) &&
-                        j.getRun().getNumber() == buildNum)
-                .collect(Collectors.toList());
+        final List<NodePoolJob> jobs = new ArrayList<>();
+        for (NodePoolJob job : lookup(byJobName, jobName)) {
+            if (job.getRun() != null && job.getRun().getNumber() == buildNum) {
+                jobs.add(job);
+            }
+        }
+        return jobs;
+    }
+
+    /**
+     * Find jobs for a build
+     * @param buildId the externalizable id of the build (jobName#buildNum)
+     * @return matching jobs, newest first
+     */
+    List<NodePoolJob> getJobsForBuild(String buildId){
+        return lookup(byBuildId, buildId);
+    }
+
+    private int slotFor(final long seq) {
+        return (int) (seq % maxHistoryLength);
+    }
+
+    /**
+     * Returns the job with the given sequence number, or null if it has been replaced (or is not yet visible).
+     */
+    private NodePoolJob jobAt(final long seq) {
+        final Slot slot = slots.get(slotFor(seq));
+        return slot != null && slot.seq == seq ? slot.job : null;
     }
 
+    private <K> List<NodePoolJob> lookup(final Map<K, Set<Long>> index, final K key) {
+        if (key == null) {
+            return Collections.emptyList();
+        }
+        final Set<Long> seqs = index.get(key);
+        if (seqs == null) {
+            return Collections.emptyList();
+        }
+        final List<Long> sorted = new ArrayList<>(seqs);
+        sorted.sort(Collections.reverseOrder());
+        final List<NodePoolJob> jobs = new ArrayList<>(sorted.size());
+        for (Long seq : sorted) {
+            final NodePoolJob job = jobAt(seq);
+            if (job != null) {
+                jobs.add(job);
+            }
+        }
+        return jobs;
+    }
+
+    private void index(final long seq, final NodePoolJob job) {
+        add(byQueueId, job.getTaskId(), seq);
+        add(byBuildId, buildId(job), seq);
+        add(byJobName, jobName(job), seq);
+    }
+
+    private void unindex(final long seq, final NodePoolJob job) {
+        remove(byQueueId, job.getTaskId(), seq);
+        remove(byBuildId, buildId(job), seq);
+        remove(byJobName, jobName(job), seq);
+    }
 
+    private static <K> void add(final Map<K, Set<Long>> index, final K key, final long seq) {
+        if (key != null) {
+            index.compute(key, (k, v) -> {
+                final Set<Long> seqs = v == null ? ConcurrentHashMap.newKeySet() : v;
+                seqs.add(seq);
+                return seqs;
+            });
+        }
+    }
+
+    private static <K> void remove(final Map<K, Set<Long>> index, final K key, final long seq) {
+        if (key != null) {
+            index.computeIfPresent(key, (k, v) -> {
+                v.remove(seq);
+                return v.isEmpty() ? null : v;
+            });
+        }
+    }
+
+    private static String buildId(final NodePoolJob job) {
+        final Run run = job.getRun();
+        return run == null ? null : run.getExternalizableId();
+    }
+
+    private static String jobName(final NodePoolJob job) {
+        final Run run = job.getRun();
+        final Job parent = run == null ? null : run.getParent();
+        return parent == null ? null : parent.getFullName();
+    }
 }
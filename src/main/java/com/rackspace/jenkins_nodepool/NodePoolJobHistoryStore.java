@@ -0,0 +1,659 @@
+package com.rackspace.jenkins_nodepool;
+
+import hudson.model.Job;
+import hudson.model.Run;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.logging.Logger;
+
+import static java.lang.String.format;
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.WARNING;
+
+/**
+ * Keeps the provisioning history of finished jobs on disk so that it survives restarts.
+ * <p>
+ * Records are appended to segment files in a directory under JENKINS_HOME. Each record is a length prefixed, compact
+ * binary encoding of the job and its attempts. A new segment is started when the current one reaches
+ * 'segmentBytes' and after every restart, segments whose last write is older than 'retentionDays' are deleted.
+ * Nothing is read at startup; queries read segments newest first, one record at a time, so only the records that
+ * are returned are held in memory. The offsets of the records in a finished segment are remembered once it has been
+ * read, which makes paging through it cheap.
+ */
+public final class NodePoolJobHistoryStore {
+
+    private static final Logger LOG = Logger.getLogger(NodePoolJobHistoryStore.class.getName());
+
+    /**
+     * Directory under JENKINS_HOME holding the history
+     */
+    static final String DIR_NAME = "nodepool-history";
+
+    /**
+     * Number of days that records are kept
+     */
+    static final long RETENTION_DAYS = Long.getLong(NodePoolJobHistoryStore.class.getName() + ".retentionDays", 30L);
+
+    /**
+     * Size at which a new segment is started
+     */
+    static final long SEGMENT_BYTES = Long.getLong(NodePoolJobHistoryStore.class.getName() + ".segmentBytes",
+            4L * 1024 * 1024);
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private static final byte FORMAT_VERSION = 1;
+
+    /**
+     * Longest string stored, longer values (stack traces) are truncated
+     */
+    private static final int MAX_TEXT_LENGTH = 16384;
+
+    /**
+     * Largest record accepted when reading, anything larger is treated as a corrupt segment tail
+     */
+    private static final int MAX_RECORD_BYTES = 16 * 1024 * 1024;
+
+    private final File dir;
+    private final long retentionMs;
+    private final long segmentBytes;
+
+    private final Object lock = new Object();
+    private File active;
+    private DataOutputStream out;
+    private long activeSize;
+
+    /**
+     * Record offsets of finished segments that have been read
+     */
+    private final Map<File, long[]> offsets = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a store in the given directory, which is created when the first record is written.
+     *
+     * @param dir the history directory
+     */
+    public NodePoolJobHistoryStore(final File dir) {
+        this(dir, TimeUnit.DAYS.toMillis(RETENTION_DAYS), SEGMENT_BYTES);
+    }
+
+    NodePoolJobHistoryStore(final File dir, final long retentionMs, final long segmentBytes) {
+        this.dir = dir;
+        this.retentionMs = retentionMs;
+        this.segmentBytes = segmentBytes;
+    }
+
+    /**
+     * A stored attempt
+     */
+    public static final class AttemptRecord {
+        private final NodePoolJob.NodeRequestAttemptState result;
+        private final long durationSeconds;
+        private final String nodes;
+        private final String error;
+
+        AttemptRecord(NodePoolJob.NodeRequestAttemptState result, long durationSeconds, String nodes, String error) {
+            this.result = result;
+            this.durationSeconds = durationSeconds;
+            this.nodes = nodes;
+            this.error = error;
+        }
+
+        public NodePoolJob.NodeRequestAttemptState getResult() {
+            return result;
+        }
+
+        public long getDurationSeconds() {
+            return durationSeconds;
+        }
+
+        public String getDurationFormatted() {
+            return formatDuration(durationSeconds);
+        }
+
+        public String getNodes() {
+            return nodes;
+        }
+
+        /**
+         * @return the error of a failed attempt, possibly truncated, or null
+         */
+        public String getError() {
+            return error;
+        }
+
+        public boolean isFailure() {
+            return result == NodePoolJob.NodeRequestAttemptState.FAILURE;
+        }
+    }
+
+    /**
+     * A stored job
+     */
+    public static final class JobRecord {
+        private final long timeMs;
+        private final long taskId;
+        private final String taskName;
+        private final String buildId;
+        private final String jobName;
+        private final String buildNumber;
+        private final String label;
+        private final String nodePool;
+        private final NodePoolJob.NodeRequestAttemptState result;
+        private final long durationSeconds;
+        private final List<AttemptRecord> attempts;
+
+        JobRecord(long timeMs, long taskId, String taskName, String buildId, String jobName, String buildNumber,
+                  String label, String nodePool, NodePoolJob.NodeRequestAttemptState result, long durationSeconds,
+                  List<AttemptRecord> attempts) {
+            this.timeMs = timeMs;
+            this.taskId = taskId;
+            this.taskName = taskName;
+            this.buildId = buildId;
+            this.jobName = jobName;
+            this.buildNumber = buildNumber;
+            this.label = label;
+            this.nodePool = nodePool;
+            this.result = result;
+            this.durationSeconds = durationSeconds;
+            this.attempts = Collections.unmodifiableList(attempts);
+        }
+
+        /**
+         * Creates a record of a job.
+         *
+         * @param job      the job
+         * @param nodePool the cluster the job was provisioned from, may be null
+         * @param result   the outcome to record, or null to take it from the job's attempts
+         * @return the record, timestamped now
+         */
+        static JobRecord of(final NodePoolJob job, final String nodePool,
+                            final NodePoolJob.NodeRequestAttemptState result) {
+            final List<AttemptRecord> attempts = new ArrayList<>();
+            for (Attempt attempt : job.getAttempts()) {
+                attempts.add(new AttemptRecord(attempt.getResult(), attempt.getDurationSeconds(),
+                        attempt.getNodesAsFormattedString(), attempt.getError()));
+            }
+            final Run run = job.getRun();
+            final Job parent = run == null ? null : run.getParent();
+            return new JobRecord(System.currentTimeMillis(), job.getTaskId(),
+                    job.getTask() == null ? null : job.getTask().getFullDisplayName(),
+                    run == null ? null : run.getExternalizableId(),
+                    parent == null ? null : parent.getFullName(),
+                    job.getBuildNumber(),
+                    job.getLabel() == null ? null : job.getLabel().getDisplayName(),
+                    nodePool,
+                    result != null ? result
+                            : attempts.isEmpty() ? NodePoolJob.NodeRequestAttemptState.INPROGRESS : job.getResult(),
+                    job.getDurationSeconds(), attempts);
+        }
+
+        /**
+         * @return the time the record was written in milliseconds since epoch
+         */
+        public long getTimeMs() {
+            return timeMs;
+        }
+
+        public String getTimeFormatted() {
+            return NodePoolUtils.getFormattedDateTime(timeMs, ZoneOffset.UTC);
+        }
+
+        public long getTaskId() {
+            return taskId;
+        }
+
+        public String getTaskName() {
+            return taskName;
+        }
+
+        public String getBuildId() {
+            return buildId;
+        }
+
+        public String getJobName() {
+            return jobName;
+        }
+
+        public String getBuildNumber() {
+            return buildNumber;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        public String getNodePool() {
+            return nodePool;
+        }
+
+        public NodePoolJob.NodeRequestAttemptState getResult() {
+            return result;
+        }
+
+        public long getDurationSeconds() {
+            return durationSeconds;
+        }
+
+        public String getDurationFormatted() {
+            return formatDuration(durationSeconds);
+        }
+
+        public List<AttemptRecord> getAttempts() {
+            return attempts;
+        }
+    }
+
+    /**
+     * Restricts the records returned by a query. Null values and a zero time match everything.
+     */
+    public static final class Query implements Predicate<JobRecord> {
+        private final String label;
+        private final String jobName;
+        private final long fromMs;
+        private final long toMs;
+
+        /**
+         * Creates a query.
+         *
+         * @param label   the label the job requested, or null for any
+         * @param jobName the full name of the job, or null for any
+         * @param fromMs  the earliest record time, or 0
+         * @param toMs    the latest record time, or 0
+         */
+        public Query(String label, String jobName, long fromMs, long toMs) {
+            this.label = label == null || label.isEmpty() ? null : label;
+            this.jobName = jobName == null || jobName.isEmpty() ? null : jobName;
+            this.fromMs = fromMs;
+            this.toMs = toMs <= 0 ? Long.MAX_VALUE : toMs;
+        }
+
+        /**
+         * @return a query that matches every record
+         */
+        public static Query all() {
+            return new Query(null, null, 0, 0);
+        }
+
+        @Override
+        public boolean test(JobRecord r) {
+            return r.timeMs >= fromMs && r.timeMs <= toMs
+                    && (label == null || label.equals(r.label))
+                    && (jobName == null || jobName.equals(r.jobName));
+        }
+    }
+
+    /**
+     * One page of query results
+     */
+    public static final class Page {
+        private final List<JobRecord> records;
+        private final int number;
+        private final boolean hasNext;
+
+        Page(List<JobRecord> records, int number, boolean hasNext) {
+            this.records = records;
+            this.number = number;
+            this.hasNext = hasNext;
+        }
+
+        public List<JobRecord> getRecords() {
+            return records;
+        }
+
+        /**
+         * @return the page number, starting from 0
+         */
+        public int getNumber() {
+            return number;
+        }
+
+        public boolean isHasNext() {
+            return hasNext;
+        }
+
+        public boolean isHasPrevious() {
+            return number > 0;
+        }
+    }
+
+    /**
+     * Appends a record.
+     *
+     * @param record the record
+     * @throws IOException if the record can't be written
+     */
+    public void append(final JobRecord record) throws IOException {
+        final byte[] bytes = encode(record);
+        synchronized (lock) {
+            if (out == null || activeSize >= segmentBytes) {
+                roll(record.timeMs);
+            }
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            out.flush();
+            activeSize += 4 + bytes.length;
+        }
+    }
+
+    /**
+     * Closes the current segment.
+     */
+    public void close() {
+        synchronized (lock) {
+            closeActive();
+        }
+    }
+
+    /**
+     * Passes the matching records, newest first, to the consumer until it returns false.
+     *
+     * @param query    the records to pass
+     * @param consumer receives the records, returns false to stop
+     * @throws IOException if the history can't be read
+     */
+    public void forEach(final Query query, final Predicate<JobRecord> consumer) throws IOException {
+        final List<File> segments = segments();
+        for (int s = segments.size() - 1; s >= 0; s--) {
+            final File segment = segments.get(s);
+            final long start = segmentStart(segment);
+            if (start > query.toMs) {
+                // every record in this segment is newer than the window
+                continue;
+            }
+            final long[] recordOffsets = offsets(segment);
+            try (RandomAccessFile raf = new RandomAccessFile(segment, "r")) {
+                for (int i = recordOffsets.length - 1; i >= 0; i--) {
+                    raf.seek(recordOffsets[i]);
+                    final byte[] bytes = new byte[raf.readInt()];
+                    raf.readFully(bytes);
+                    final JobRecord record = decode(bytes);
+                    if (record != null && query.test(record) && !consumer.test(record)) {
+                        return;
+                    }
+                }
+            } catch (FileNotFoundException e) {
+                // removed by retention while we were reading
+                LOG.log(FINE, format("History segment %s disappeared", segment));
+            }
+            if (start < query.fromMs) {
+                // older segments are entirely before the window
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns a page of matching records, newest first.
+     *
+     * @param query    the records to return
+     * @param page     the page number, starting from 0
+     * @param pageSize the number of records on a page
+     * @return the page
+     * @throws IOException if the history can't be read
+     */
+    public Page page(final Query query, final int page, final int pageSize) throws IOException {
+        final int skip = Math.max(0, page) * pageSize;
+        final List<JobRecord> records = new ArrayList<>(pageSize);
+        final int[] seen = {0};
+        final boolean[] more = {false};
+        forEach(query, r -> {
+            if (seen[0]++ < skip) {
+                return true;
+            }
+            if (records.size() == pageSize) {
+                more[0] = true;
+                return false;
+            }
+            records.add(r);
+            return true;
+        });
+        return new Page(records, Math.max(0, page), more[0]);
+    }
+
+    /**
+     * Deletes segments that have not been written to within the retention period. That includes the current segment
+     * of a store that has been idle that long, the next record then starts a new one. Called when a segment is
+     * started and periodically by the janitor, so history expires on a quiet controller too.
+     */
+    void prune() {
+        synchronized (lock) {
+            final long cutoff = System.currentTimeMillis() - retentionMs;
+            for (File segment : segments()) {
+                if (segment.lastModified() >= cutoff) {
+                    continue;
+                }
+                if (segment.equals(active)) {
+                    closeActive();
+                }
+                offsets.remove(segment);
+                if (segment.delete()) {
+                    LOG.log(FINE, format("Deleted expired history segment %s", segment));
+                } else {
+                    LOG.log(WARNING, format("Unable to delete expired history segment %s", segment));
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the segment files, oldest first.
+     */
+    private List<File> segments() {
+        final File[] files = dir.listFiles((d, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (files == null) {
+            return Collections.emptyList();
+        }
+        Arrays.sort(files);
+        return Arrays.asList(files);
+    }
+
+    /**
+     * Returns the time of the first record of a segment, which is encoded in its name.
+     */
+    private static long segmentStart(final File segment) {
+        final String name = segment.getName();
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return 0L;
+        }
+    }
+
+    /**
+     * Starts a new segment. Called with the lock held.
+     */
+    private void roll(final long timeMs) throws IOException {
+        closeActive();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create history directory " + dir);
+        }
+        long start = timeMs;
+        File segment = new File(dir, format("%019d%s", start, SEGMENT_SUFFIX));
+        while (segment.exists()) {
+            segment = new File(dir, format("%019d%s", ++start, SEGMENT_SUFFIX));
+        }
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(segment, true)));
+        active = segment;
+        activeSize = 0;
+        prune();
+    }
+
+    private void closeActive() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                LOG.log(WARNING, format("%s error while closing history segment %s. Message: %s",
+                        e.getClass().getSimpleName(), active, e.getLocalizedMessage()));
+            }
+            out = null;
+            active = null;
+        }
+    }
+
+    /**
+     * Returns the offsets of the complete records in a segment.
+     */
+    private long[] offsets(final File segment) throws IOException {
+        final boolean isActive;
+        synchronized (lock) {
+            isActive = segment.equals(active);
+        }
+        if (isActive) {
+            // still growing
+            return scanOffsets(segment);
+        }
+        final long[] cached = offsets.get(segment);
+        if (cached != null) {
+            return cached;
+        }
+        final long[] scanned = scanOffsets(segment);
+        offsets.put(segment, scanned);
+        return scanned;
+    }
+
+    /**
+     * Reads only the length prefixes of a segment to find where its records start. A partly written record at the
+     * end (e.g. after a crash) is ignored.
+     */
+    private static long[] scanOffsets(final File segment) throws IOException {
+        long[] result = new long[64];
+        int count = 0;
+        final long length = segment.length();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment)))) {
+            long pos = 0;
+            while (pos + 4 <= length) {
+                final int recordLength;
+                try {
+                    recordLength = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (recordLength < 0 || recordLength > MAX_RECORD_BYTES || pos + 4 + recordLength > length) {
+                    break;
+                }
+                if (count == result.length) {
+                    result = Arrays.copyOf(result, count * 2);
+                }
+                result[count++] = pos;
+                skipFully(in, recordLength);
+                pos += 4 + recordLength;
+            }
+        } catch (FileNotFoundException e) {
+            return new long[0];
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    private static void skipFully(final DataInputStream in, final int n) throws IOException {
+        int remaining = n;
+        while (remaining > 0) {
+            final int skipped = in.skipBytes(remaining);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            remaining -= skipped;
+        }
+    }
+
+    static byte[] encode(final JobRecord r) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (DataOutputStream o = new DataOutputStream(bytes)) {
+            o.writeByte(FORMAT_VERSION);
+            o.writeLong(r.timeMs);
+            o.writeLong(r.taskId);
+            writeString(o, r.taskName);
+            writeString(o, r.buildId);
+            writeString(o, r.jobName);
+            writeString(o, r.buildNumber);
+            writeString(o, r.label);
+            writeString(o, r.nodePool);
+            o.writeByte(r.result.ordinal());
+            o.writeLong(r.durationSeconds);
+            o.writeShort(Math.min(r.attempts.size(), Short.MAX_VALUE));
+            for (int i = 0; i < Math.min(r.attempts.size(), Short.MAX_VALUE); i++) {
+                final AttemptRecord a = r.attempts.get(i);
+                o.writeByte(a.result.ordinal());
+                o.writeLong(a.durationSeconds);
+                writeString(o, a.nodes);
+                writeString(o, a.error);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decodes a record, returning null (and logging) if it is not understood.
+     */
+    static JobRecord decode(final byte[] bytes) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            final byte version = in.readByte();
+            if (version != FORMAT_VERSION) {
+                LOG.log(FINE, format("Skipping history record with unknown format version %d", version));
+                return null;
+            }
+            final long timeMs = in.readLong();
+            final long taskId = in.readLong();
+            final String taskName = readString(in);
+            final String buildId = readString(in);
+            final String jobName = readString(in);
+            final String buildNumber = readString(in);
+            final String label = readString(in);
+            final String nodePool = readString(in);
+            final NodePoolJob.NodeRequestAttemptState result = state(in.readByte());
+            final long durationSeconds = in.readLong();
+            final int attemptCount = in.readShort();
+            final List<AttemptRecord> attempts = new ArrayList<>(attemptCount);
+            for (int i = 0; i < attemptCount; i++) {
+                attempts.add(new AttemptRecord(state(in.readByte()), in.readLong(), readString(in), readString(in)));
+            }
+            return new JobRecord(timeMs, taskId, taskName, buildId, jobName, buildNumber, label, nodePool, result,
+                    durationSeconds, attempts);
+        } catch (IOException | RuntimeException e) {
+            LOG.log(WARNING, format("%s error while decoding history record. Message: %s",
+                    e.getClass().getSimpleName(), e.getLocalizedMessage()));
+            return null;
+        }
+    }
+
+    private static NodePoolJob.NodeRequestAttemptState state(final byte ordinal) {
+        return NodePoolJob.NodeRequestAttemptState.values()[ordinal];
+    }
+
+    private static void writeString(final DataOutputStream o, final String s) throws IOException {
+        o.writeBoolean(s != null);
+        if (s != null) {
+            o.writeUTF(s.length() > MAX_TEXT_LENGTH ? s.substring(0, MAX_TEXT_LENGTH) : s);
+        }
+    }
+
+    private static String readString(final DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static String formatDuration(final long seconds) {
+        return format("%02d:%02d:%02d", seconds / 3600, (seconds % 3600) / 60, seconds % 60);
+    }
+}
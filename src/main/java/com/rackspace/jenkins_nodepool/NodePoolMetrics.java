@@ -0,0 +1,338 @@
+package com.rackspace.jenkins_nodepool;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Label;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONObject;
+import org.apache.curator.framework.state.ConnectionState;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static java.lang.String.format;
+
+/**
+ * Counters, gauges and timers describing the plugin's internals: outstanding requests, request attempts and failures,
+ * provisioning waiting for and holding a permit, janitor passes, lock waits, ZooKeeper connection state changes and
+ * SSH launch outcomes.
+ * <p>
+ * The metrics are always kept in process and served as JSON from the NodePool management page. When the Jenkins
+ * metrics plugin is installed they are also registered in its MetricRegistry, from where its Prometheus and other
+ * reporters pick them up. Recording a metric is a LongAdder increment or a histogram update and does not allocate, so
+ * it can be done on the provisioning hot paths.
+ */
+public final class NodePoolMetrics {
+
+    private static final Logger LOG = Logger.getLogger(NodePoolMetrics.class.getName());
+
+    private static final NodePoolMetrics INSTANCE = new NodePoolMetrics();
+
+    static final String PREFIX = "nodepool.";
+
+    /**
+     * How long a snapshot of the request states is reused, reading the states goes to ZooKeeper
+     */
+    private static final long STATE_SNAPSHOT_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    /**
+     * How an SSH agent launch ended
+     */
+    public enum LaunchOutcome {
+        SUCCESS, FAILURE, TIMEOUT, INTERRUPTED
+    }
+
+    /**
+     * A count that only goes up
+     */
+    public static final class Counter {
+        private final LongAdder count = new LongAdder();
+
+        public void inc() {
+            count.increment();
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+    }
+
+    /**
+     * A distribution of durations
+     */
+    public static final class Timer {
+        private final LatencyHistogram histogram = new LatencyHistogram();
+
+        /**
+         * Records a duration.
+         *
+         * @param nanos the duration in nanoseconds
+         */
+        public void update(final long nanos) {
+            histogram.recordMicros(TimeUnit.NANOSECONDS.toMicros(nanos));
+        }
+
+        /**
+         * Records the time elapsed since the given start.
+         *
+         * @param startNanos a {@link System#nanoTime()} value
+         */
+        public void recordSince(final long startNanos) {
+            histogram.recordSince(startNanos);
+        }
+
+        public LatencyHistogram getHistogram() {
+            return histogram;
+        }
+    }
+
+    /**
+     * A value computed whenever the metrics are read
+     */
+    public static final class Gauge {
+        private final LongSupplier supplier;
+
+        Gauge(LongSupplier supplier) {
+            this.supplier = supplier;
+        }
+
+        public long getValue() {
+            return supplier.getAsLong();
+        }
+    }
+
+    /**
+     * Every metric by name, the values are Counters, Gauges and Timers
+     */
+    private final Map<String, Object> metrics = new ConcurrentHashMap<>();
+
+    /**
+     * Receives each metric as it is created, set when the metrics plugin is present
+     */
+    private volatile BiConsumer<String, Object> registrar;
+
+    private final Map<String, Counter> attemptsByLabel = new ConcurrentHashMap<>();
+    private final Map<String, Counter> failuresByLabel = new ConcurrentHashMap<>();
+    private final Counter[] connectionStates = new Counter[ConnectionState.values().length];
+    private final Counter[] launchOutcomes = new Counter[LaunchOutcome.values().length];
+    private final Timer janitorPass;
+    private final Counter janitorCleaned;
+    private final Timer lockWait;
+    private final Counter lockTimeouts;
+
+    /**
+     * Guards the request state snapshot, separate from the registration lock as taking a snapshot reads ZooKeeper
+     */
+    private final Object stateSnapshotLock = new Object();
+    private long[] stateSnapshot = new long[NodePoolState.values().length];
+    private long stateSnapshotTime = System.nanoTime() - STATE_SNAPSHOT_NANOS;
+
+    private NodePoolMetrics() {
+        janitorPass = register("janitor.pass", new Timer());
+        janitorCleaned = register("janitor.cleaned", new Counter());
+        lockWait = register("lock.wait", new Timer());
+        lockTimeouts = register("lock.timeouts", new Counter());
+        for (ConnectionState state : ConnectionState.values()) {
+            connectionStates[state.ordinal()] = register("zookeeper." + state.name().toLowerCase(), new Counter());
+        }
+        for (LaunchOutcome outcome : LaunchOutcome.values()) {
+            launchOutcomes[outcome.ordinal()] = register("launch." + outcome.name().toLowerCase(), new Counter());
+        }
+        register("requests.outstanding", new Gauge(NodePoolMetrics::outstandingRequests));
+        register("provisioning.waiting", new Gauge(() -> ProvisioningExecutor.get().getWaiting()));
+        register("provisioning.running", new Gauge(() -> ProvisioningExecutor.get().getRunning()));
+        for (NodePoolState state : NodePoolState.values()) {
+            register("requests.state." + state.name().toLowerCase(), new Gauge(() -> requestsInState(state)));
+        }
+    }
+
+    /**
+     * Returns the shared metrics.
+     *
+     * @return the metrics
+     */
+    public static NodePoolMetrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Registers the metrics with the metrics plugin, if it is installed.
+     */
+    @Initializer(after = InitMilestone.PLUGINS_STARTED)
+    public static void registerWithMetricsPlugin() {
+        final Jenkins jenkins = Jenkins.getInstanceOrNull();
+        if (jenkins == null || jenkins.getPlugin("metrics") == null) {
+            LOG.log(Level.FINE, "Metrics plugin not installed, NodePool metrics are only kept in process");
+            return;
+        }
+        try {
+            INSTANCE.setRegistrar(MetricsPluginBridge.registrar());
+        } catch (LinkageError e) {
+            LOG.log(Level.WARNING, format("%s while registering with the metrics plugin. Message: %s",
+                    e.getClass().getSimpleName(), e.getLocalizedMessage()));
+        }
+    }
+
+    /**
+     * Sets the receiver of metrics and passes it every metric created so far.
+     *
+     * @param registrar called with the full name and the metric
+     */
+    synchronized void setRegistrar(final BiConsumer<String, Object> registrar) {
+        this.registrar = registrar;
+        for (Map.Entry<String, Object> e : metrics.entrySet()) {
+            registrar.accept(e.getKey(), e.getValue());
+        }
+    }
+
+    private synchronized <T> T register(final String name, final T metric) {
+        final String fullName = PREFIX + name;
+        metrics.put(fullName, metric);
+        final BiConsumer<String, Object> r = registrar;
+        if (r != null) {
+            r.accept(fullName, metric);
+        }
+        return metric;
+    }
+
+    private Counter labelCounter(final Map<String, Counter> byLabel, final String name, final Label label) {
+        final String l = label == null ? ProvisioningMetrics.UNKNOWN : label.getName();
+        final Counter c = byLabel.get(l);
+        if (c != null) {
+            return c;
+        }
+        return byLabel.computeIfAbsent(l, k -> register(name + "." + k, new Counter()));
+    }
+
+    /**
+     * Counts a node request attempt.
+     *
+     * @param label the label the node was requested for
+     */
+    void attempt(final Label label) {
+        labelCounter(attemptsByLabel, "attempts", label).inc();
+    }
+
+    /**
+     * Counts a failed node request attempt.
+     *
+     * @param label the label the node was requested for
+     */
+    void attemptFailed(final Label label) {
+        labelCounter(failuresByLabel, "attempts.failed", label).inc();
+    }
+
+    void janitorPass(final long startNanos) {
+        janitorPass.recordSince(startNanos);
+    }
+
+    void janitorCleaned() {
+        janitorCleaned.inc();
+    }
+
+    void lockAcquired(final long waitNanos) {
+        lockWait.update(waitNanos);
+    }
+
+    void lockTimedOut() {
+        lockTimeouts.inc();
+    }
+
+    void connectionState(final ConnectionState state) {
+        connectionStates[state.ordinal()].inc();
+    }
+
+    void launch(final LaunchOutcome outcome) {
+        launchOutcomes[outcome.ordinal()].inc();
+    }
+
+    /**
+     * Returns a metric by its full name.
+     *
+     * @param name the full name, e.g. nodepool.janitor.cleaned
+     * @return the Counter, Gauge or Timer, or null if there is none
+     */
+    Object getMetric(final String name) {
+        return metrics.get(name);
+    }
+
+    /**
+     * Returns the current value of every metric, timers as their count, mean, percentiles and max in milliseconds.
+     *
+     * @return an object keyed by metric name
+     */
+    public JSONObject toJson() {
+        final JSONObject json = new JSONObject();
+        for (Map.Entry<String, Object> e : new TreeMap<>(metrics).entrySet()) {
+            final Object metric = e.getValue();
+            if (metric instanceof Counter) {
+                json.put(e.getKey(), ((Counter) metric).getCount());
+            } else if (metric instanceof Gauge) {
+                json.put(e.getKey(), ((Gauge) metric).getValue());
+            } else if (metric instanceof Timer) {
+                final LatencyHistogram h = ((Timer) metric).getHistogram();
+                final JSONObject t = new JSONObject();
+                t.put("count", h.getCount());
+                t.put("meanMs", h.getMeanMs());
+                t.put("p50Ms", h.getPercentileMs(50));
+                t.put("p99Ms", h.getPercentileMs(99));
+                t.put("maxMs", h.getMaxMs());
+                json.put(e.getKey(), t);
+            }
+        }
+        return json;
+    }
+
+    private static long outstandingRequests() {
+        long total = 0;
+        for (NodePool nodePool : nodePools()) {
+            final List<NodeRequest> requests = nodePool.getRequests();
+            total += requests == null ? 0 : requests.size();
+        }
+        return total;
+    }
+
+    private long requestsInState(final NodePoolState state) {
+        synchronized (stateSnapshotLock) {
+            return stateSnapshot(System.nanoTime())[state.ordinal()];
+        }
+    }
+
+    private long[] stateSnapshot(final long now) {
+        if (now - stateSnapshotTime >= STATE_SNAPSHOT_NANOS) {
+            final long[] snapshot = new long[NodePoolState.values().length];
+            for (NodePool nodePool : nodePools()) {
+                final List<NodeRequest> requests = nodePool.getRequests();
+                if (requests == null) {
+                    continue;
+                }
+                for (NodeRequest request : requests) {
+                    final NodePoolState s = request.getState();
+                    if (s != null) {
+                        snapshot[s.ordinal()]++;
+                    }
+                }
+            }
+            stateSnapshot = snapshot;
+            stateSnapshotTime = now;
+        }
+        return stateSnapshot;
+    }
+
+    private static List<NodePool> nodePools() {
+        if (Jenkins.getInstanceOrNull() == null) {
+            return Collections.emptyList();
+        }
+        final NodePools nodePools = NodePools.get();
+        return nodePools == null ? Collections.<NodePool>emptyList() : nodePools.getNodePools();
+    }
+}
@@ -1,8 +1,12 @@
 package com.rackspace.jenkins_nodepool;
 
 import com.rackspace.jenkins_nodepool.models.NodeModel;
+import org.apache.curator.framework.api.transaction.CuratorOp;
+import org.apache.zookeeper.data.Stat;
 
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.logging.Logger;
 
@@ -27,6 +31,12 @@ public class NodePoolNode {
      */
     private static final Logger LOG = Logger.getLogger(NodePoolNode.class.getName());
 
+    /**
+     * Maximum total time to wait for the lock on a node
+     */
+    private static final Duration LOCK_TIMEOUT = Duration.ofSeconds(Long.getLong(
+            NodePoolNode.class.getName() + ".lockTimeoutSec", 600L));
+
     /**
      * The lock on the node ZNode
      */
@@ -44,6 +54,17 @@ public class NodePoolNode {
 
     private final String labelPrefix;
 
+    /**
+     * The node data as of construction or our last write, never modified once captured. Read accessors use this
+     * rather than going to ZooKeeper, call {@link #refresh()} to pick up changes made by NodePool.
+     */
+    private volatile NodeModel model;
+
+    /**
+     * The model written by the last {@link #setStateOp} operation, captured once the transaction commits
+     */
+    private volatile NodeModel pendingModel;
+
     /**
      * Creates a new Zookeeper node for the node pool.
      *
@@ -60,13 +81,11 @@ public class NodePoolNode {
         String path = format("/%s/%s", nodePool.getNodeRoot(), id);
         final Class<NodeModel> modelClazz = NodeModel.class;
         LOG.log(FINE, format("Creating ZK wrapper object of type: %s for path: %s", modelClazz, path));
-        this.zkWrapper = new ZooKeeperObject<>(path, id, nodePool.getConn(), modelClazz);
+        this.zkWrapper = new ZooKeeperObject<>(path, id, nodePool.getConn(), modelClazz, nodePool.getCache());
 
         // Update the Build ID and save it back - use our wrapper to do the heavy lifting
         // Set create to true as the zNode probably won't exist
-        final NodeModel model = this.zkWrapper.load(true);
-        model.setBuild_id(npj.getBuildId());
-        this.zkWrapper.save(model);
+        this.model = this.zkWrapper.update(true, model -> model.setBuild_id(npj.getBuildId()));
 
         this.lock = new KazooLock(getLockPath(), nodePool, npj);
     }
@@ -86,17 +105,10 @@ public class NodePoolNode {
      * @return an array of NodePool labels
      */
     public List<String> getNPTypes() {
-        try {
-            final NodeModel model = zkWrapper.load();
-            List<String> types = model.getType();
-            if (types != null) {
-                return types;
-            } else {
-                return new ArrayList<>();
-            }
-        } catch (ZookeeperException e) {
-            LOG.log(WARNING, format("%s occurred while reading ZK node %s 'type' field. Message: %s",
-                    e.getClass().getSimpleName(), zkWrapper.getPath(), e.getLocalizedMessage()));
+        final List<String> types = model.getType();
+        if (types != null) {
+            return Collections.unmodifiableList(types);
+        } else {
             return new ArrayList<>();
         }
     }
@@ -107,14 +119,7 @@ public class NodePoolNode {
      * @return String name of the provider, or null if not set
      */
     public String getProvider() {
-        try {
-            final NodeModel model = zkWrapper.load();
-            return model.getProvider();
-        } catch (ZookeeperException e) {
-            LOG.log(WARNING, format("%s occurred while reading ZK node %s 'provider' field. Message: %s",
-                    e.getClass().getSimpleName(), zkWrapper.getPath(), e.getLocalizedMessage()));
-            return null;
-        }
+        return model.getProvider();
     }
 
     /**
@@ -159,11 +164,12 @@ public class NodePoolNode {
      * @return Jenkins label
      */
     public String getJenkinsLabel() {
-        if (getNPTypes().isEmpty()) {
+        final List<String> types = getNPTypes();
+        if (types.isEmpty()) {
             LOG.log(WARNING, "Unable to return a proper Jenkins Label - NP type list is empty.");
             return format("%s", labelPrefix);
         } else {
-            return format("%s%s", labelPrefix, getNPTypes().get(0));
+            return format("%s%s", labelPrefix, types.get(0));
         }
     }
 
@@ -182,14 +188,7 @@ public class NodePoolNode {
      * @return the host / interface IP or null if not set
      */
     public String getHost() {
-        try {
-            final NodeModel model = zkWrapper.load();
-            return model.getInterface_ip();
-        } catch (ZookeeperException e) {
-            LOG.log(WARNING, format("%s occurred while reading ZK node %s 'interface_ip' field. Message: %s",
-                    e.getClass().getSimpleName(), zkWrapper.getPath(), e.getLocalizedMessage()));
-            return null;
-        }
+        return model.getInterface_ip();
     }
 
     /**
@@ -198,24 +197,18 @@ public class NodePoolNode {
      * @return the connection port
      */
     public Integer getPort() {
-        try {
-            final NodeModel model = zkWrapper.load();
-            Integer connectionPort = model.getConnection_port();
+        final NodeModel model = this.model;
+        Integer connectionPort = model.getConnection_port();
+        if (connectionPort == null) {
+            // fall back to the SSH port field on older NodePool clusters.
+            connectionPort = model.getSsh_port();
             if (connectionPort == null) {
-                // fall back to the SSH port field on older NodePool clusters.
-                connectionPort = model.getSsh_port();
-                if (connectionPort == null) {
-                    return DEFAULT_CONNECTION_PORT;
-                } else {
-                    return connectionPort;
-                }
+                return DEFAULT_CONNECTION_PORT;
             } else {
                 return connectionPort;
             }
-        } catch (ZookeeperException e) {
-            LOG.log(WARNING, format("%s occurred while reading ZK node %s 'connection_port' or 'ssh_port' field. Message: %s",
-                    e.getClass().getSimpleName(), zkWrapper.getPath(), e.getLocalizedMessage()));
-            return null;
+        } else {
+            return connectionPort;
         }
     }
 
@@ -225,18 +218,11 @@ public class NodePoolNode {
      * @return the first host key
      */
     public String getHostKey() {
-        try {
-            final NodeModel model = zkWrapper.load();
-            final List<String> hostKeys = model.getHost_keys();
-            if (hostKeys.isEmpty()) {
-                return null;
-            } else {
-                return hostKeys.get(0);
-            }
-        } catch (ZookeeperException e) {
-            LOG.log(WARNING, format("%s occurred while reading ZK node %s 'host_keys' field. Message: %s",
-                    e.getClass().getSimpleName(), zkWrapper.getPath(), e.getLocalizedMessage()));
+        final List<String> hostKeys = model.getHost_keys();
+        if (hostKeys == null || hostKeys.isEmpty()) {
             return null;
+        } else {
+            return hostKeys.get(0);
         }
     }
 
@@ -246,16 +232,24 @@ public class NodePoolNode {
      * @return the host keys
      */
     public List<String> getHostKeys() {
-        try {
-            final NodeModel model = zkWrapper.load();
-            return model.getHost_keys();
-        } catch (ZookeeperException e) {
-            LOG.log(WARNING, format("%s occurred while reading ZK node %s 'host_keys' field. Message: %s",
-                    e.getClass().getSimpleName(), zkWrapper.getPath(), e.getLocalizedMessage()));
+        final List<String> hostKeys = model.getHost_keys();
+        if (hostKeys != null) {
+            return Collections.unmodifiableList(hostKeys);
+        } else {
             return new ArrayList<>();
         }
     }
 
+    /**
+     * Re-reads the node data from ZooKeeper, for callers that need to see changes made by NodePool since this
+     * object was created or last written.
+     *
+     * @throws ZookeeperException if the node can't be read
+     */
+    public void refresh() throws ZookeeperException {
+        model = zkWrapper.loadLive();
+    }
+
     /**
      * Returns the string representation for this object.
      *
@@ -273,9 +267,7 @@ public class NodePoolNode {
      */
     private void setState(NodePoolState state) {
         try {
-            final NodeModel model = zkWrapper.load();
-            model.setState(state);
-            zkWrapper.save(model);
+            model = zkWrapper.update(model -> model.setState(state));
         } catch (ZookeeperException e) {
             LOG.log(WARNING, format("%s occurred while reading/writing ZK node %s 'state' field. Message: %s",
                     e.getClass().getSimpleName(), zkWrapper.getPath(), e.getLocalizedMessage()));
@@ -291,11 +283,11 @@ public class NodePoolNode {
     public void hold(String jobIdentifier) throws Exception {
         // Lock should already be held, we only hold nodes that have already been assigned to Jenkins.
         try {
-            final NodeModel model = zkWrapper.load();
-            model.setState(NodePoolState.HOLD);
-            model.setComment("Jenkins hold");
-            model.setHold_job(jobIdentifier);
-            zkWrapper.save(model);
+            model = zkWrapper.update(model -> {
+                model.setState(NodePoolState.HOLD);
+                model.setComment("Jenkins hold");
+                model.setHold_job(jobIdentifier);
+            });
             unlock(); // imitate zuul and unlock here.
         } catch (ZookeeperException e) {
             LOG.log(WARNING, format("%s occurred while reading/writing ZK node %s 'state' and 'hold' related fields. Message: %s",
@@ -309,15 +301,8 @@ public class NodePoolNode {
      * @return the hold until time value for this Node.
      */
     public Long getHoldUntil() {
-        try {
-            final NodeModel model = zkWrapper.load();
-            // TODO: DAD - Reivew - model doesn't have hold_until key // return (Long) data.get("hold_until");
-            return model.getHold_expiration();
-        } catch (ZookeeperException e) {
-            LOG.log(WARNING, format("%s occurred while reading ZK node %s 'hold_expiration' field. Message: %s",
-                    e.getClass().getSimpleName(), zkWrapper.getPath(), e.getLocalizedMessage()));
-            return null;
-        }
+        // TODO: DAD - Reivew - model doesn't have hold_until key // return (Long) data.get("hold_until");
+        return model.getHold_expiration();
     }
 
     /**
@@ -327,10 +312,8 @@ public class NodePoolNode {
      */
     public void setHoldUntil(Long holdUntilTimeEpochMillis) {
         try {
-            final NodeModel model = zkWrapper.load();
             // TODO: DAD - Reivew - model doesn't have hold_until key // data.put("hold_until", holdUntilTimeEpochMillis);
-            model.setHold_expiration(holdUntilTimeEpochMillis);
-            zkWrapper.save(model);
+            model = zkWrapper.update(model -> model.setHold_expiration(holdUntilTimeEpochMillis));
         } catch (ZookeeperException e) {
             LOG.log(WARNING, format("%s occurred while reading/writing ZK node %s 'hold_expiration' field. Message: %s",
                     e.getClass().getSimpleName(), zkWrapper.getPath(), e.getLocalizedMessage()));
@@ -342,10 +325,8 @@ public class NodePoolNode {
      */
     public void removeHoldUntil() {
         try {
-            final NodeModel model = zkWrapper.load();
             // TODO: DAD - Reivew - model doesn't have hold_until key // data.remove("hold_until");
-            model.setHold_expiration(0L);
-            zkWrapper.save(model);
+            model = zkWrapper.update(model -> model.setHold_expiration(0L));
         } catch (ZookeeperException e) {
             LOG.log(WARNING, format("%s occurred while reading/writing ZK node %s 'hold_expiration' field. Message: %s",
                     e.getClass().getSimpleName(), zkWrapper.getPath(), e.getLocalizedMessage()));
@@ -358,10 +339,50 @@ public class NodePoolNode {
      * @throws Exception if an error occurs while setting the state
      */
     public void setInUse() throws Exception {
-        lock.acquire();
+        lock();
         setState(NodePoolState.IN_USE);
     }
 
+    /**
+     * Acquires the lock on this node without changing its state, see NodePool.acceptNodes.
+     *
+     * @throws Exception if the lock can't be acquired
+     */
+    void lock() throws Exception {
+        if (!lock.tryAcquire(LOCK_TIMEOUT)) {
+            throw new KazooLockException(format("Timed out after %ds acquiring lock for node %s",
+                    LOCK_TIMEOUT.getSeconds(), zkWrapper.getPath()));
+        }
+    }
+
+    /**
+     * Returns a transaction operation that sets the NodePool state of this node. The operation fails if the node
+     * is modified between this call and the transaction being committed.
+     *
+     * @param state NodePool node state
+     * @return the set data operation
+     * @throws ZookeeperException if the node can't be read
+     */
+    CuratorOp setStateOp(NodePoolState state) throws ZookeeperException {
+        return zkWrapper.updateOp(model -> {
+            model.setState(state);
+            pendingModel = model;
+        });
+    }
+
+    /**
+     * Records the result of a committed state operation.
+     *
+     * @param stat the stat of the node after the transaction
+     */
+    void stateWritten(Stat stat) {
+        zkWrapper.recordWrite(stat);
+        if (pendingModel != null) {
+            model = pendingModel;
+            pendingModel = null;
+        }
+    }
+
     /**
      * Mark the node as being used and release it.  It will be destroyed by NodePool.
      *
@@ -378,7 +399,7 @@ public class NodePoolNode {
     /**
      * Release the client's lock on the node.
      */
-    private void unlock() throws Exception {
+    void unlock() throws Exception {
         lock.release();
     }
 }
@@ -0,0 +1,102 @@
+package com.rackspace.jenkins_nodepool;
+
+/**
+ * Parsing helpers for ZNode paths and node names that are used on hot paths (lock acquisition, queue listeners).
+ * They scan from the end of the string and allocate nothing beyond the returned value - no regular expressions,
+ * split arrays or lists.
+ */
+final class NodePoolPaths {
+
+    /**
+     * Number of digits in a NodePool node id, e.g. 0000123456
+     */
+    static final int NODE_ID_LENGTH = 10;
+
+    /**
+     * Private constructor to prevent instantiation.
+     */
+    private NodePoolPaths() {
+    }
+
+    /**
+     * Returns the sequence number that ZooKeeper appended to a sequential lock contender ZNode, that is the digits
+     * following the final '_' of the path (e.g. /nodes/0000000001/lock/abc__lock__0000000007 gives 7).
+     *
+     * @param path the contender path or name
+     * @return the sequence number, or -1 if the path does not end with an underscore followed by digits
+     */
+    static int sequenceNumber(final String path) {
+        final int start = digitsStart(path);
+        if (start == path.length() || start == 0 || path.charAt(start - 1) != '_') {
+            return -1;
+        }
+        long value = 0;
+        for (int i = start; i < path.length(); i++) {
+            value = value * 10 + (path.charAt(i) - '0');
+            if (value > Integer.MAX_VALUE) {
+                return -1;
+            }
+        }
+        return (int) value;
+    }
+
+    /**
+     * Returns everything after the final '-' of the given path (e.g. the node id of /nodes/debian-0000000001 or the
+     * request id of /requests/100-0000000001).
+     *
+     * @param path the path
+     * @return the last segment, which may be empty, or null if the path has no '-'
+     */
+    static String lastDashSegment(final String path) {
+        final int dash = path.lastIndexOf('-');
+        return dash < 0 ? null : path.substring(dash + 1);
+    }
+
+    /**
+     * Returns true if the given string is non-empty and consists only of ASCII digits.
+     *
+     * @param s the string
+     * @return true if the string is a number
+     */
+    static boolean isDigits(final String s) {
+        return !s.isEmpty() && digitsStart(s) == 0;
+    }
+
+    /**
+     * Returns true if the given name ends with '-' followed by a NodePool node id, as the names of NodePool agents
+     * do (e.g. nodepool-debian-0000123456).
+     *
+     * @param name a label or node name
+     * @return true if the name refers to a specific NodePool node
+     */
+    static boolean endsWithNodeId(final String name) {
+        final int dash = name.length() - NODE_ID_LENGTH - 1;
+        if (dash < 0 || name.charAt(dash) != '-') {
+            return false;
+        }
+        for (int i = dash + 1; i < name.length(); i++) {
+            if (!isDigit(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the index of the first character of the run of digits at the end of the string.
+     *
+     * @param s the string
+     * @return the index of the trailing digits, or the length of the string if it doesn't end with a digit
+     */
+    private static int digitsStart(final String s) {
+        int i = s.length();
+        while (i > 0 && isDigit(s.charAt(i - 1))) {
+            i--;
+        }
+        return i;
+    }
+
+    private static boolean isDigit(final char c) {
+        return c >= '0' && c <= '9';
+    }
+}
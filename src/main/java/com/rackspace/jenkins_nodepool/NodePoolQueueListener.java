@@ -24,14 +24,12 @@
 package com.rackspace.jenkins_nodepool;
 
 import hudson.Extension;
-import hudson.model.Computer;
 import hudson.model.Label;
 import hudson.model.Queue;
 import hudson.model.queue.QueueListener;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Pattern;
 import jenkins.model.Jenkins;
 import org.jenkinsci.plugins.workflow.support.steps.ExecutorStepExecution.PlaceholderTask;
 
@@ -50,7 +48,8 @@ public class NodePoolQueueListener extends QueueListener {
     private final NodePools nodePools = NodePools.get();
 
     /**
-     * When a build is started, kick off a task to create any required NodePool nodes to service it.
+     * When a build is started, kick off a task to create any required NodePool nodes to service it, or to bind it to
+     * a ready agent from the warm pool.
      *
      * @param wi  item waiting in build queue
      */
@@ -72,7 +71,7 @@ public class NodePoolQueueListener extends QueueListener {
         // job that caused them.
         // Note that this won't kill builds for non NodePool labels as we check
         // for a prefix match.
-        if (!nps.isEmpty() && Pattern.matches(".*-[0-9]{10}$", label.getName())) {
+        if (!nps.isEmpty() && NodePoolPaths.endsWithNodeId(label.getName())) {
             LOG.log(Level.WARNING, "Killing queued task {0} as it refers to specific NodePool node {1}", new Object[]{wi.task, label});
             queue.cancel(wi);
             return;
@@ -90,15 +89,14 @@ public class NodePoolQueueListener extends QueueListener {
         // Test added so we don't take a thread for every build
         // This also has the side effect of removing non nodepool jobs
         // from NodePoolJobHistory and therefore NodePool View.
+        // Provisioning is asynchronous, the worker thread is only used to start it.
         if(!nps.isEmpty()){
-            Computer.threadPoolForRemoting.submit(() -> {
-                try {
-                    nodePools.provisionNode(label, wi.task, wi.getId());
-                } catch (Exception ex) {
-                    LOG.log(Level.SEVERE,
-                            "Exception thrown in provisioning thread, caught in onEnterWaiting: "+ex.getLocalizedMessage(), ex);
-                }
-            });
+            NodePoolScheduler.get().compose(() -> nodePools.provisionNodeAsync(label, wi.task, wi.getId()))
+                    .exceptionally(ex -> {
+                        LOG.log(Level.SEVERE,
+                                "Exception thrown while provisioning, caught in onEnterWaiting: "+ex.getLocalizedMessage(), ex);
+                        return null;
+                    });
         }
     }
 
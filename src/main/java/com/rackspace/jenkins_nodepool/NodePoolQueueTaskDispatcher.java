@@ -61,6 +61,11 @@ public class NodePoolQueueTaskDispatcher extends QueueTaskDispatcher {
         } else {
             // safe cast due to if
             NodePoolSlave nps = (NodePoolSlave) node;
+            if (nps.getNodePoolJob() != null && nps.getNodePoolJob().isWarm()) {
+                // a warm pool agent takes nothing until a task is bound to it, which happens when the task
+                // enters the queue, so it can't also be given to a task that has an agent on the way
+                return new WarmAgentNotBoundCauseOfBlockage();
+            }
             WorkflowRun itemRun = NodePoolUtils.getRunForQueueTask(task);
             WorkflowRun nodeRun = (WorkflowRun)nps.getNodePoolJob().getRun();
 
@@ -75,6 +80,15 @@ public class NodePoolQueueTaskDispatcher extends QueueTaskDispatcher {
         }
     }
 
+    public static class WarmAgentNotBoundCauseOfBlockage extends CauseOfBlockage{
+
+        @Override
+        public String getShortDescription() {
+            return "Attempting to assign a task to a NodePool warm pool agent that has not been bound to a build";
+        }
+
+    }
+
     public static class NodeCreatedForAnotherBuildCauseOfBlockage extends CauseOfBlockage{
 
         @Override
@@ -1,13 +1,13 @@
 package com.rackspace.jenkins_nodepool;
 
-import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import static java.lang.String.format;
-import java.nio.charset.Charset;
-import java.util.Map;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import static java.util.logging.Logger.getLogger;
@@ -31,11 +31,11 @@ public class NodePoolRequestStateWatcher implements CuratorWatcher {
     private static final Logger log = getLogger(NodePoolRequestStateWatcher.class.getName());
 
     private final CountDownLatch latch = new CountDownLatch(1);
-    private final Gson gson = new Gson();
+    private final CompletableFuture<NodePoolState> done = new CompletableFuture<>();
     private final CuratorFramework curatorFramework;
     private final String zpath;
     private final NodePoolState desiredState;
-    private final NodePoolJob nodePoolJob;
+    private final List<NodePoolJob> nodePoolJobs;
 
     /**
      * Creates a new node pool state watcher for the specified path and NodePool state value.
@@ -43,17 +43,31 @@ public class NodePoolRequestStateWatcher implements CuratorWatcher {
      * @param curatorFramework a reference to the Curator Framework
      * @param zpath            the zookeeper node path
      * @param desiredState     the desired state to watch for
+     * @param npj              the job the request was made for
      */
     NodePoolRequestStateWatcher(CuratorFramework curatorFramework, String zpath, NodePoolState desiredState, NodePoolJob npj) {
+        this(curatorFramework, zpath, desiredState, Collections.singletonList(npj));
+    }
+
+    /**
+     * Creates a new node pool state watcher for a request shared by several jobs, which stops waiting once none of
+     * their builds is running.
+     *
+     * @param curatorFramework a reference to the Curator Framework
+     * @param zpath            the zookeeper node path
+     * @param desiredState     the desired state to watch for
+     * @param npjs             the jobs the request was made for
+     */
+    NodePoolRequestStateWatcher(CuratorFramework curatorFramework, String zpath, NodePoolState desiredState, List<NodePoolJob> npjs) {
         this.curatorFramework = curatorFramework;
         this.zpath = zpath;
         this.desiredState = desiredState;
-        this.nodePoolJob = npj;
+        this.nodePoolJobs = npjs;
 
         try {
             registerWatch(zpath);
         } catch (Exception e) {
-            latch.countDown();
+            finish(null);
             log.warning(e.getClass().getSimpleName() + " while registering watcher. Message: " +
                     e.getLocalizedMessage());
         }
@@ -78,6 +92,16 @@ public class NodePoolRequestStateWatcher implements CuratorWatcher {
         }
     }
 
+    /**
+     * Releases both synchronous and asynchronous waiters.
+     *
+     * @param state the state that ended the wait, null if the wait ended for another reason
+     */
+    private void finish(final NodePoolState state) {
+        latch.countDown();
+        done.complete(state);
+    }
+
     /**
      * Our event callback method.  When something changes and the request is fulfilled, we'll adjust our latch and the
      * blocking call to waitUntilDone() will return.
@@ -91,13 +115,13 @@ public class NodePoolRequestStateWatcher implements CuratorWatcher {
         }
 
         try {
-            if(!nodePoolJob.getRun().isBuilding()){
-                // if the job that the request was created for
-                // is no longer running, then stop waiting for
+            if(!nodePoolJobs.isEmpty() && !NodePoolJob.anyNeeded(nodePoolJobs)){
+                // if the jobs that the request was created for
+                // are no longer running, then stop waiting for
                 // the request to complete.
                 // NodePool.attemptProvision2 will test the state
                 // and discover that fulfilled probably wasn't achieved
-                latch.countDown();
+                finish(null);
                 return;
             }
             // Re-register if not a NodeDeleted and not a None event type
@@ -117,7 +141,7 @@ public class NodePoolRequestStateWatcher implements CuratorWatcher {
 
                 // Are we in the desired state yet? No reason to continue if the request failed.
                 if (state == desiredState || state == NodePoolState.FAILED || state == NodePoolState.ABORTED) {
-                    latch.countDown();
+                    finish(state);
                 } else {
                     log.fine(format("Watch event ignoring event type: %s. Fetched state is: %s/%s",
                             event.getType(), state, getStateFromPath()));
@@ -165,6 +189,32 @@ public class NodePoolRequestStateWatcher implements CuratorWatcher {
         }
     }
 
+    /**
+     * Asynchronous version of waitUntilDone, no thread is held while waiting. The returned future completes when
+     * the desired state (or a failure state) is reached, or the build stops, and completes exceptionally with a
+     * TimeoutException if that doesn't happen within the timeout. The caller must check the state it completes with.
+     *
+     * @param timeout the timeout value
+     * @param unit    the unit of the timeout value, typically TimeUnit.SECONDS
+     * @return a future for the state that ended the wait, null if the builds stopped or the watch couldn't be set
+     */
+    CompletableFuture<NodePoolState> waitUntilDoneAsync(long timeout, TimeUnit unit) {
+        final NodePoolState state;
+        try {
+            state = getStateFromPath();
+        } catch (Exception e) {
+            return NodePoolScheduler.failed(new NodePoolException(
+                    "Failed to check state of node request before setting watch: " + zpath + " Exception:" + e.toString()));
+        }
+        // Check if we're already done, there won't be a change event if so
+        if (state == desiredState || state == NodePoolState.FAILED || state == NodePoolState.ABORTED) {
+            finish(state);
+            return done;
+        }
+        return NodePoolScheduler.get().withTimeout(done, timeout, unit, () -> new TimeoutException(
+                format("Timeout waiting for NodePool ZNode %s to reach state %s", zpath, desiredState.toString())));
+    }
+
     /**
      * Convenience routine to return the state value from the zpath.
      *
@@ -175,19 +225,6 @@ public class NodePoolRequestStateWatcher implements CuratorWatcher {
     NodePoolState getStateFromPath() throws Exception {
 
         // Let's fetch the data from ZK directly so we can read the state value
-
-        // Read the raw values
-        final byte[] bytes = curatorFramework.getData().forPath(this.zpath);
-
-        // Convert to a string
-        final String jsonString = new String(bytes, Charset.forName("UTF-8"));
-
-        // Load into a map
-        final Map<String, Object> data = gson.fromJson(jsonString, new TypeToken<Map<String, Object>>() {
-        }.getType());
-
-        // Grab the specific state value - we use the fromString() method since it can handle strings with hyphens (such
-        // as the case of the "in-use" state).
-        return NodePoolState.fromString((String) data.get("state"));
+        return NodeRequestStateDispatcher.decodeState(curatorFramework.getData().forPath(this.zpath));
     }
 }
@@ -9,7 +9,6 @@ import edu.umd.cs.findbugs.annotations.CheckForNull;
 import hudson.AbortException;
 import hudson.FilePath;
 import hudson.model.Node;
-import hudson.model.Slave;
 import hudson.model.TaskListener;
 import hudson.plugins.sshslaves.Messages;
 import hudson.plugins.sshslaves.PluginImpl;
@@ -169,7 +168,7 @@ public class NodePoolSSHLauncher extends ComputerLauncher {
         // We'll use a thread executor to run the tasks
         final ExecutorService launcherExecutorService = Executors.newSingleThreadExecutor(
                 new NamingThreadFactory(
-                        Executors.defaultThreadFactory(),
+                        VirtualThreads.orElse(Executors.defaultThreadFactory()),
                         "NodePoolSSHLauncher.Agent launch for '" + computer.getName() + "' node"));
 
         info(tl, format("Launching JRE installer, agent installer, and execute thread for computer: %s", computer));
@@ -180,6 +179,7 @@ public class NodePoolSSHLauncher extends ComputerLauncher {
             public Boolean call() throws InterruptedException {
 
                 Boolean returnValue = Boolean.FALSE;
+                final ProvisioningMetrics.Series metrics = ProvisioningMetrics.get().series(node);
 
                 try {
                     // Not ready to accept tasks yet
@@ -201,45 +201,61 @@ public class NodePoolSSHLauncher extends ComputerLauncher {
                     }
 
                     // Open the connection to the slave
+                    long phaseStart = System.nanoTime();
                     openConnection(tl, computer);
+                    metrics.record(ProvisioningMetrics.Phase.SSH_CONNECT, phaseStart);
                     // Clean up the connection
                     verifyNoHeaderJunk(tl);
-                    // Show/Dump the environment details
-                    reportEnvironment(tl, computer);
-
-                    // Perform the JDK/JRE installation
-                    for (int i = 0; i <= maxNumRetries; i++) {
-                        try{
-                            FilePath jdkInstallationFolder = jdkInstaller.performInstallation(computer.getNode(), tl, connection);
-                            info(tl, format("Installation is complete for node: %s on %s:%d.  Installation folder is: %s",
-                                    computer, getHost(), getPort(), jdkInstallationFolder));
-                            break;
-                        } catch (Exception e){
-                            if (maxNumRetries - i > 0) {
-                                tl.getLogger().println("Failed to install JDK, retrying");
-                            } else {
-                                tl.getLogger().println("Failed to install JDK and out of retries.");
-                                throw e;
+                    // The java binary _should_ be in the path once installed
+                    final String java = "java";
+                    final String workingDirectory = "/tmp";
+
+                    final String installCommand = jdkInstaller.getInstallCommand();
+                    if (!AgentBootstrap.DISABLED && installCommand != null) {
+                        // one session reports the environment, checks/installs java and receives the agent jar
+                        bootstrap(tl, computer, metrics, installCommand, workingDirectory);
+                    } else {
+                        // Show/Dump the environment details
+                        reportEnvironment(tl, computer);
+
+                        // Perform the JDK/JRE installation
+                        phaseStart = System.nanoTime();
+                        for (int i = 0; i <= maxNumRetries; i++) {
+                            try{
+                                FilePath jdkInstallationFolder = jdkInstaller.performInstallation(computer.getNode(), tl, connection);
+                                info(tl, format("Installation is complete for node: %s on %s:%d.  Installation folder is: %s",
+                                        computer, getHost(), getPort(), jdkInstallationFolder));
+                                break;
+                            } catch (Exception e){
+                                if (maxNumRetries - i > 0) {
+                                    tl.getLogger().println("Failed to install JDK, retrying");
+                                } else {
+                                    tl.getLogger().println("Failed to install JDK and out of retries.");
+                                    throw e;
+                                }
+                            }
+                            try {
+                                Thread.sleep(TimeUnit.SECONDS.toMillis(retryWaitTimeSeconds*(i+1)));
+                            }catch (InterruptedException e){
+                                // meh
                             }
                         }
-                        try {
-                            Thread.sleep(TimeUnit.SECONDS.toMillis(retryWaitTimeSeconds*(i+1)));
-                        }catch (InterruptedException e){
-                            // meh
-                        }
-                    }
 
-                    // The java binary _should_ be in the path now
-                    final String java = "java";
-                    final String workingDirectory = "/tmp";
+                        metrics.record(ProvisioningMetrics.Phase.JDK_INSTALL, phaseStart);
 
-                    fine(tl, format("Copying over the slave jar for node: %s on %s:%d",
-                            computer, getHost(), getPort()));
-                    copySlaveJar(tl, workingDirectory);
+                        fine(tl, format("Copying over the slave jar for node: %s on %s:%d",
+                                computer, getHost(), getPort()));
+                        phaseStart = System.nanoTime();
+                        copySlaveJar(tl, workingDirectory);
+                        metrics.record(ProvisioningMetrics.Phase.AGENT_COPY, phaseStart);
+                    }
 
                     fine(tl, format("Starting Jenkins agent for node: %s on %s:%d",
                             computer, getHost(), getPort()));
+                    phaseStart = System.nanoTime();
+                    // returns once the channel is up and the computer is online
                     startSlave(computer, tl, java, workingDirectory);
+                    metrics.record(ProvisioningMetrics.Phase.AGENT_START, phaseStart);
 
                     fine(tl, format("Registering Jenkins agent for node: %s on %s:%d",
                             computer, getHost(), getPort()));
@@ -296,19 +312,30 @@ public class NodePoolSSHLauncher extends ComputerLauncher {
             } catch (ExecutionException e) {
                 warn(tl, format("%s while running install. Message: %s", e.getClass().getSimpleName(), e.getLocalizedMessage()));
                 res = Boolean.FALSE;
+            } catch (CancellationException e) {
+                warn(tl, format("Install for node %s did not complete within the launch timeout", nodeName));
+                res = Boolean.FALSE;
             }
 
             if (res) {
+                NodePoolMetrics.get().launch(NodePoolMetrics.LaunchOutcome.SUCCESS);
                 info(tl, format("SSH Launch of node %s on %s:%d completed in %d ms",
                         nodeName, getHost(), getPort(), duration));
             } else {
+                NodePoolMetrics.get().launch(results.get(0).isCancelled()
+                        ? NodePoolMetrics.LaunchOutcome.TIMEOUT : NodePoolMetrics.LaunchOutcome.FAILURE);
                 warn(tl, format("SSH Launch failed for node %s on %s:%d, took %d ms. Cleaning up the connection.",
                         nodeName, getHost(), getPort(), duration));
                 cleanupConnection(tl);
+                // let provisioning fail fast rather than wait for the launch deadline
+                NodePoolComputerListener.launchFailed(computer.getName(), new NodePoolException(format(
+                        "SSH Launch failed for node %s on %s:%d", nodeName, getHost(), getPort())));
             }
         } catch (InterruptedException e) {
+            NodePoolMetrics.get().launch(NodePoolMetrics.LaunchOutcome.INTERRUPTED);
             warn(tl, format("SSH Launch failed for node %s on %s:%d with a %s error.",
                     nodeName, getHost(), getPort(), e.getClass().getSimpleName()));
+            NodePoolComputerListener.launchFailed(computer.getName(), e);
         } finally {
             launcherExecutorService.shutdownNow();
         }
@@ -435,6 +462,48 @@ public class NodePoolSSHLauncher extends ComputerLauncher {
         connection.exec("set", tl.getLogger());
     }
 
+    /**
+     * Prepares the node with a single bootstrap session, retrying as the separate installation would.
+     *
+     * @param tl               the task listener
+     * @param computer         the computer being launched
+     * @param metrics          receives the time spent installing java and copying the jar
+     * @param installCommand   shell command that installs java
+     * @param workingDirectory the directory into which the slave jar will be copied
+     * @throws IOException          if the bootstrap fails on every attempt
+     * @throws InterruptedException if interrupted while waiting for the bootstrap
+     */
+    private void bootstrap(TaskListener tl, SlaveComputer computer, ProvisioningMetrics.Series metrics,
+                           String installCommand, String workingDirectory) throws IOException, InterruptedException {
+        final AgentJar slaveJar = AgentJar.get();
+        final AgentBootstrap bootstrap = new AgentBootstrap(connection, installCommand, workingDirectory,
+                SSHLauncher.AGENT_JAR);
+        for (int i = 0; ; i++) {
+            try {
+                fine(tl, format("Bootstrapping node: %s on %s:%d", computer, getHost(), getPort()));
+                final AgentBootstrap.Timings timings = bootstrap.run(tl, slaveJar);
+                metrics.get(ProvisioningMetrics.Phase.JDK_INSTALL).recordMicros(
+                        TimeUnit.NANOSECONDS.toMicros(timings.getJavaNanos()));
+                metrics.get(ProvisioningMetrics.Phase.AGENT_COPY).recordMicros(
+                        TimeUnit.NANOSECONDS.toMicros(timings.getJarNanos()));
+                info(tl, format("Bootstrap is complete for node: %s on %s:%d. Java %s in %d ms, agent jar %s in %d ms",
+                        computer, getHost(), getPort(), timings.isInstalled() ? "installed" : "found",
+                        TimeUnit.NANOSECONDS.toMillis(timings.getJavaNanos()),
+                        timings.isCopied() ? "copied (" + slaveJar.getLength() + " bytes)" : "already present",
+                        TimeUnit.NANOSECONDS.toMillis(timings.getJarNanos())));
+                return;
+            } catch (IOException e) {
+                if (maxNumRetries - i > 0) {
+                    tl.getLogger().println("Failed to bootstrap node, retrying. Message: " + e.getLocalizedMessage());
+                } else {
+                    tl.getLogger().println("Failed to bootstrap node and out of retries.");
+                    throw e;
+                }
+            }
+            Thread.sleep(TimeUnit.SECONDS.toMillis(retryWaitTimeSeconds * (i + 1)));
+        }
+    }
+
     /**
      * Method copies the slave jar to the remote system.
      *
@@ -445,6 +514,12 @@ public class NodePoolSSHLauncher extends ComputerLauncher {
     private void copySlaveJar(TaskListener tl, String workingDirectory) throws IOException, InterruptedException {
         String fileName = workingDirectory + SSHLauncher.SLASH_AGENT_JAR;
 
+        final AgentJar slaveJar = AgentJar.get();
+        if (slaveJar.matches(remoteSha256(fileName))) {
+            fine(tl, format("Agent jar %s on %s:%d is current, not copying it", fileName, getHost(), getPort()));
+            return;
+        }
+
         fine(tl, format("Starting sftp client to: %s:%d", getHost(), getPort()));
         SFTPClient sftpClient = null;
         try {
@@ -470,12 +545,11 @@ public class NodePoolSSHLauncher extends ComputerLauncher {
 
                 try {
                     fine(tl, Messages.SSHLauncher_CopyingAgentJar(getTimestamp()));
-                    byte[] slaveJar = new Slave.JnlpJar(SSHLauncher.AGENT_JAR).readFully();
                     // Transfer the JAR over - use resource management to auto-close/cleanup
                     try (OutputStream os = sftpClient.writeToFile(fileName)) {
-                        os.write(slaveJar);
+                        slaveJar.writeTo(os);
                     }
-                    fine(tl, format("Copied %d bytes", slaveJar.length));
+                    fine(tl, format("Copied %d bytes", slaveJar.getLength()));
                 } catch (Throwable e) {
                     warn(tl, format("%s Message: %s", Messages.SSHLauncher_ErrorCopyingAgentJarTo(fileName), e.getLocalizedMessage()));
                     throw new IOException(Messages.SSHLauncher_ErrorCopyingAgentJarTo(fileName), e);
@@ -502,6 +576,19 @@ public class NodePoolSSHLauncher extends ComputerLauncher {
         }
     }
 
+    /**
+     * Returns the SHA-256 digest of a file on the node.
+     *
+     * @param fileName the file
+     * @return the hex digest, or an empty string if the file doesn't exist or can't be hashed
+     */
+    private String remoteSha256(String fileName) throws IOException, InterruptedException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final String file = AgentBootstrap.quote(fileName);
+        connection.exec("(sha256sum " + file + " || shasum -a 256 " + file + ") 2>/dev/null | cut -d ' ' -f 1", out);
+        return out.toString(Charset.defaultCharset().name()).trim();
+    }
+
     /**
      * Method copies the slave jar to the remote system using scp.
      *
@@ -527,7 +614,7 @@ public class NodePoolSSHLauncher extends ComputerLauncher {
 
             // SCP it to the slave. hudson.Util.ByteArrayOutputStream2 doesn't work for this. It pads the byte array.
             fine(tl, Messages.SSHLauncher_CopyingAgentJar(getTimestamp()));
-            scp.put(new Slave.JnlpJar(SSHLauncher.AGENT_JAR).readFully(), SSHLauncher.AGENT_JAR, workingDirectory, "0644");
+            scp.put(AgentJar.get().getBytes(), SSHLauncher.AGENT_JAR, workingDirectory, "0644");
         } catch (IOException e) {
             throw new IOException(Messages.SSHLauncher_ErrorCopyingAgentJarInto(workingDirectory), e);
         }
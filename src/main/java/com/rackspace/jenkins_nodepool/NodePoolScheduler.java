@@ -0,0 +1,229 @@
+package com.rackspace.jenkins_nodepool;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+import static java.lang.String.format;
+import static java.util.logging.Level.WARNING;
+
+/**
+ * Bounded thread pools that drive the asynchronous provisioning pipeline.
+ * <p>
+ * The scheduler pool is only used for timeouts, retries and cheap periodic checks - nothing run on it may block.
+ * The worker pool runs the short blocking steps of the pipeline (synchronous ZooKeeper calls, node locks, adding
+ * agents to Jenkins). Neither pool holds a thread while a request is waiting to be fulfilled or an agent is waiting
+ * to come online. When {@link VirtualThreads} are active the worker steps each run on a new virtual thread instead.
+ */
+public final class NodePoolScheduler {
+
+    private static final Logger LOG = Logger.getLogger(NodePoolScheduler.class.getName());
+
+    /**
+     * Number of threads used for timeouts, retries and polling
+     */
+    private static final int SCHEDULER_THREADS = Integer.getInteger(
+            NodePoolScheduler.class.getName() + ".schedulerThreads", 2);
+
+    /**
+     * Maximum number of platform threads used for short blocking pipeline steps, virtual threads are not pooled
+     */
+    private static final int WORKER_THREADS = Integer.getInteger(
+            NodePoolScheduler.class.getName() + ".workerThreads", 10);
+
+    private static final NodePoolScheduler INSTANCE = new NodePoolScheduler();
+
+    private final ScheduledExecutorService scheduler;
+
+    private final Executor worker;
+
+    private NodePoolScheduler() {
+        final ScheduledThreadPoolExecutor stpe = new ScheduledThreadPoolExecutor(Math.max(1, SCHEDULER_THREADS),
+                new NamingThreadFactory(new DaemonThreadFactory(), "NodePool scheduler"));
+        // don't keep cancelled timeouts around until they would have fired
+        stpe.setRemoveOnCancelPolicy(true);
+        scheduler = stpe;
+
+        final Executor virtualWorker = VirtualThreads.perTaskExecutor("NodePool worker");
+        if (virtualWorker != null) {
+            worker = virtualWorker;
+        } else {
+            final int workers = Math.max(1, WORKER_THREADS);
+            final ThreadPoolExecutor tpe = new ThreadPoolExecutor(workers, workers, 60L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), new NamingThreadFactory(new DaemonThreadFactory(), "NodePool worker"));
+            tpe.allowCoreThreadTimeOut(true);
+            worker = tpe;
+        }
+    }
+
+    /**
+     * Returns the shared scheduler.
+     *
+     * @return the shared scheduler
+     */
+    public static NodePoolScheduler get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the executor for short blocking steps.
+     *
+     * @return the worker executor
+     */
+    public Executor getWorker() {
+        return worker;
+    }
+
+    /**
+     * Returns the executor for timeouts and non-blocking periodic work.
+     *
+     * @return the scheduled executor
+     */
+    public ScheduledExecutorService getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Runs the given blocking step on the worker pool.
+     *
+     * @param callable the step
+     * @param <T>      the result type
+     * @return a future holding the result of the step
+     */
+    public <T> CompletableFuture<T> supply(final Callable<T> callable) {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            worker.execute(() -> {
+                try {
+                    future.complete(callable.call());
+                } catch (Throwable t) {
+                    future.completeExceptionally(t);
+                }
+            });
+        } catch (RuntimeException e) {
+            // rejected
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Runs the given step on the worker pool, the step returns a future that the result is chained to.
+     *
+     * @param callable the step
+     * @param <T>      the result type
+     * @return a future holding the result of the future returned by the step
+     */
+    public <T> CompletableFuture<T> compose(final Callable<CompletableFuture<T>> callable) {
+        return supply(callable).thenCompose(f -> f);
+    }
+
+    /**
+     * Returns a future that completes after the given delay.
+     *
+     * @param delay the delay
+     * @param unit  the unit of the delay
+     * @return a future that completes after the delay
+     */
+    public CompletableFuture<Void> delay(final long delay, final TimeUnit unit) {
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        scheduler.schedule(() -> future.complete(null), delay, unit);
+        return future;
+    }
+
+    /**
+     * Completes the given future exceptionally if it has not completed within the timeout (Java 8 has no
+     * CompletableFuture.orTimeout).
+     *
+     * @param future    the future
+     * @param timeout   the timeout
+     * @param unit      the unit of the timeout
+     * @param exception supplies the exception to complete the future with on timeout
+     * @param <T>       the result type
+     * @return the given future
+     */
+    public <T> CompletableFuture<T> withTimeout(final CompletableFuture<T> future, final long timeout,
+                                                final TimeUnit unit,
+                                                final Supplier<? extends Throwable> exception) {
+        if (future.isDone()) {
+            return future;
+        }
+        final ScheduledFuture<?> timer = scheduler.schedule(
+                () -> future.completeExceptionally(exception.get()), timeout, unit);
+        future.whenComplete((r, e) -> timer.cancel(false));
+        return future;
+    }
+
+    /**
+     * Periodically evaluates a cheap, non-blocking condition without holding a thread between checks.
+     *
+     * @param condition  the condition to wait for
+     * @param abort      stop waiting early when this is true
+     * @param intervalMs time between checks in milliseconds
+     * @param timeout    the maximum time to wait
+     * @param unit       the unit of the timeout
+     * @return a future that completes with true if the condition was met, or false on abort or timeout
+     */
+    public CompletableFuture<Boolean> pollUntil(final BooleanSupplier condition, final BooleanSupplier abort,
+                                                final long intervalMs, final long timeout, final TimeUnit unit) {
+        final CompletableFuture<Boolean> future = new CompletableFuture<>();
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        final ScheduledFuture<?> task = scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                if (condition.getAsBoolean()) {
+                    future.complete(true);
+                } else if (abort.getAsBoolean() || System.nanoTime() - deadline > 0) {
+                    future.complete(false);
+                }
+            } catch (RuntimeException e) {
+                LOG.log(WARNING, format("%s occurred while polling. Message: %s",
+                        e.getClass().getSimpleName(), e.getLocalizedMessage()));
+                future.completeExceptionally(e);
+            }
+        }, 0, intervalMs, TimeUnit.MILLISECONDS);
+        future.whenComplete((r, e) -> task.cancel(false));
+        return future;
+    }
+
+    /**
+     * Returns a future that has already completed exceptionally (Java 8 has no CompletableFuture.failedFuture).
+     *
+     * @param t   the exception
+     * @param <T> the result type
+     * @return the failed future
+     */
+    public static <T> CompletableFuture<T> failed(final Throwable t) {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(t);
+        return future;
+    }
+
+    /**
+     * Removes the CompletionException/ExecutionException wrappers added by CompletableFuture.
+     *
+     * @param t an exception from a completed future
+     * @return the underlying cause
+     */
+    public static Throwable unwrap(final Throwable t) {
+        Throwable cause = t;
+        while ((cause instanceof CompletionException || cause instanceof ExecutionException)
+                && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return cause;
+    }
+}
@@ -108,9 +108,9 @@ public class NodePoolSlave extends Slave {
     static final long serialVersionUID = 1L;
 
     /**
-     * NodePoolJob this slave/agent was created for.
+     * NodePoolJob this slave/agent was created for, or the job it was bound to if it was created for the warm pool.
      */
-    final transient NodePoolJob nodePoolJob;
+    transient volatile NodePoolJob nodePoolJob;
 
     /**
      * Create a new slave
@@ -166,6 +166,31 @@ public class NodePoolSlave extends Slave {
         return this.nodePoolJob;
     }
 
+    /**
+     * Bind a warm pool agent to the job of a build. An agent can only be bound once, which keeps the one build per
+     * node guarantee.
+     *
+     * @param job the job to bind to
+     * @return true if bound, false if the agent was not a warm agent or was already bound
+     */
+    synchronized boolean bind(final NodePoolJob job) {
+        final NodePoolJob warm = this.nodePoolJob;
+        if (warm == null || !warm.isWarm()) {
+            return false;
+        }
+        job.adoptAttempts(warm);
+        job.setNodePoolNode(nodePoolNode);
+        job.setNodePoolSlave(this);
+        this.nodePoolJob = job;
+        final Computer computer = toComputer();
+        if (computer instanceof NodePoolComputer) {
+            ((NodePoolComputer) computer).setJob(job);
+        }
+        job.logToBoth("Bound warm NodePool agent " + getDisplayName() + " to build " + job.getBuildId());
+        Janitor.nodeChanged(getNodeName());
+        return true;
+    }
+
     /**
      * A quick function to determine which JDK installer we have based on the NodePool configuration.
      *
@@ -194,6 +219,9 @@ public class NodePoolSlave extends Slave {
     }
 
     public String getBuildUrl() {
+        if (nodePoolJob == null || nodePoolJob.isWarm()) {
+            return null;
+        }
         return Jenkins.getInstance().getRootUrl() + nodePoolJob.getRun().getUrl();
     }
 
@@ -289,6 +317,7 @@ public class NodePoolSlave extends Slave {
     public void setHeld(boolean held) {
         this.held = held;
         this.nodePoolJob.logToBoth("Setting hold status for " + this.getDisplayName() + " to " + this.held);
+        Janitor.nodeChanged(getNodeName());
     }
 
     /**
@@ -451,6 +480,7 @@ public class NodePoolSlave extends Slave {
      */
     public void setHoldUntilEpochMs(final long holdUntilEpochMs) {
         this.holdUntilEpochMs = holdUntilEpochMs;
+        Janitor.nodeChanged(getNodeName());
     }
 
     /**
@@ -519,7 +549,7 @@ public class NodePoolSlave extends Slave {
     }
 
     public Boolean isFinished() {
-        return !nodePoolJob.getRun().isBuilding();
+        return !nodePoolJob.isNeeded();
     }
 
     /**
@@ -27,10 +27,12 @@ import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import hudson.Extension;
 import hudson.model.Label;
 import hudson.model.Queue;
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
@@ -63,6 +65,9 @@ public class NodePools extends GlobalConfiguration implements Iterable<NodePool>
     // track job history - do not persist across restarts
     private transient NodePoolJobHistory nodePoolJobHistory = new NodePoolJobHistory();
 
+    // finished jobs are also written to disk, created on first use
+    private transient NodePoolJobHistoryStore historyStore;
+
     public NodePools() {
         load();
         initTransients();
@@ -133,33 +138,47 @@ public class NodePools extends GlobalConfiguration implements Iterable<NodePool>
     }
 
     /**
-     * Submit request for node(s) required to execute the given task based on the
-     * nodes associated with the specified label.
+     * Submit request for node(s) required to execute the given task based on the nodes associated with the specified
+     * label. Returns as soon as the provisioning pipeline has been started.
      *
-     * @param label  the label attribute to filter the list of available nodes
-     * @param task   the task the node is being provisioned for
+     * @param label   the label attribute to filter the list of available nodes
+     * @param task    the task the node is being provisioned for
      * @param queueID the Queue id for the supplied task
-     * @throws IllegalArgumentException if timeout is less than 1 second
-     * @throws Exception                if an error occurs managing the provision
-     *                                  components
+     * @return a future that completes when provisioning has finished, the task is cancelled if provisioning fails
      */
-    public void provisionNode(Label label, Queue.Task task, long queueID) throws IllegalArgumentException, Exception {
+    public CompletableFuture<Void> provisionNodeAsync(Label label, Queue.Task task, long queueID) {
         final NodePoolJob job = new NodePoolJob(label, task, queueID);
         LOG.log(Level.INFO, job.getOverviewString());
         nodePoolJobHistory.add(job);
 
-        try {
-            for (NodePool np : nodePoolsForLabel(label)) {
-                np.provisionNode(job);
-                // Prevent multiple nodes being provisioned if label prefixes were to overlap.
-                break;
+        for (NodePool np : nodePoolsForLabel(label)) {
+            // Only the first matching NodePool is used, to prevent multiple nodes being provisioned if label
+            // prefixes were to overlap.
+            final WarmPool warmPool = np.getWarmPool();
+            if (warmPool != null && warmPool.take(job) != null) {
+                // bound to an agent that was launched ahead of demand, there is nothing to provision
+                NodePoolScheduler.get().getWorker().execute(
+                        () -> recordJob(job, np, NodePoolJob.NodeRequestAttemptState.SUCCESS));
+                return CompletableFuture.completedFuture(null);
             }
-        } catch (NodePoolException e) {
-            // we failed to provision the node(s), cancel the job
-            job.logToBoth("Provisioning failed for task: " + task.getName()
-                    + " with node label:" + task.getAssignedLabel().getName() + ".  Task will be cancelled");
-            Jenkins.getInstance().getQueue().cancel(task);
+            // waits for a provisioning permit of the NodePool before anything is requested
+            final CompletableFuture<Void> provisioned =
+                    ProvisioningExecutor.get().submit(np, job, () -> np.provisionNodeAsync(job));
+            // the history is written on a worker, not on whichever thread happened to finish provisioning
+            return provisioned.whenCompleteAsync((v, t) -> recordJob(job, np, null),
+                    NodePoolScheduler.get().getWorker()).exceptionally(t -> {
+                if (NodePoolScheduler.unwrap(t) instanceof NodePoolException) {
+                    // we failed to provision the node(s), cancel the job
+                    job.logToBoth("Provisioning failed for task: " + task.getName()
+                            + " with node label:" + task.getAssignedLabel().getName() + ".  Task will be cancelled");
+                    Jenkins.getInstance().getQueue().cancel(task);
+                } else {
+                    LOG.log(Level.SEVERE, "Exception thrown while provisioning: " + t.getLocalizedMessage(), t);
+                }
+                return null;
+            });
         }
+        return CompletableFuture.completedFuture(null);
     }
 
     @DataBoundSetter
@@ -174,4 +193,41 @@ public class NodePools extends GlobalConfiguration implements Iterable<NodePool>
     public NodePoolJobHistory getJobHistory() {
         return nodePoolJobHistory;
     }
+
+    /**
+     * Returns the on-disk job history, kept under JENKINS_HOME.
+     *
+     * @return the history store, or null if Jenkins is not running
+     */
+    public synchronized NodePoolJobHistoryStore getHistoryStore() {
+        if (historyStore == null) {
+            final Jenkins jenkins = Jenkins.getInstanceOrNull();
+            if (jenkins == null) {
+                return null;
+            }
+            historyStore = new NodePoolJobHistoryStore(new File(jenkins.getRootDir(), NodePoolJobHistoryStore.DIR_NAME));
+        }
+        return historyStore;
+    }
+
+    /**
+     * Writes a finished job to the on-disk history.
+     *
+     * @param job    the job
+     * @param np     the NodePool the job was provisioned from
+     * @param result the outcome to record, or null to take it from the job's attempts
+     */
+    private void recordJob(final NodePoolJob job, final NodePool np,
+                           final NodePoolJob.NodeRequestAttemptState result) {
+        final NodePoolJobHistoryStore store = getHistoryStore();
+        if (store == null) {
+            return;
+        }
+        try {
+            store.append(NodePoolJobHistoryStore.JobRecord.of(job, np.getConnectionString(), result));
+        } catch (IOException | RuntimeException e) {
+            LOG.log(Level.WARNING, String.format("%s error while saving history of %s. Message: %s",
+                    e.getClass().getSimpleName(), job, e.getLocalizedMessage()));
+        }
+    }
 }
@@ -32,8 +32,10 @@ import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Logger;
 
+import org.apache.curator.framework.api.transaction.CuratorOp;
 import org.apache.zookeeper.CreateMode;
 
 import static java.lang.String.format;
@@ -75,6 +77,11 @@ public class NodeRequest {
      */
     private final NodePoolJob nodePoolJob;
 
+    /**
+     * Every job this request asks for a node for, the first is nodePoolJob. A batched request has more than one.
+     */
+    private final List<NodePoolJob> jobs;
+
     /**
      * A handler for reading and writing the data model to/from Zookeeper
      */
@@ -90,21 +97,100 @@ public class NodeRequest {
      */
     @SuppressFBWarnings
     public NodeRequest(NodePool nodePool, String baseId, NodePoolJob npj) throws Exception {
+        this(nodePool, baseId, npj, true);
+    }
+
+    /**
+     * Create new request, optionally without saving it to ZooKeeper.
+     *
+     * @param nodePool NodePool cluster to use
+     * @param baseId   the base id string for the request
+     * @param npj      Associated NodePoolJob which contains the task
+     * @param save     save the request to ZooKeeper before returning
+     * @throws ZookeeperException on ZooKeeper error
+     */
+    private NodeRequest(NodePool nodePool, String baseId, NodePoolJob npj, boolean save) throws ZookeeperException {
+        this(nodePool, baseId, Collections.singletonList(npj), save);
+    }
+
+    /**
+     * Create new request for a node for each of the given jobs, optionally without saving it to ZooKeeper.
+     *
+     * @param nodePool NodePool cluster to use
+     * @param baseId   the base id string for the request
+     * @param npjs     the jobs, all for the same label
+     * @param save     save the request to ZooKeeper before returning
+     * @throws ZookeeperException on ZooKeeper error
+     */
+    private NodeRequest(NodePool nodePool, String baseId, List<NodePoolJob> npjs, boolean save) throws ZookeeperException {
         this.nodePool = nodePool;
         // Create an instance of the ZK object wrapper for the Node Request Model - path is relative to the ZK connection namespace (typically: /nodepool)
         final Class<NodeRequestModel> modelClazz = NodeRequestModel.class;
         this.zkWrapper = new ZooKeeperObject<>(
                 format("/%s/%s-", this.nodePool.getRequestRoot(), baseId),
-                baseId, this.nodePool.getConn(), modelClazz);
+                baseId, this.nodePool.getConn(), modelClazz, this.nodePool.getCache());
         LOG.log(FINEST, format("Creating node request with path prefix: %s", zkWrapper.getPath()));
 
-        this.nodePoolJob = npj;
-        this.task = npj.getTask();
+        this.jobs = Collections.unmodifiableList(new ArrayList<>(npjs));
+        this.nodePoolJob = jobs.get(0);
+        this.task = nodePoolJob.getTask();
+
+        if (save) {
+            // Save the model to ZK
+            final String generatedPath = this.zkWrapper.save(buildModel(), CreateMode.EPHEMERAL_SEQUENTIAL);
+            LOG.log(FINEST, format("Created new node request, path: %s (generated path: %s), id: %s", getPath(), generatedPath, getZKID()));
+        }
+
+        startTime = System.currentTimeMillis();
+    }
 
-        // Build up the ZK request model
-        final String jenkinsLabel = task.getAssignedLabel().getDisplayName();
+    /**
+     * Creates a new request without blocking the calling thread.
+     *
+     * @param nodePool NodePool cluster to use
+     * @param baseId   the base id string for the request
+     * @param npj      Associated NodePoolJob which contains the task
+     * @return a future holding the request once it has been saved to ZooKeeper
+     */
+    static CompletableFuture<NodeRequest> createAsync(NodePool nodePool, String baseId, NodePoolJob npj) {
+        return createBatchAsync(nodePool, baseId, Collections.singletonList(npj));
+    }
+
+    /**
+     * Creates a single request for a node for each of the given jobs without blocking the calling thread. NodePool
+     * fulfils the request with one node per entry in node_types, the nodes are handed to the jobs in order.
+     *
+     * @param nodePool NodePool cluster to use
+     * @param baseId   the base id string for the request
+     * @param npjs     the jobs, all for the same label
+     * @return a future holding the request once it has been saved to ZooKeeper
+     */
+    static CompletableFuture<NodeRequest> createBatchAsync(NodePool nodePool, String baseId, List<NodePoolJob> npjs) {
+        final NodeRequest request;
+        try {
+            request = new NodeRequest(nodePool, baseId, npjs, false);
+        } catch (ZookeeperException e) {
+            return NodePoolScheduler.failed(e);
+        }
+        return request.zkWrapper.saveAsync(request.buildModel(), CreateMode.EPHEMERAL_SEQUENTIAL)
+                .thenApply(generatedPath -> {
+                    LOG.log(FINEST, format("Created new node request, path: %s, id: %s", generatedPath, request.getZKID()));
+                    return request;
+                });
+    }
+
+    /**
+     * Builds the initial ZK request model.
+     *
+     * @return the request model
+     */
+    private NodeRequestModel buildModel() {
+        final String jenkinsLabel = getJenkinsLabel().getDisplayName();
         final List<String> nodeTypes = new ArrayList<>();
-        nodeTypes.add(nodePool.nodePoolLabelFromJenkinsLabel(jenkinsLabel));
+        final String nodeType = nodePool.nodePoolLabelFromJenkinsLabel(jenkinsLabel);
+        for (int i = 0; i < jobs.size(); i++) {
+            nodeTypes.add(nodeType);
+        }
         final NodeRequestModel model = new NodeRequestModel(
                 nodeTypes,
                 Collections.emptyList(), // declined by
@@ -114,17 +200,13 @@ public class NodeRequest {
                 NodePoolState.REQUESTED,
                 Collections.emptyList(), // nodes
                 jenkinsLabel,
-                npj.getBuildId());
-        // Save the model to ZK
-        final String generatedPath = this.zkWrapper.save(model, CreateMode.EPHEMERAL_SEQUENTIAL);
-
-        LOG.log(FINEST, format("Created new node request, path: %s (generated path: %s), id: %s", getPath(), generatedPath, getZKID()));
-
-        startTime = System.currentTimeMillis();
+                nodePoolJob.getBuildId());
+        return model;
     }
 
     /**
-     * Returns the requested state value from the data model.
+     * Returns the requested state value from the data model. The value may come from the shared cache, which can lag
+     * behind NodePool's own writes, so it is only meant for display.
      *
      * @return the requested state value from the data model.
      */
@@ -147,9 +229,7 @@ public class NodeRequest {
      */
     public boolean updateState(final NodePoolState state) {
         try {
-            final NodeRequestModel model = zkWrapper.load();
-            model.setState(state);
-            zkWrapper.save(model);
+            zkWrapper.update(model -> model.setState(state));
             return true;
         } catch (ZookeeperException e) {
             LOG.log(WARNING, format("%s occurred while setting ZK node %s 'state' field. Message: %s",
@@ -167,6 +247,15 @@ public class NodeRequest {
         return this.nodePoolJob;
     }
 
+    /**
+     * Returns every job this request asks for a node for
+     *
+     * @return the jobs, in the order their nodes are allocated
+     */
+    public List<NodePoolJob> getJobs() {
+        return jobs;
+    }
+
     /**
      * Get node names only from the local cache of the ZNode
      *
@@ -193,7 +282,8 @@ public class NodeRequest {
     }
 
     /**
-     * Get list of NodePool nodes that have been allocated to fulfill this request
+     * Get list of NodePool nodes that have been allocated to fulfill this request. The request is read directly from
+     * ZooKeeper, as the shared cache may not have seen NodePool fulfil it yet.
      *
      * @return list of nodes
      * @throws Exception on ZooKeeper error
@@ -203,17 +293,18 @@ public class NodeRequest {
         // {"nodes": ["0000000000"], "node_types": ["debian"], "state": "fulfilled", "declined_by": [], "state_time": 1520849225.4513698, "reuse": false, "requestor": "NodePool:min-ready"}
 
         try {
-            final NodeRequestModel model = zkWrapper.load();
+            final NodeRequestModel model = zkWrapper.loadLive();
             if (model.getState() != NodePoolState.FULFILLED) {
                 throw new IllegalStateException("Attempt to get allocated nodes from a node request before it has been fulfilled.");
             }
             final List<NodePoolNode> nodeObjects = new ArrayList<>();
-            for (String node : model.getNodes()) {
-                //this is a list but, there should only be one node as we only ever request one node.
-                NodePoolNode npn = new NodePoolNode(nodePool, node, nodePoolJob);
+            final List<String> nodes = model.getNodes();
+            for (int i = 0; i < nodes.size(); i++) {
+                // one node per job, a batched request hands them out in order
+                final NodePoolJob owner = jobs.get(Math.min(i, jobs.size() - 1));
+                NodePoolNode npn = new NodePoolNode(nodePool, nodes.get(i), owner);
                 nodeObjects.add(npn);
-                nodePoolJob.setNodePoolNode(npn);
-
+                owner.setNodePoolNode(npn);
             }
             return nodeObjects;
         } catch (ZookeeperException e) {
@@ -231,9 +322,7 @@ public class NodeRequest {
      */
     public boolean setAllocatedNodes(final List<String> nodes) {
         try {
-            final NodeRequestModel model = zkWrapper.load();
-            model.setNode_types(nodes);
-            zkWrapper.save(model);
+            zkWrapper.update(model -> model.setNode_types(nodes));
             return true;
         } catch (ZookeeperException e) {
             LOG.log(WARNING, format("%s occurred while updating ZK node %s 'node_types' field. Message: %s",
@@ -250,9 +339,7 @@ public class NodeRequest {
      */
     public boolean addAllocatedNodes(final List<String> nodes) {
         try {
-            final NodeRequestModel model = zkWrapper.load();
-            model.getNodes().addAll(nodes);
-            zkWrapper.save(model);
+            zkWrapper.update(model -> model.getNodes().addAll(nodes));
             return true;
         } catch (ZookeeperException e) {
             LOG.log(WARNING, format("%s occurred while updating ZK node %s 'node_types' field. Message: %s",
@@ -284,7 +371,8 @@ public class NodeRequest {
      * @return the jenkins label
      */
     public Label getJenkinsLabel() {
-        return task.getAssignedLabel();
+        // warm pool requests have no task
+        return task == null ? nodePoolJob.getLabel() : task.getAssignedLabel();
     }
 
     /**
@@ -336,6 +424,16 @@ public class NodeRequest {
         zkWrapper.delete();
     }
 
+    /**
+     * Returns a transaction operation that deletes the Node Request.
+     *
+     * @return the delete operation
+     * @throws ZookeeperException if the operation can't be built
+     */
+    CuratorOp deleteOp() throws ZookeeperException {
+        return zkWrapper.deleteOp();
+    }
+
     /**
      * Returns the node request model as JSON.
      *
@@ -0,0 +1,168 @@
+package com.rackspace.jenkins_nodepool;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+import static java.lang.String.format;
+import static java.util.logging.Level.FINE;
+
+/**
+ * Gathers the provisioning attempts of one NodePool that arrive for the same label within a short window and makes
+ * them with a single multi-node request.
+ * <p>
+ * A burst of queue items, e.g. a pipeline fanning out many parallel stages on one label, then costs NodePool one
+ * request ZNode per batch rather than one per stage. A batch is sent when the window that its first job opened closes
+ * ('windowMillis' after it arrived) or as soon as it holds 'maxBatchSize' jobs, whichever comes first. Batching is off
+ * unless 'windowMillis' is set, and retries of a failed attempt are always made with a request of their own.
+ */
+final class NodeRequestBatcher {
+
+    private static final Logger LOG = Logger.getLogger(NodeRequestBatcher.class.getName());
+
+    /**
+     * How long a batch waits for more jobs of its label, 0 disables batching
+     */
+    static final long WINDOW_MS = Long.getLong(NodeRequestBatcher.class.getName() + ".windowMillis", 0L);
+
+    /**
+     * Largest number of nodes asked for by one request
+     */
+    static final int MAX_BATCH_SIZE = Integer.getInteger(NodeRequestBatcher.class.getName() + ".maxBatchSize", 20);
+
+    /**
+     * A job waiting in a batch and the future its caller holds
+     */
+    private static final class Pending {
+        private final NodePoolJob job;
+        private final CompletableFuture<Void> result = new CompletableFuture<>();
+
+        Pending(NodePoolJob job) {
+            this.job = job;
+        }
+    }
+
+    private final Function<List<NodePoolJob>, List<CompletableFuture<Void>>> provisioner;
+    private final ScheduledExecutorService scheduler;
+    private final Executor executor;
+    private final long windowMs;
+    private final int maxBatchSize;
+
+    /**
+     * Open batches by label name, guarded by this
+     */
+    private final Map<String, List<Pending>> open = new HashMap<>();
+
+    /**
+     * Creates a batcher with the configured window and batch size, timed on the shared NodePool scheduler.
+     *
+     * @param provisioner makes one attempt for a batch, returning a future per job in the order of the jobs
+     */
+    NodeRequestBatcher(final Function<List<NodePoolJob>, List<CompletableFuture<Void>>> provisioner) {
+        this(provisioner, NodePoolScheduler.get().getScheduler(), NodePoolScheduler.get().getWorker(), WINDOW_MS,
+                MAX_BATCH_SIZE);
+    }
+
+    /**
+     * Creates a batcher.
+     *
+     * @param provisioner  makes one attempt for a batch, returning a future per job in the order of the jobs
+     * @param scheduler    closes the windows
+     * @param executor     sends the batches whose window has closed
+     * @param windowMs     how long a batch waits for more jobs, 0 to disable batching
+     * @param maxBatchSize the largest batch
+     */
+    NodeRequestBatcher(final Function<List<NodePoolJob>, List<CompletableFuture<Void>>> provisioner,
+                       final ScheduledExecutorService scheduler, final Executor executor, final long windowMs,
+                       final int maxBatchSize) {
+        this.provisioner = provisioner;
+        this.scheduler = scheduler;
+        this.executor = executor;
+        this.windowMs = windowMs;
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * @return true if attempts should be submitted to this batcher
+     */
+    boolean isEnabled() {
+        return windowMs > 0 && maxBatchSize > 1;
+    }
+
+    /**
+     * Adds a job to the open batch of its label, opening one if there is none.
+     *
+     * @param job the job
+     * @return a future that completes when the job's agent is online, or fails if the attempt fails
+     */
+    CompletableFuture<Void> submit(final NodePoolJob job) {
+        final Pending pending = new Pending(job);
+        final String label = job.getLabel().getName();
+        List<Pending> full = null;
+        synchronized (this) {
+            List<Pending> batch = open.get(label);
+            if (batch == null) {
+                final List<Pending> opened = new ArrayList<>();
+                open.put(label, opened);
+                scheduler.schedule(() -> executor.execute(() -> close(label, opened)), windowMs, TimeUnit.MILLISECONDS);
+                batch = opened;
+            }
+            batch.add(pending);
+            if (batch.size() >= maxBatchSize) {
+                open.remove(label);
+                full = batch;
+            }
+        }
+        if (full != null) {
+            send(full);
+        }
+        return pending.result;
+    }
+
+    /**
+     * Sends a batch when its window closes, unless it filled up and was sent already.
+     */
+    private void close(final String label, final List<Pending> batch) {
+        synchronized (this) {
+            if (open.get(label) != batch) {
+                return;
+            }
+            open.remove(label);
+        }
+        send(batch);
+    }
+
+    private void send(final List<Pending> batch) {
+        final List<NodePoolJob> jobs = new ArrayList<>(batch.size());
+        for (Pending p : batch) {
+            jobs.add(p.job);
+        }
+        LOG.log(FINE, format("Requesting %d nodes with label %s in one request", jobs.size(), jobs.get(0).getLabel()));
+        List<CompletableFuture<Void>> results;
+        try {
+            results = provisioner.apply(jobs);
+        } catch (RuntimeException e) {
+            for (Pending p : batch) {
+                p.result.completeExceptionally(e);
+            }
+            return;
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            final CompletableFuture<Void> result = batch.get(i).result;
+            results.get(i).whenComplete((v, t) -> {
+                if (t != null) {
+                    result.completeExceptionally(t);
+                } else {
+                    result.complete(null);
+                }
+            });
+        }
+    }
+}
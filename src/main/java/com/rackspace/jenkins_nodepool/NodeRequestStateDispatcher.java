@@ -0,0 +1,278 @@
+package com.rackspace.jenkins_nodepool;
+
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.apache.curator.framework.recipes.cache.PathChildrenCache;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheEvent;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheListener;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Logger;
+
+import static java.lang.String.format;
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.WARNING;
+
+/**
+ * Waits for node requests to reach a given state using a single children cache on the request root of a NodePool
+ * cluster, rather than one watch per outstanding request.
+ * <p>
+ * Every change to a request ZNode is delivered once to the cache, which hands it to the waiter registered for that
+ * path (if any). Only the state field of the request is decoded. The cache re-reads the children after a reconnect,
+ * so transitions that happened while the connection was down are not missed.
+ */
+public class NodeRequestStateDispatcher implements PathChildrenCacheListener {
+
+    /**
+     * Our class logger.
+     */
+    private static final Logger LOG = Logger.getLogger(NodeRequestStateDispatcher.class.getName());
+
+    /**
+     * System property used to disable the dispatcher, in which case a watcher is created per request.
+     */
+    static final String ENABLED = NodeRequestStateDispatcher.class.getName() + ".enabled";
+
+    /**
+     * An outstanding wait for a single request
+     */
+    private static class Waiter {
+        final NodePoolState desiredState;
+        final List<NodePoolJob> jobs;
+        final CompletableFuture<NodePoolState> future = new CompletableFuture<>();
+
+        Waiter(NodePoolState desiredState, List<NodePoolJob> jobs) {
+            this.desiredState = desiredState;
+            this.jobs = jobs;
+        }
+    }
+
+    private final CuratorFramework conn;
+    private final String requestRoot;
+    private final PathChildrenCache cache;
+    private final Map<String, Waiter> waiters = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a dispatcher for the given request root. It is not started until {@link #start()} is called.
+     *
+     * @param conn        the ZooKeeper connection
+     * @param requestRoot the request root path, relative to the connection namespace (e.g. /requests)
+     */
+    public NodeRequestStateDispatcher(final CuratorFramework conn, final String requestRoot) {
+        this.conn = conn;
+        this.requestRoot = requestRoot;
+        this.cache = new PathChildrenCache(conn, requestRoot, true);
+        this.cache.getListenable().addListener(this);
+    }
+
+    /**
+     * Returns true if the dispatcher is enabled by configuration.
+     *
+     * @return false if the enabled system property is set to false
+     */
+    static boolean enabled() {
+        return Boolean.parseBoolean(System.getProperty(ENABLED, "true"));
+    }
+
+    /**
+     * Starts watching the request root.
+     *
+     * @throws ZookeeperException if the cache cannot be started
+     */
+    public void start() throws ZookeeperException {
+        try {
+            cache.start(PathChildrenCache.StartMode.NORMAL);
+        } catch (Exception e) {
+            LOG.log(WARNING, format("%s occurred while starting request watch on %s. Message: %s",
+                    e.getClass().getSimpleName(), requestRoot, e.getLocalizedMessage()));
+            throw new ZookeeperException(e);
+        }
+    }
+
+    /**
+     * Stops watching. Outstanding waits complete exceptionally.
+     */
+    public void close() {
+        try {
+            cache.close();
+        } catch (Exception e) {
+            LOG.log(WARNING, format("%s occurred while closing request watch on %s. Message: %s",
+                    e.getClass().getSimpleName(), requestRoot, e.getLocalizedMessage()));
+        }
+        for (Waiter waiter : waiters.values()) {
+            waiter.future.completeExceptionally(new NodePoolException(
+                    format("Request watch on %s closed", requestRoot)));
+        }
+    }
+
+    /**
+     * Returns a future that completes with the request state once the request reaches the desired state or fails,
+     * or the build it was made for is no longer running. The caller must check the state it completes with. The
+     * future completes exceptionally with a TimeoutException if that doesn't happen within the timeout, or with a
+     * NodePoolException if the request ZNode goes away.
+     *
+     * @param path         the request ZNode path
+     * @param desiredState the state to wait for
+     * @param job          the job the request was made for
+     * @param timeout      the timeout value
+     * @param unit         the unit of the timeout value
+     * @return a future for the state of the request
+     */
+    CompletableFuture<NodePoolState> await(final String path, final NodePoolState desiredState,
+                                           final NodePoolJob job, final long timeout, final TimeUnit unit) {
+        return await(path, desiredState,
+                job == null ? Collections.<NodePoolJob>emptyList() : Collections.singletonList(job), timeout, unit);
+    }
+
+    /**
+     * As {@link #await(String, NodePoolState, NodePoolJob, long, TimeUnit)} for a request shared by several jobs,
+     * which is only given up on once none of their builds is running.
+     *
+     * @param path         the request ZNode path
+     * @param desiredState the state to wait for
+     * @param jobs         the jobs the request was made for
+     * @param timeout      the timeout value
+     * @param unit         the unit of the timeout value
+     * @return a future for the state of the request
+     */
+    CompletableFuture<NodePoolState> await(final String path, final NodePoolState desiredState,
+                                           final List<NodePoolJob> jobs, final long timeout, final TimeUnit unit) {
+        final Waiter waiter = new Waiter(desiredState, jobs);
+        final Waiter previous = waiters.put(path, waiter);
+        if (previous != null) {
+            previous.future.completeExceptionally(new NodePoolException(
+                    format("Superseded by another wait for request %s", path)));
+        }
+        waiter.future.whenComplete((s, t) -> waiters.remove(path, waiter));
+
+        // Registered before reading, so a change between the read and now is delivered by the cache
+        try {
+            final ChildData current = cache.getCurrentData(path);
+            final byte[] bytes = current != null ? current.getData() : conn.getData().forPath(path);
+            check(path, waiter, bytes);
+        } catch (Exception e) {
+            waiter.future.completeExceptionally(new NodePoolException(
+                    "Failed to check state of node request before setting watch: " + path + " Exception:" + e));
+        }
+
+        return NodePoolScheduler.get().withTimeout(waiter.future, timeout, unit, () -> new TimeoutException(
+                format("Timeout waiting for NodePool ZNode %s to reach state %s", path, desiredState)));
+    }
+
+    /**
+     * Returns the number of requests currently being waited for.
+     *
+     * @return the number of outstanding waits
+     */
+    int getWaiterCount() {
+        return waiters.size();
+    }
+
+    @Override
+    public void childEvent(CuratorFramework client, PathChildrenCacheEvent event) {
+        final ChildData data = event.getData();
+        if (data == null) {
+            return;
+        }
+        final Waiter waiter = waiters.get(data.getPath());
+        if (waiter == null) {
+            return;
+        }
+        switch (event.getType()) {
+            case CHILD_ADDED:
+            case CHILD_UPDATED:
+                check(data.getPath(), waiter, data.getData());
+                break;
+            case CHILD_REMOVED:
+                waiter.future.completeExceptionally(new NodePoolException(
+                        format("Request %s was deleted while waiting for state %s", data.getPath(),
+                                waiter.desiredState)));
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Completes the wait if the given request data shows that the wait is over.
+     *
+     * @param path   the request ZNode path
+     * @param waiter the wait for that request
+     * @param bytes  the request data
+     */
+    private void check(final String path, final Waiter waiter, final byte[] bytes) {
+        try {
+            if (!waiter.jobs.isEmpty() && !NodePoolJob.anyNeeded(waiter.jobs)) {
+                // the builds that the request was made for are gone, the caller will find that the request was not
+                // fulfilled
+                waiter.future.complete(null);
+                return;
+            }
+            final NodePoolState state = decodeState(bytes);
+            LOG.log(FINE, format("Request %s is in state %s, waiting for %s", path, state, waiter.desiredState));
+            if (state == waiter.desiredState || state == NodePoolState.FAILED || state == NodePoolState.ABORTED) {
+                waiter.future.complete(state);
+            }
+        } catch (RuntimeException e) {
+            LOG.log(WARNING, format("%s occurred while checking state of request %s. Message: %s. Ignoring the event.",
+                    e.getClass().getSimpleName(), path, e.getLocalizedMessage()));
+        }
+    }
+
+    /**
+     * Decodes only the state field of a request ZNode. The data is streamed straight from the bytes and reading stops
+     * at the state field, so the rest of the payload (which can include long declined_by lists) is never
+     * materialised.
+     *
+     * @param bytes the request data
+     * @return the request state, or null if there is no state
+     * @throws JsonSyntaxException if the data is not a valid JSON object
+     */
+    static NodePoolState decodeState(final byte[] bytes) {
+        if (bytes == null || bytes.length == 0) {
+            return null;
+        }
+        try (JsonReader reader = new JsonReader(
+                new InputStreamReader(new ByteArrayInputStream(bytes), StandardCharsets.UTF_8))) {
+            reader.setLenient(true);
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if ("state".equals(reader.nextName())) {
+                    return readState(reader);
+                }
+                reader.skipValue();
+            }
+            return null;
+        } catch (IOException | IllegalStateException e) {
+            throw new JsonSyntaxException(e);
+        }
+    }
+
+    /**
+     * Reads a request state value, which may be null.
+     *
+     * @param in the reader, positioned at the value
+     * @return the request state, or null
+     * @throws IOException if the value can't be read
+     */
+    private static NodePoolState readState(final JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        return NodePoolState.fromString(in.nextString());
+    }
+}
@@ -0,0 +1,273 @@
+package com.rackspace.jenkins_nodepool;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+import static java.lang.String.format;
+import static java.util.logging.Level.FINE;
+
+/**
+ * Admits provisioning of new agents a limited number at a time, so that a burst of queued builds can't flood NodePool
+ * with requests or the master with SSH launches.
+ * <p>
+ * Each NodePool provisions at most its configured number of agents at once and all NodePools together at most
+ * 'maxTotal'. Provisioning holds its permit until its agent is online or it has given up, without holding a thread.
+ * Waiting jobs are admitted from the NodePool with the best request priority first (lowest value, as in NodePool
+ * itself). Within a NodePool the labels with waiting jobs take turns, so one busy label can't starve the others, and
+ * the jobs of a label are admitted in queue order.
+ */
+final class ProvisioningExecutor {
+
+    private static final Logger LOG = Logger.getLogger(ProvisioningExecutor.class.getName());
+
+    /**
+     * Maximum number of agents provisioned at once by a NodePool that doesn't set its own limit
+     */
+    static final int DEFAULT_MAX_PER_NODE_POOL = Integer.getInteger(
+            ProvisioningExecutor.class.getName() + ".maxPerNodePool", 20);
+
+    /**
+     * Maximum number of agents provisioned at once by all NodePools together
+     */
+    static final int MAX_TOTAL = Integer.getInteger(ProvisioningExecutor.class.getName() + ".maxTotal", 100);
+
+    private static volatile ProvisioningExecutor instance;
+
+    /**
+     * A job waiting to be admitted
+     */
+    private static final class Item {
+        private final PoolQueue pool;
+        private final long queueId;
+        private final long seq;
+        private final Supplier<CompletableFuture<Void>> provisioning;
+        private final CompletableFuture<Void> result = new CompletableFuture<>();
+
+        Item(PoolQueue pool, long queueId, long seq, Supplier<CompletableFuture<Void>> provisioning) {
+            this.pool = pool;
+            this.queueId = queueId;
+            this.seq = seq;
+            this.provisioning = provisioning;
+        }
+    }
+
+    /**
+     * The waiting jobs of one NodePool by label, in the order the labels take turns
+     */
+    private static final class PoolQueue {
+        private final NodePool nodePool;
+        private final Map<String, PriorityQueue<Item>> labels = new LinkedHashMap<>();
+        private int waiting;
+        private int running;
+
+        PoolQueue(NodePool nodePool) {
+            this.nodePool = nodePool;
+        }
+
+        Item peek() {
+            final Iterator<PriorityQueue<Item>> it = labels.values().iterator();
+            return it.hasNext() ? it.next().peek() : null;
+        }
+
+        /**
+         * Takes the first job of the label whose turn it is and sends the label to the back of the line.
+         */
+        Item poll() {
+            final Iterator<Map.Entry<String, PriorityQueue<Item>>> it = labels.entrySet().iterator();
+            if (!it.hasNext()) {
+                return null;
+            }
+            final Map.Entry<String, PriorityQueue<Item>> first = it.next();
+            final Item item = first.getValue().poll();
+            it.remove();
+            if (!first.getValue().isEmpty()) {
+                labels.put(first.getKey(), first.getValue());
+            }
+            waiting--;
+            return item;
+        }
+    }
+
+    private final Executor executor;
+    private final int maxTotal;
+
+    /**
+     * Queues by NodePool instance, a reconfigured NodePool gets a new queue. Everything below is guarded by this.
+     */
+    private final Map<NodePool, PoolQueue> pools = new IdentityHashMap<>();
+    private int running;
+    private int waiting;
+    private long seq;
+
+    /**
+     * Creates an executor.
+     *
+     * @param executor starts admitted provisioning
+     * @param maxTotal the maximum number of agents provisioned at once by all NodePools together
+     */
+    ProvisioningExecutor(final Executor executor, final int maxTotal) {
+        this.executor = executor;
+        this.maxTotal = Math.max(1, maxTotal);
+    }
+
+    /**
+     * Returns the shared executor, which starts provisioning on the NodePool worker pool.
+     *
+     * @return the executor
+     */
+    static ProvisioningExecutor get() {
+        if (instance == null) {
+            synchronized (ProvisioningExecutor.class) {
+                if (instance == null) {
+                    instance = new ProvisioningExecutor(NodePoolScheduler.get().getWorker(), MAX_TOTAL);
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Queues the provisioning of an agent for a job, starting it as soon as its NodePool has a free permit and it is
+     * the job's turn.
+     *
+     * @param nodePool     the NodePool the agent is provisioned from
+     * @param job          the job the agent is for
+     * @param provisioning starts provisioning and returns a future that completes when it has finished
+     * @return a future that completes with the future returned by provisioning
+     */
+    CompletableFuture<Void> submit(final NodePool nodePool, final NodePoolJob job,
+                                   final Supplier<CompletableFuture<Void>> provisioning) {
+        final String label = job.getLabel() == null ? ProvisioningMetrics.UNKNOWN : job.getLabel().getName();
+        final Item item;
+        synchronized (this) {
+            final PoolQueue pool = pools.computeIfAbsent(nodePool, PoolQueue::new);
+            item = new Item(pool, job.getTaskId(), seq++, provisioning);
+            pool.labels.computeIfAbsent(label, k -> new PriorityQueue<>(
+                    (a, b) -> a.queueId != b.queueId ? Long.compare(a.queueId, b.queueId) : Long.compare(a.seq, b.seq)))
+                    .add(item);
+            pool.waiting++;
+            waiting++;
+        }
+        drain();
+        return item.result;
+    }
+
+    /**
+     * @return the number of jobs waiting for a permit
+     */
+    synchronized int getWaiting() {
+        return waiting;
+    }
+
+    /**
+     * @return the number of agents being provisioned
+     */
+    synchronized int getRunning() {
+        return running;
+    }
+
+    /**
+     * Starts as many waiting jobs as there are free permits.
+     */
+    private void drain() {
+        final List<Item> admitted = new ArrayList<>();
+        synchronized (this) {
+            Item item;
+            while (running < maxTotal && (item = next()) != null) {
+                running++;
+                item.pool.running++;
+                waiting--;
+                admitted.add(item);
+            }
+        }
+        for (Item item : admitted) {
+            start(item);
+        }
+    }
+
+    /**
+     * Takes the next job from the NodePool with the best priority that has a free permit.
+     */
+    private Item next() {
+        PoolQueue best = null;
+        for (PoolQueue pool : pools.values()) {
+            if (pool.waiting == 0 || pool.running >= maxRunning(pool.nodePool)) {
+                continue;
+            }
+            if (best == null || compare(pool, best) < 0) {
+                best = pool;
+            }
+        }
+        return best == null ? null : best.poll();
+    }
+
+    private static int compare(final PoolQueue a, final PoolQueue b) {
+        final int byPriority = Integer.compare(priority(a.nodePool), priority(b.nodePool));
+        return byPriority != 0 ? byPriority : Long.compare(a.peek().seq, b.peek().seq);
+    }
+
+    private void start(final Item item) {
+        try {
+            executor.execute(() -> {
+                CompletableFuture<Void> provisioned;
+                try {
+                    provisioned = item.provisioning.get();
+                } catch (RuntimeException e) {
+                    provisioned = NodePoolScheduler.failed(e);
+                }
+                provisioned.whenComplete((v, t) -> {
+                    release(item);
+                    if (t != null) {
+                        item.result.completeExceptionally(t);
+                    } else {
+                        item.result.complete(null);
+                    }
+                });
+            });
+        } catch (RuntimeException e) {
+            // rejected
+            release(item);
+            item.result.completeExceptionally(e);
+        }
+    }
+
+    private void release(final Item item) {
+        synchronized (this) {
+            running--;
+            item.pool.running--;
+            if (item.pool.running == 0 && item.pool.waiting == 0) {
+                pools.remove(item.pool.nodePool);
+            }
+        }
+        drain();
+    }
+
+    private static int maxRunning(final NodePool nodePool) {
+        final Integer max = nodePool.getMaxConcurrentProvisions();
+        return max == null || max < 1 ? DEFAULT_MAX_PER_NODE_POOL : max;
+    }
+
+    /**
+     * Returns the request priority of a NodePool, lower values are served first.
+     */
+    private static int priority(final NodePool nodePool) {
+        final String priority = nodePool.getPriority();
+        if (priority != null) {
+            try {
+                return Integer.parseInt(priority.trim());
+            } catch (NumberFormatException e) {
+                LOG.log(FINE, format("Priority %s of %s is not a number", priority, nodePool.getClusterName()));
+            }
+        }
+        return Integer.MAX_VALUE;
+    }
+}
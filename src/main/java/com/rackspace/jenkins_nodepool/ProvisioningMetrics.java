@@ -0,0 +1,262 @@
+package com.rackspace.jenkins_nodepool;
+
+import hudson.model.Label;
+import hudson.model.Node;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Latency histograms of each phase of provisioning an agent, per NodePool cluster and label. Shown on the NodePool
+ * management page and served as JSON from its metrics endpoint.
+ */
+public final class ProvisioningMetrics {
+
+    private static final ProvisioningMetrics INSTANCE = new ProvisioningMetrics();
+
+    /**
+     * Used when the cluster or label of a measurement is not known
+     */
+    static final String UNKNOWN = "unknown";
+
+    /**
+     * The measured provisioning phases, in the order they happen
+     */
+    public enum Phase {
+        REQUEST_CREATE("Request creation"),
+        REQUEST_WAIT("Request fulfilment"),
+        NODE_LOCK("Node lock"),
+        SSH_CONNECT("SSH connect"),
+        JDK_INSTALL("JDK install"),
+        AGENT_COPY("Agent JAR copy"),
+        AGENT_START("Agent start to online");
+
+        private final String displayName;
+
+        Phase(String displayName) {
+            this.displayName = displayName;
+        }
+
+        public String getDisplayName() {
+            return displayName;
+        }
+    }
+
+    /**
+     * The histograms of every phase for one cluster and label
+     */
+    public static final class Series {
+        private final String cluster;
+        private final String label;
+        private final LatencyHistogram[] phases = new LatencyHistogram[Phase.values().length];
+
+        Series(String cluster, String label) {
+            this.cluster = cluster;
+            this.label = label;
+            for (int i = 0; i < phases.length; i++) {
+                phases[i] = new LatencyHistogram();
+            }
+        }
+
+        public String getCluster() {
+            return cluster;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        /**
+         * Records the time elapsed in a phase.
+         *
+         * @param phase      the phase
+         * @param startNanos the {@link System#nanoTime()} value when the phase started
+         */
+        public void record(final Phase phase, final long startNanos) {
+            phases[phase.ordinal()].recordSince(startNanos);
+        }
+
+        public LatencyHistogram get(final Phase phase) {
+            return phases[phase.ordinal()];
+        }
+    }
+
+    /**
+     * A phase of a series, as shown on the management page
+     */
+    public static final class Row {
+        private final Series series;
+        private final Phase phase;
+        private final LatencyHistogram histogram;
+
+        Row(Series series, Phase phase) {
+            this.series = series;
+            this.phase = phase;
+            this.histogram = series.get(phase);
+        }
+
+        public String getCluster() {
+            return series.cluster;
+        }
+
+        public String getLabel() {
+            return series.label;
+        }
+
+        public Phase getPhase() {
+            return phase;
+        }
+
+        public long getCount() {
+            return histogram.getCount();
+        }
+
+        public double getMeanMs() {
+            return histogram.getMeanMs();
+        }
+
+        public double getP50Ms() {
+            return histogram.getPercentileMs(50);
+        }
+
+        public double getP90Ms() {
+            return histogram.getPercentileMs(90);
+        }
+
+        public double getP99Ms() {
+            return histogram.getPercentileMs(99);
+        }
+
+        public double getMaxMs() {
+            return histogram.getMaxMs();
+        }
+    }
+
+    /**
+     * Series by cluster and then label, nested so that a lookup doesn't need to build a key
+     */
+    private final Map<String, Map<String, Series>> series = new ConcurrentHashMap<>();
+
+    private ProvisioningMetrics() {
+    }
+
+    /**
+     * Returns the shared provisioning metrics.
+     *
+     * @return the provisioning metrics
+     */
+    public static ProvisioningMetrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the series for a cluster and label.
+     *
+     * @param cluster the cluster name, may be null
+     * @param label   the Jenkins label, may be null
+     * @return the series
+     */
+    public Series series(final String cluster, final String label) {
+        final String c = cluster == null ? UNKNOWN : cluster;
+        final String l = label == null ? UNKNOWN : label;
+        return series.computeIfAbsent(c, k -> new ConcurrentHashMap<>()).computeIfAbsent(l, k -> new Series(c, k));
+    }
+
+    /**
+     * Returns the series for a job provisioned from the given NodePool.
+     *
+     * @param nodePool the cluster
+     * @param job      the job
+     * @return the series
+     */
+    public Series series(final NodePool nodePool, final NodePoolJob job) {
+        return series(nodePool == null ? null : nodePool.getClusterName(), labelOf(job));
+    }
+
+    /**
+     * Returns the series for an agent, found from the label of the job it was created for.
+     *
+     * @param node the agent
+     * @return the series
+     */
+    public Series series(final Node node) {
+        if (!(node instanceof NodePoolSlave)) {
+            return series(null, (String) null);
+        }
+        final NodePoolJob job = ((NodePoolSlave) node).getJob();
+        final Label label = job == null ? null : job.getLabel();
+        NodePool nodePool = null;
+        final NodePools nodePools = label == null ? null : NodePools.get();
+        if (nodePools != null) {
+            final List<NodePool> matching = nodePools.nodePoolsForLabel(label);
+            nodePool = matching.isEmpty() ? null : matching.get(0);
+        }
+        return series(nodePool, job);
+    }
+
+    /**
+     * Returns every non-empty phase of every series, ordered by cluster, label and phase.
+     *
+     * @return a snapshot list of the rows
+     */
+    public List<Row> getRows() {
+        final List<Row> rows = new ArrayList<>();
+        for (Map<String, Series> byLabel : series.values()) {
+            for (Series s : byLabel.values()) {
+                for (Phase phase : Phase.values()) {
+                    if (s.get(phase).getCount() > 0) {
+                        rows.add(new Row(s, phase));
+                    }
+                }
+            }
+        }
+        rows.sort((a, b) -> {
+            int c = a.getCluster().compareTo(b.getCluster());
+            if (c == 0) {
+                c = a.getLabel().compareTo(b.getLabel());
+            }
+            return c != 0 ? c : a.getPhase().compareTo(b.getPhase());
+        });
+        return Collections.unmodifiableList(rows);
+    }
+
+    /**
+     * Returns the rows as JSON.
+     *
+     * @return an array with an object per row
+     */
+    public JSONArray toJson() {
+        final JSONArray array = new JSONArray();
+        for (Row row : getRows()) {
+            final JSONObject o = new JSONObject();
+            o.put("cluster", row.getCluster());
+            o.put("label", row.getLabel());
+            o.put("phase", row.getPhase().name());
+            o.put("count", row.getCount());
+            o.put("meanMs", row.getMeanMs());
+            o.put("p50Ms", row.getP50Ms());
+            o.put("p90Ms", row.getP90Ms());
+            o.put("p99Ms", row.getP99Ms());
+            o.put("maxMs", row.getMaxMs());
+            array.add(o);
+        }
+        return array;
+    }
+
+    /**
+     * Discards all measurements.
+     */
+    void reset() {
+        series.clear();
+    }
+
+    private static String labelOf(final NodePoolJob job) {
+        final Label label = job == null ? null : job.getLabel();
+        return label == null ? null : label.getDisplayName();
+    }
+}
@@ -77,11 +77,11 @@ final class RemoteLauncher extends Launcher {
 
         final Session session = connection.openSession();
         session.execCommand(makeCommandLine(ps.cmds(),ps.pwd()));
-        final Thread t1 = new StreamCopyThread("stdout copier: "+name,session.getStdout(), ps.stdout(),false);
+        final Thread t1 = copier("stdout copier: "+name,session.getStdout(), ps.stdout(),false);
         t1.start();
-        final Thread t2 = new StreamCopyThread("stderr copier: "+name,session.getStderr(), defaulted(ps.stderr(),ps.stdout()),false);
+        final Thread t2 = copier("stderr copier: "+name,session.getStderr(), defaulted(ps.stderr(),ps.stdout()),false);
         t2.start();
-        final Thread t3 = new StreamCopyThread("stdin copier: "+name,ps.stdin(), session.getStdin(),true);
+        final Thread t3 = copier("stdin copier: "+name,ps.stdin(), session.getStdin(),true);
         t3.start();
 
         return new Proc() {
@@ -138,6 +138,29 @@ final class RemoteLauncher extends Launcher {
             Computer.threadPoolForRemoting, session.getStdout(), new BufferedOutputStream(session.getStdin()));
     }
 
+    /**
+     * Creates an unstarted thread that copies a stream of a remote command, a virtual thread if they are enabled.
+     */
+    private static Thread copier(String name, InputStream in, OutputStream out, boolean closeOut) {
+        final Thread t = VirtualThreads.newThread(name, () -> {
+            try {
+                try {
+                    Util.copyStream(in, out);
+                } finally {
+                    in.close();
+                    if (closeOut) {
+                        out.close();
+                    } else {
+                        out.flush();
+                    }
+                }
+            } catch (IOException e) {
+                LOG.log(Level.FINE, name + " stopped: " + e.getLocalizedMessage());
+            }
+        });
+        return t != null ? t : new StreamCopyThread(name, in, out, closeOut);
+    }
+
     private String makeCommandLine(List<String> cmd, FilePath _workDir) {
         final String workDir = _workDir==null ? null : _workDir.getRemote();
         return "cd '" + workDir + "' && " + Util.join(cmd," "); // TODO: quote handling
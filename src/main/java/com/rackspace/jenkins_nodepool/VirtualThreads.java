@@ -0,0 +1,107 @@
+package com.rackspace.jenkins_nodepool;
+
+import hudson.util.NamingThreadFactory;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+
+import static java.lang.String.format;
+import static java.util.logging.Level.INFO;
+
+/**
+ * Opt-in use of virtual threads for the plugin's blocking work: the NodePool worker steps, SSH agent launches and the
+ * stream copiers of remote commands. These threads spend nearly all their time waiting on ZooKeeper or SSH, which a
+ * virtual thread does for a few kilobytes of heap instead of a platform thread's stack. Virtual threads are started
+ * per task rather than pooled.
+ * <p>
+ * Much of that waiting happens inside monitors: the trilead SSH Channel and the ZooKeeper 3.4 client block in
+ * synchronized methods and Object.wait(), and WarmPool.refill is synchronized. Before JDK 24 a virtual thread blocked
+ * in a monitor pins its carrier thread. The JDK makes up for Object.wait() with extra carriers, up to
+ * jdk.virtualThreadScheduler.maxPoolSize, but a burst of launches can still exhaust them, so the mode is meant for
+ * JDK 24 and later, where monitors no longer pin.
+ * <p>
+ * Enabled with the 'enabled' system property. Virtual threads are looked up reflectively, as the plugin is built for
+ * Java 8, and on a JDK without them the plugin falls back to platform threads.
+ */
+final class VirtualThreads {
+
+    private static final Logger LOG = Logger.getLogger(VirtualThreads.class.getName());
+
+    /**
+     * Run blocking work on virtual threads when the JDK supports them
+     */
+    static final boolean ENABLED = Boolean.getBoolean(VirtualThreads.class.getName() + ".enabled");
+
+    /**
+     * Creates virtual threads, null if they are disabled or not supported
+     */
+    private static final ThreadFactory FACTORY = ENABLED ? lookup() : null;
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * @return true if blocking work runs on virtual threads
+     */
+    static boolean isActive() {
+        return FACTORY != null;
+    }
+
+    /**
+     * Returns a factory for virtual threads, or the given factory if they are disabled or not supported.
+     *
+     * @param platform creates platform threads
+     * @return the thread factory to use for blocking work
+     */
+    static ThreadFactory orElse(final ThreadFactory platform) {
+        return FACTORY != null ? FACTORY : platform;
+    }
+
+    /**
+     * Returns an executor that runs every task on a new virtual thread.
+     *
+     * @param name prefix of the thread names
+     * @return the executor, or null if virtual threads are disabled or not supported
+     */
+    static Executor perTaskExecutor(final String name) {
+        if (FACTORY == null) {
+            return null;
+        }
+        final ThreadFactory factory = new NamingThreadFactory(FACTORY, name);
+        return task -> factory.newThread(task).start();
+    }
+
+    /**
+     * Creates an unstarted virtual thread.
+     *
+     * @param name the thread name
+     * @param task what the thread runs
+     * @return the thread, or null if virtual threads are disabled or not supported
+     */
+    static Thread newThread(final String name, final Runnable task) {
+        if (FACTORY == null) {
+            return null;
+        }
+        final Thread thread = FACTORY.newThread(task);
+        thread.setName(name);
+        return thread;
+    }
+
+    /**
+     * Looks up Thread.ofVirtual().factory(), which is only present on JDK 21 and later.
+     */
+    private static ThreadFactory lookup() {
+        try {
+            final Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            final ThreadFactory factory = (ThreadFactory) Class.forName("java.lang.Thread$Builder")
+                    .getMethod("factory").invoke(builder);
+            LOG.log(INFO, "Running NodePool provisioning and launches on virtual threads");
+            return factory;
+        } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+            LOG.log(INFO, format("Virtual threads are not available on Java %s, using platform threads. Message: %s",
+                    System.getProperty("java.version"), e.getLocalizedMessage()));
+            return null;
+        }
+    }
+}
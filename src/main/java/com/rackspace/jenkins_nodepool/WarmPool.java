@@ -0,0 +1,334 @@
+package com.rackspace.jenkins_nodepool;
+
+import hudson.model.Computer;
+import hudson.model.Label;
+
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+import static java.lang.String.format;
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.INFO;
+import static java.util.logging.Level.WARNING;
+
+/**
+ * Agents of a NodePool that are requested, accepted and online before any build needs them, one pool per label.
+ * <p>
+ * A task that arrives for a label with a ready agent is bound to it straight away instead of waiting for a node to be
+ * requested, locked and launched. An agent is bound at most once, after which it is an ordinary agent for that build
+ * and is removed by the janitor when the build finishes.
+ * <p>
+ * Each pool sizes itself from recent demand: the number of tasks expected to arrive while one agent launches, using
+ * the arrivals over the last 'demandWindowMinutes' and the measured provisioning latency of the label, capped at
+ * 'maxSize'. Pools are refilled in the background every 'refillIntervalSeconds' and after each bind. A pool that sees
+ * no demand shrinks to nothing and its agents are returned to NodePool. The warm pool is off unless 'maxSize' is set.
+ */
+final class WarmPool {
+
+    private static final Logger LOG = Logger.getLogger(WarmPool.class.getName());
+
+    /**
+     * Maximum number of ready agents per label, 0 disables the warm pool
+     */
+    static final int MAX_SIZE = Integer.getInteger(WarmPool.class.getName() + ".maxSize", 0);
+
+    /**
+     * How far back demand is counted
+     */
+    static final long DEMAND_WINDOW_MS = TimeUnit.MINUTES.toMillis(
+            Long.getLong(WarmPool.class.getName() + ".demandWindowMinutes", 15L));
+
+    /**
+     * How often the pools are topped up or shrunk
+     */
+    static final long REFILL_INTERVAL_SEC = Long.getLong(WarmPool.class.getName() + ".refillIntervalSeconds", 30L);
+
+    /**
+     * Launch time assumed until the provisioning latency of a label has been measured
+     */
+    static final long DEFAULT_LAUNCH_MS = TimeUnit.MINUTES.toMillis(2);
+
+    /**
+     * The ready and launching agents of one label
+     */
+    static final class LabelPool {
+        private final Label label;
+        private final Deque<NodePoolSlave> ready = new ConcurrentLinkedDeque<>();
+        // warm jobs of the same label are equal, so launches are tracked by identity
+        private final Set<NodePoolJob> launching =
+                Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+        private final Deque<Long> arrivals = new ConcurrentLinkedDeque<>();
+
+        LabelPool(Label label) {
+            this.label = label;
+        }
+    }
+
+    private final String cluster;
+    private final Function<NodePoolJob, CompletableFuture<NodePoolSlave>> provisioner;
+    private final BooleanSupplier active;
+    private final int maxSize;
+    private final long windowMs;
+    private final Map<String, LabelPool> pools = new ConcurrentHashMap<>();
+    private ScheduledFuture<?> refills;
+
+    /**
+     * Creates the warm pool of a NodePool.
+     *
+     * @param nodePool the NodePool the agents are provisioned from
+     */
+    WarmPool(final NodePool nodePool) {
+        this(nodePool.getClusterName(), nodePool::provisionWarmAsync, () -> isConfigured(nodePool), MAX_SIZE,
+                DEMAND_WINDOW_MS);
+    }
+
+    /**
+     * Creates a warm pool.
+     *
+     * @param cluster     the name of the NodePool, used to look up provisioning latency
+     * @param provisioner provisions an agent for a warm job
+     * @param active      false once the pool should stop refilling, e.g. when its NodePool has been reconfigured
+     * @param maxSize     the maximum number of ready agents per label, 0 to disable
+     * @param windowMs    how far back demand is counted
+     */
+    WarmPool(final String cluster, final Function<NodePoolJob, CompletableFuture<NodePoolSlave>> provisioner,
+             final BooleanSupplier active, final int maxSize, final long windowMs) {
+        this.cluster = cluster;
+        this.provisioner = provisioner;
+        this.active = active;
+        this.maxSize = maxSize;
+        this.windowMs = windowMs;
+    }
+
+    /**
+     * Binds the job to a ready agent of its label, if there is one. Either way the arrival counts as demand.
+     *
+     * @param job the job of a task that needs an agent
+     * @return the agent the job was bound to, or null if it needs to be provisioned as usual
+     */
+    NodePoolSlave take(final NodePoolJob job) {
+        if (maxSize <= 0 || job.getLabel() == null) {
+            return null;
+        }
+        final LabelPool pool = pool(job.getLabel());
+        pool.arrivals.add(System.currentTimeMillis());
+        NodePoolSlave bound = null;
+        NodePoolSlave slave;
+        while ((slave = pool.ready.pollFirst()) != null) {
+            if (isOnline(slave) && slave.bind(job)) {
+                bound = slave;
+                break;
+            }
+            // gone offline, the janitor removes it
+            Janitor.nodeChanged(slave.getNodeName());
+        }
+        startRefills();
+        NodePoolScheduler.get().getWorker().execute(this::refill);
+        return bound;
+    }
+
+    /**
+     * Tops up or shrinks every label's pool to its target size.
+     */
+    synchronized void refill() {
+        if (!active.getAsBoolean()) {
+            stopRefills();
+            return;
+        }
+        for (LabelPool pool : pools.values()) {
+            try {
+                refill(pool);
+            } catch (RuntimeException e) {
+                LOG.log(WARNING, format("%s while refilling the warm pool of %s. Message: %s",
+                        e.getClass().getSimpleName(), pool.label, e.getLocalizedMessage()));
+            }
+        }
+    }
+
+    private void refill(final LabelPool pool) {
+        pool.ready.removeIf(slave -> {
+            if (isOnline(slave)) {
+                return false;
+            }
+            Janitor.nodeChanged(slave.getNodeName());
+            return true;
+        });
+        final int target = targetSize(pool);
+        // retire the agents that have been waiting longest
+        while (pool.ready.size() > target) {
+            final NodePoolSlave slave = pool.ready.pollFirst();
+            if (slave == null) {
+                break;
+            }
+            LOG.log(FINE, format("Retiring warm agent %s, demand for %s has dropped", slave.getNodeName(), pool.label));
+            Janitor.nodeChanged(slave.getNodeName());
+        }
+        final int deficit = target - pool.ready.size() - pool.launching.size();
+        for (int i = 0; i < deficit; i++) {
+            launch(pool);
+        }
+    }
+
+    private void launch(final LabelPool pool) {
+        final NodePoolJob job = NodePoolJob.warm(pool.label);
+        pool.launching.add(job);
+        LOG.log(INFO, format("Launching warm agent for label %s", pool.label));
+        CompletableFuture<NodePoolSlave> launched;
+        try {
+            launched = provisioner.apply(job);
+        } catch (RuntimeException e) {
+            launched = NodePoolScheduler.failed(e);
+        }
+        launched.whenComplete((slave, t) -> {
+            if (t == null && slave != null) {
+                pool.ready.addLast(slave);
+            } else {
+                LOG.log(WARNING, format("Failed to launch warm agent for label %s. Message: %s", pool.label,
+                        t == null ? "no agent" : NodePoolScheduler.unwrap(t).getLocalizedMessage()));
+            }
+            pool.launching.remove(job);
+        });
+    }
+
+    /**
+     * Returns the number of agents the pool of a label should hold.
+     *
+     * @param pool the label's pool
+     * @return the target size, 0 if the label has seen no demand within the window
+     */
+    int targetSize(final LabelPool pool) {
+        final long cutoff = System.currentTimeMillis() - windowMs;
+        Long oldest;
+        while ((oldest = pool.arrivals.peekFirst()) != null && oldest < cutoff) {
+            pool.arrivals.pollFirst();
+        }
+        final int arrivals = pool.arrivals.size();
+        if (arrivals == 0) {
+            return 0;
+        }
+        final long expected = (long) Math.ceil((double) arrivals * launchMs(pool.label) / windowMs);
+        return (int) Math.min(maxSize, Math.max(1, expected));
+    }
+
+    /**
+     * Returns the mean time to provision an agent of the label, from the provisioning latency histograms.
+     */
+    private long launchMs(final Label label) {
+        final ProvisioningMetrics.Series series = ProvisioningMetrics.get().series(cluster, label.getDisplayName());
+        double total = 0;
+        for (ProvisioningMetrics.Phase phase : ProvisioningMetrics.Phase.values()) {
+            total += series.get(phase).getMeanMs();
+        }
+        return total > 0 ? (long) total : DEFAULT_LAUNCH_MS;
+    }
+
+    /**
+     * Returns the pool of a label.
+     *
+     * @param label the label
+     * @return the pool
+     */
+    LabelPool pool(final Label label) {
+        return pools.computeIfAbsent(label.getName(), k -> new LabelPool(label));
+    }
+
+    /**
+     * Returns the number of ready agents of a label.
+     *
+     * @param label the label
+     * @return the number of agents that are online and not yet bound
+     */
+    int getReadyCount(final Label label) {
+        final LabelPool pool = pools.get(label.getName());
+        return pool == null ? 0 : pool.ready.size();
+    }
+
+    /**
+     * Returns the number of agents of a label that are being launched.
+     *
+     * @param label the label
+     * @return the number of launches in progress
+     */
+    int getLaunchingCount(final Label label) {
+        final LabelPool pool = pools.get(label.getName());
+        return pool == null ? 0 : pool.launching.size();
+    }
+
+    /**
+     * @param slave an unbound warm agent
+     * @return true if the agent is ready or still launching in this pool
+     */
+    boolean isWanted(final NodePoolSlave slave) {
+        final NodePoolJob job = slave.getJob();
+        if (job == null || job.getLabel() == null) {
+            return false;
+        }
+        final LabelPool pool = pools.get(job.getLabel().getName());
+        return pool != null && (pool.ready.contains(slave) || pool.launching.contains(job));
+    }
+
+    /**
+     * Returns true if an unbound warm agent is still wanted by the warm pool of any configured NodePool. The janitor
+     * removes the ones that are not, e.g. agents retired after demand dropped or left over from an old configuration.
+     *
+     * @param slave an unbound warm agent
+     * @return true if the agent should be kept
+     */
+    static boolean wanted(final NodePoolSlave slave) {
+        final NodePoolJob job = slave.getJob();
+        final NodePools nodePools = NodePools.get();
+        if (job == null || job.getLabel() == null || nodePools == null) {
+            return false;
+        }
+        for (NodePool nodePool : nodePools.nodePoolsForLabel(job.getLabel())) {
+            if (nodePool.getWarmPool().isWanted(slave)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized void startRefills() {
+        if (refills == null) {
+            refills = NodePoolScheduler.get().getScheduler().scheduleWithFixedDelay(
+                    () -> NodePoolScheduler.get().getWorker().execute(this::refill),
+                    REFILL_INTERVAL_SEC, REFILL_INTERVAL_SEC, TimeUnit.SECONDS);
+        }
+    }
+
+    private synchronized void stopRefills() {
+        if (refills != null) {
+            refills.cancel(false);
+            refills = null;
+        }
+    }
+
+    private static boolean isOnline(final NodePoolSlave slave) {
+        final Computer computer = slave.toComputer();
+        return computer != null && computer.isOnline();
+    }
+
+    private static boolean isConfigured(final NodePool nodePool) {
+        final NodePools nodePools = NodePools.get();
+        if (nodePools == null) {
+            return false;
+        }
+        for (NodePool configured : nodePools.getNodePools()) {
+            if (configured == nodePool) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,229 @@
+package com.rackspace.jenkins_nodepool;
+
+import com.google.gson.Gson;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Logger;
+
+import static java.lang.String.format;
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.WARNING;
+
+/**
+ * Reads and parses every child of a ZNode, pipelining the reads instead of doing one blocking round trip per child.
+ * <p>
+ * Reads are issued as background getData calls with a bounded number in flight, parsing happens on the worker
+ * pool. Children that are covered by a fresh {@link ZooKeeperCache} are served from the cache without a round trip.
+ *
+ * @param <T> the data model type
+ */
+class ZooKeeperBatchReader<T> {
+
+    private static final Logger LOG = Logger.getLogger(ZooKeeperBatchReader.class.getName());
+
+    /**
+     * Maximum number of reads waiting for a response at any time
+     */
+    static final int MAX_IN_FLIGHT = Integer.getInteger(ZooKeeperBatchReader.class.getName() + ".maxInFlight", 256);
+
+    /**
+     * Maximum time to wait for a whole batch
+     */
+    static final long TIMEOUT_SEC = Long.getLong(ZooKeeperBatchReader.class.getName() + ".timeoutSec", 60L);
+
+    private static final Gson GSON = new Gson();
+
+    /**
+     * A child that was read
+     *
+     * @param <T> the data model type
+     */
+    static final class Entry<T> {
+        private final String name;
+        private final String path;
+        private final Stat stat;
+        private final boolean hasData;
+        private final T model;
+
+        Entry(String name, String path, Stat stat, boolean hasData, T model) {
+            this.name = name;
+            this.path = path;
+            this.stat = stat;
+            this.hasData = hasData;
+            this.model = model;
+        }
+
+        /**
+         * @return the child name
+         */
+        String getName() {
+            return name;
+        }
+
+        /**
+         * @return the full path of the child
+         */
+        String getPath() {
+            return path;
+        }
+
+        /**
+         * @return the stat of the child as read
+         */
+        Stat getStat() {
+            return stat;
+        }
+
+        /**
+         * @return false if the child had no data
+         */
+        boolean hasData() {
+            return hasData;
+        }
+
+        /**
+         * @return the parsed data, or null if there was none
+         */
+        T getModel() {
+            return model;
+        }
+    }
+
+    private final CuratorFramework conn;
+    private final ZooKeeperCache cache;
+    private final Class<T> modelClass;
+    private final Executor parser;
+
+    /**
+     * Creates a reader.
+     *
+     * @param conn       the ZooKeeper connection
+     * @param cache      an optional read cache, may be null
+     * @param modelClass the data model class
+     */
+    ZooKeeperBatchReader(final CuratorFramework conn, final ZooKeeperCache cache, final Class<T> modelClass) {
+        this(conn, cache, modelClass, NodePoolScheduler.get().getWorker());
+    }
+
+    /**
+     * Creates a reader.
+     *
+     * @param conn       the ZooKeeper connection
+     * @param cache      an optional read cache, may be null
+     * @param modelClass the data model class
+     * @param parser     the executor used to parse data
+     */
+    ZooKeeperBatchReader(final CuratorFramework conn, final ZooKeeperCache cache, final Class<T> modelClass,
+                         final Executor parser) {
+        this.conn = conn;
+        this.cache = cache;
+        this.modelClass = modelClass;
+        this.parser = parser;
+    }
+
+    /**
+     * Reads every child of the given path. Children that disappear while being read are left out.
+     *
+     * @param root the parent path
+     * @return the children in the order ZooKeeper listed them
+     * @throws Exception if the children can't be listed, a read fails or the batch times out
+     */
+    List<Entry<T>> readChildren(final String root) throws Exception {
+        final List<String> children = conn.getChildren().forPath(root);
+        return read(root, children);
+    }
+
+    /**
+     * Reads the given children of a path. Children that disappear while being read are left out.
+     *
+     * @param root     the parent path
+     * @param children the child names
+     * @return the children in the given order
+     * @throws Exception if a read fails or the batch times out
+     */
+    List<Entry<T>> read(final String root, final List<String> children) throws Exception {
+        final long start = System.nanoTime();
+        final Semaphore inFlight = new Semaphore(Math.max(1, MAX_IN_FLIGHT));
+        final List<CompletableFuture<Entry<T>>> futures = new ArrayList<>(children.size());
+        for (final String child : children) {
+            final String path = format("%s/%s", root, child);
+            final ChildData cached = cache == null ? null : cache.getData(path, ZooKeeperCache.ANY_ZXID);
+            if (cached != null) {
+                futures.add(CompletableFuture.supplyAsync(
+                        () -> parse(child, path, cached.getStat(), cached.getData()), parser));
+                continue;
+            }
+
+            final CompletableFuture<Entry<T>> future = new CompletableFuture<>();
+            futures.add(future);
+            if (!inFlight.tryAcquire(TIMEOUT_SEC, TimeUnit.SECONDS)) {
+                throw new TimeoutException(format("Timeout reading children of %s", root));
+            }
+            try {
+                conn.getData().inBackground((client, event) -> {
+                    inFlight.release();
+                    final KeeperException.Code code = KeeperException.Code.get(event.getResultCode());
+                    if (code == KeeperException.Code.OK) {
+                        final Stat stat = event.getStat();
+                        final byte[] data = event.getData();
+                        try {
+                            parser.execute(() -> future.complete(parse(child, path, stat, data)));
+                        } catch (RuntimeException e) {
+                            future.completeExceptionally(e);
+                        }
+                    } else if (code == KeeperException.Code.NONODE) {
+                        // deleted since it was listed
+                        future.complete(null);
+                    } else {
+                        future.completeExceptionally(KeeperException.create(code, path));
+                    }
+                }).forPath(path);
+            } catch (Exception e) {
+                inFlight.release();
+                future.completeExceptionally(e);
+            }
+        }
+
+        final long remaining = TimeUnit.SECONDS.toNanos(TIMEOUT_SEC) - (System.nanoTime() - start);
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(remaining, TimeUnit.NANOSECONDS);
+
+        final List<Entry<T>> entries = new ArrayList<>(futures.size());
+        for (CompletableFuture<Entry<T>> future : futures) {
+            final Entry<T> entry = future.get();
+            if (entry != null) {
+                entries.add(entry);
+            }
+        }
+        LOG.log(FINE, format("Read %d children of %s in %d ms", entries.size(), root,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+        return entries;
+    }
+
+    /**
+     * Parses the data of one child.
+     */
+    private Entry<T> parse(final String child, final String path, final Stat stat, final byte[] data) {
+        if (data == null || data.length == 0) {
+            return new Entry<>(child, path, stat, false, null);
+        }
+        try {
+            final T model = GSON.fromJson(new String(data, StandardCharsets.UTF_8), modelClass);
+            return new Entry<>(child, path, stat, true, model);
+        } catch (RuntimeException e) {
+            LOG.log(WARNING, format("%s occurred while parsing data at node: %s. Message: %s",
+                    e.getClass().getSimpleName(), path, e.getLocalizedMessage()));
+            return new Entry<>(child, path, stat, true, null);
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package com.rackspace.jenkins_nodepool;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.apache.curator.framework.recipes.cache.TreeCache;
+import org.apache.curator.framework.recipes.cache.TreeCacheEvent;
+import org.apache.curator.framework.recipes.cache.TreeCacheListener;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import static java.lang.String.format;
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.WARNING;
+
+/**
+ * A watch-driven, in-memory copy of the NodePool node and request subtrees for a single NodePool connection.
+ * <p>
+ * Consistency contract:
+ * <ul>
+ * <li>The cache is eventually consistent with ZooKeeper. Readers only receive cached data while the cache has
+ * completed its initial load, the connection is not suspended or lost and, after a reconnection, the cache has resynced
+ * - otherwise {@link #getData} returns null and the caller must read from ZooKeeper directly.</li>
+ * <li>A reader may supply a minimum modification zxid (typically the zxid returned from its own last write). Cached
+ * entries older than that are treated as a miss, which gives read-your-writes semantics per object.</li>
+ * <li>Anything that makes a decision which must not be based on stale data (locking, read-modify-write state
+ * transitions) must bypass the cache and read live, see {@link ZooKeeperObject#load(Boolean, boolean)}.</li>
+ * </ul>
+ * Only the direct children of the node and request roots are cached (lock contender nodes are not).
+ * <p>
+ * The cache is disabled by default, set the 'nodepool.zkcache.enabled' system property to 'true' to enable it.
+ */
+public class ZooKeeperCache implements TreeCacheListener {
+
+    /**
+     * Our class logger.
+     */
+    private static final Logger LOG = Logger.getLogger(ZooKeeperCache.class.getName());
+
+    /**
+     * System property used to enable the cache.
+     */
+    static final String ENABLED = "nodepool.zkcache.enabled";
+
+    /**
+     * Value used by readers that have no minimum modification zxid requirement.
+     */
+    static final long ANY_ZXID = -1L;
+
+    /**
+     * The cached subtrees, one per root path.
+     */
+    private final List<TreeCache> caches = new ArrayList<>();
+
+    /**
+     * Root paths (relative to the connection namespace) covered by this cache.
+     */
+    private final List<String> roots = new ArrayList<>();
+
+    /**
+     * Number of subtrees that have not yet completed their initial load.
+     */
+    private int uninitialized;
+
+    /**
+     * True while the underlying connection is usable and the cache has caught up after the last reconnection.
+     */
+    private volatile boolean connected = true;
+
+    /**
+     * Incremented on every connection state change, so that a resync that completes after a later disconnection
+     * doesn't mark the cache usable. Guarded by this.
+     */
+    private long connectionGeneration;
+
+    /**
+     * True once every subtree has completed its initial load.
+     */
+    private volatile boolean initialized = false;
+
+    /**
+     * Creates a new cache over the given root paths. The cache is not started until {@link #start()} is called.
+     *
+     * @param conn  the ZooKeeper connection
+     * @param paths root paths to cache, relative to the connection namespace (e.g. /nodes, /requests)
+     */
+    public ZooKeeperCache(final CuratorFramework conn, final String... paths) {
+        for (String path : paths) {
+            roots.add(path);
+            final TreeCache cache = TreeCache.newBuilder(conn, path)
+                    .setCacheData(true)
+                    .setMaxDepth(1)
+                    .build();
+            cache.getListenable().addListener(this);
+            caches.add(cache);
+        }
+        uninitialized = caches.size();
+    }
+
+    /**
+     * Returns true if the cache is enabled by configuration.
+     *
+     * @return true if the 'nodepool.zkcache.enabled' system property is set to true.
+     */
+    static boolean enabled() {
+        return Boolean.parseBoolean(System.getProperty(ENABLED, "false"));
+    }
+
+    /**
+     * Starts watching the cached subtrees.
+     *
+     * @throws ZookeeperException if the cache cannot be started
+     */
+    public void start() throws ZookeeperException {
+        try {
+            for (TreeCache cache : caches) {
+                cache.start();
+            }
+        } catch (Exception e) {
+            LOG.log(WARNING, format("%s occurred while starting ZK cache for paths: %s. Message: %s",
+                    e.getClass().getSimpleName(), roots, e.getLocalizedMessage()));
+            throw new ZookeeperException(e);
+        }
+    }
+
+    /**
+     * Stops watching and releases the cached data.
+     */
+    public void close() {
+        initialized = false;
+        for (TreeCache cache : caches) {
+            cache.close();
+        }
+    }
+
+    /**
+     * Returns true if the cache can currently serve reads.
+     *
+     * @return true if the cache is initialized and connected
+     */
+    public boolean isFresh() {
+        return initialized && connected;
+    }
+
+    /**
+     * Returns true if the given path is covered by this cache.
+     *
+     * @param path a path relative to the connection namespace
+     * @return true if the path is a root or a direct child of a root
+     */
+    boolean covers(final String path) {
+        for (String root : roots) {
+            if (path.startsWith(root) &&
+                    (path.length() == root.length() || path.charAt(root.length()) == '/')) {
+                return path.indexOf('/', root.length() + 1) < 0;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the cached data for the given path, or null if the caller must read from ZooKeeper directly.
+     *
+     * @param path    a path relative to the connection namespace
+     * @param minZxid the minimum modification zxid the entry must have, or {@link #ANY_ZXID}
+     * @return the cached data and stat, or null on a cache miss
+     */
+    public ChildData getData(final String path, final long minZxid) {
+        if (!isFresh() || !covers(path)) {
+            return null;
+        }
+        for (TreeCache cache : caches) {
+            final ChildData data = cache.getCurrentData(path);
+            if (data != null) {
+                if (data.getStat() == null || data.getStat().getMzxid() < minZxid) {
+                    // stale compared to our own last write - let the caller go to ZooKeeper
+                    return null;
+                }
+                return data;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds a listener that receives every event of the cached subtrees.
+     *
+     * @param listener the listener
+     */
+    public void addListener(final TreeCacheListener listener) {
+        for (TreeCache cache : caches) {
+            cache.getListenable().addListener(listener);
+        }
+    }
+
+    /**
+     * Tracks initialisation and connection state so that readers never see data from a disconnected cache.
+     *
+     * @param client the curator client
+     * @param event  the cache event
+     */
+    @Override
+    public void childEvent(CuratorFramework client, TreeCacheEvent event) {
+        switch (event.getType()) {
+            case INITIALIZED:
+                synchronized (this) {
+                    if (uninitialized > 0) {
+                        uninitialized--;
+                    }
+                    initialized = uninitialized == 0;
+                }
+                LOG.log(FINE, format("ZK cache initialized for paths: %s, ready: %b", roots, initialized));
+                break;
+            case CONNECTION_SUSPENDED:
+            case CONNECTION_LOST:
+                synchronized (this) {
+                    connectionGeneration++;
+                    connected = false;
+                }
+                LOG.log(FINE, format("ZK cache disconnected (%s) - reads will go to ZooKeeper", event.getType()));
+                break;
+            case CONNECTION_RECONNECTED:
+                final long generation;
+                synchronized (this) {
+                    generation = ++connectionGeneration;
+                }
+                LOG.log(FINE, "ZK cache reconnected - reads will go to ZooKeeper until it has resynced");
+                awaitResync(client, generation);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Marks the cache usable once it has caught up after a reconnection.
+     * <p>
+     * The TreeCaches issue their refresh reads before they publish the reconnection, and ZooKeeper answers the
+     * requests of a session in order. A background read issued now is therefore answered after every refresh read, and
+     * a second one issued from its callback after the reads of nodes found by the refresh. Their callbacks run on the
+     * same event thread that applies the refreshed data, so by the time the second one runs the cache is current.
+     */
+    private void awaitResync(final CuratorFramework client, final long generation) {
+        final String root = roots.get(0);
+        try {
+            client.checkExists().inBackground((c, first) -> c.checkExists().inBackground((c2, second) -> {
+                synchronized (this) {
+                    if (generation == connectionGeneration) {
+                        connected = true;
+                        LOG.log(FINE, format("ZK cache resynced for paths: %s", roots));
+                    }
+                }
+            }).forPath(root)).forPath(root);
+        } catch (Exception e) {
+            // stays on live reads until the next reconnection
+            LOG.log(WARNING, format("%s occurred while waiting for ZK cache to resync for paths: %s. Message: %s",
+                    e.getClass().getSimpleName(), roots, e.getLocalizedMessage()));
+        }
+    }
+}
@@ -25,11 +25,15 @@ package com.rackspace.jenkins_nodepool;
 
 import com.google.gson.Gson;
 import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.transaction.CuratorOp;
+import org.apache.curator.framework.recipes.cache.ChildData;
 import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
 
 import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
-import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
 
 import static java.lang.String.format;
@@ -53,21 +57,78 @@ public class ZooKeeperObject<T> {
      */
     private static final Gson GSON = new Gson();
 
+    /**
+     * Maximum number of times a conditional update is retried after losing a race with another writer
+     */
+    static final int MAX_UPDATE_ATTEMPTS = 10;
+
+    /**
+     * A data model together with the ZNode stat it was read with.
+     *
+     * @param <T> the data model type
+     */
+    public static class Versioned<T> {
+        private final T model;
+        private final Stat stat;
+
+        Versioned(T model, Stat stat) {
+            this.model = model;
+            this.stat = stat;
+        }
+
+        /**
+         * Returns the data model.
+         *
+         * @return the data model
+         */
+        public T getModel() {
+            return model;
+        }
+
+        /**
+         * Returns the stat the model was read with.
+         *
+         * @return the stat, or null if the ZNode did not exist
+         */
+        public Stat getStat() {
+            return stat;
+        }
+
+        /**
+         * Returns the data version the model was read with.
+         *
+         * @return the data version, or -1 if the ZNode did not exist
+         */
+        public int getVersion() {
+            return stat == null ? -1 : stat.getVersion();
+        }
+    }
+
     /**
      * Path to ZNode
      */
-    String path;
+    volatile String path;
 
     /**
      * An identifier associated with a ZNode
      */
-    String zKID;
+    volatile String zKID;
 
     /**
      * A reference to the Zookeeper connection framework
      */
     private CuratorFramework conn;
 
+    /**
+     * Optional shared read cache, may be null
+     */
+    private final ZooKeeperCache cache;
+
+    /**
+     * Modification zxid of our last write, cached reads older than this are ignored
+     */
+    private volatile long lastWriteZxid = ZooKeeperCache.ANY_ZXID;
+
     /**
      * Creates a new Zookeeper object model.
      *
@@ -77,10 +138,25 @@ public class ZooKeeperObject<T> {
      * @param typeParameterClass the type of the class - used to assist in marshalling/unmarshalling
      */
     public ZooKeeperObject(String path, String zKID, CuratorFramework conn, Class<T> typeParameterClass) {
+        this(path, zKID, conn, typeParameterClass, null);
+    }
+
+    /**
+     * Creates a new Zookeeper object model which serves reads from the given cache where possible.
+     *
+     * @param path               the Zookeeper node path
+     * @param zKID               the zookeeper node id
+     * @param conn               the ZK connection object
+     * @param typeParameterClass the type of the class - used to assist in marshalling/unmarshalling
+     * @param cache              the shared read cache, may be null in which case all reads go to Zookeeper
+     */
+    public ZooKeeperObject(String path, String zKID, CuratorFramework conn, Class<T> typeParameterClass,
+                           ZooKeeperCache cache) {
         this.path = path;
         this.zKID = zKID;
         this.conn = conn;
         this.typeParameterClass = typeParameterClass;
+        this.cache = cache;
     }
 
     /**
@@ -129,7 +205,7 @@ public class ZooKeeperObject<T> {
     }
 
     /**
-     * Creates the associated Zookeeper node if it doesn't already exist.
+     * Creates the associated Zookeeper node if it doesn't already exist, otherwise overwrites its data.
      *
      * @param model the data model
      * @return the created path
@@ -138,13 +214,19 @@ public class ZooKeeperObject<T> {
     private String createZNode(final T model) throws ZookeeperException {
         try {
             // Convert to JSON and save to ZK
-            final String jsonStringModel = GSON.toJson(model, model.getClass());
+            final byte[] data = toBytes(model);
             //LOG.log(FINEST, format("Saving model, path: %s, data: %s", path, jsonStringModel));
 
-            if (!exists()) {
-                conn.create().creatingParentsIfNeeded().forPath(path, jsonStringModel.getBytes(StandardCharsets.UTF_8));
-            } else {
-                conn.setData().forPath(path, jsonStringModel.getBytes(StandardCharsets.UTF_8));
+            // Optimistically assume the node exists, the common case, so that this is a single round trip
+            try {
+                recordWrite(conn.setData().forPath(path, data));
+            } catch (KeeperException.NoNodeException nne) {
+                try {
+                    conn.create().creatingParentsIfNeeded().forPath(path, data);
+                } catch (KeeperException.NodeExistsException nee) {
+                    // created by someone else in the meantime
+                    recordWrite(conn.setData().forPath(path, data));
+                }
             }
             return path;
         } catch (Exception e) {
@@ -167,9 +249,7 @@ public class ZooKeeperObject<T> {
     private String createZNode(final T model, final CreateMode mode) throws ZookeeperException {
         try {
             // Convert to JSON and save to ZK
-            final String jsonStringModel = GSON.toJson(model, model.getClass());
-            //LOG.log(FINEST, format("Saving model, path: %s, data: %s", path, jsonStringModel));
-            return conn.create().creatingParentsIfNeeded().withMode(mode).forPath(path, jsonStringModel.getBytes(StandardCharsets.UTF_8));
+            return conn.create().creatingParentsIfNeeded().withMode(mode).forPath(path, toBytes(model));
         } catch (Exception e) {
             LOG.log(WARNING, format("%s occurred while creating ZK node %s. Message: %s",
                     e.getClass().getSimpleName(), getPath(), e.getLocalizedMessage()));
@@ -180,20 +260,13 @@ public class ZooKeeperObject<T> {
     }
 
     /**
-     * Returns True if the associated ZNode exists, false otherwise.
+     * Remembers the zxid of a write so that subsequent cached reads never return older data.
      *
-     * @return true if the node exists, false otherwise
-     * @throws ZookeeperException if an error occurs while checking the Zookeeper node
+     * @param stat the stat returned by the write, may be null
      */
-    private boolean exists() throws ZookeeperException {
-        try {
-            return conn.checkExists().forPath(getPath()) != null;
-        } catch (Exception e) {
-            LOG.log(WARNING, format("%s occurred while checking if ZK node %s exists. Message: %s",
-                    e.getClass().getSimpleName(), getPath(), e.getLocalizedMessage()));
-            // Super annoying that the ZK curator framework throws general exceptions all over the place - return our
-            // specialized type so that we can handle this separately if desired
-            throw new ZookeeperException(e);
+    void recordWrite(final Stat stat) {
+        if (stat != null) {
+            lastWriteZxid = stat.getMzxid();
         }
     }
 
@@ -216,6 +289,117 @@ public class ZooKeeperObject<T> {
         }
     }
 
+    /**
+     * Saves the specified model to Zookeeper only if the ZNode is still at the expected data version.
+     *
+     * @param model   the data model
+     * @param version the expected data version, or -1 to create a ZNode that must not already exist
+     * @return the stat of the ZNode after the write
+     * @throws KeeperException.BadVersionException if the ZNode was modified (or created) by someone else
+     * @throws ZookeeperException                  if any other error occurs while saving the data model
+     */
+    public Stat save(final T model, final int version) throws KeeperException.BadVersionException, ZookeeperException {
+        try {
+            final byte[] data = toBytes(model);
+            if (version < 0) {
+                try {
+                    conn.create().creatingParentsIfNeeded().forPath(path, data);
+                    // there is no stat for a create on ZooKeeper 3.4, the node is new so the cache can't be stale
+                    return null;
+                } catch (KeeperException.NodeExistsException nee) {
+                    throw new KeeperException.BadVersionException(path);
+                }
+            }
+            final Stat stat = conn.setData().withVersion(version).forPath(path, data);
+            recordWrite(stat);
+            return stat;
+        } catch (KeeperException.BadVersionException e) {
+            throw e;
+        } catch (Exception e) {
+            LOG.log(WARNING, format("%s occurred while saving ZK data to %s. Message: %s",
+                    e.getClass().getSimpleName(), getPath(), e.getLocalizedMessage()));
+            // Super annoying that the ZK curator framework throws general exceptions all over the place - return our
+            // specialized type so that we can handle this separately if desired
+            throw new ZookeeperException(e);
+        }
+    }
+
+    /**
+     * See update(Boolean, Consumer)
+     *
+     * @param mutator applies the required changes to the model
+     * @return the model as saved
+     * @throws ZookeeperException if the ZNode doesn't exist, the update could not be applied or any other error occurs
+     */
+    public T update(final Consumer<T> mutator) throws ZookeeperException {
+        return update(false, mutator);
+    }
+
+    /**
+     * Performs a conditional read-modify-write of the data model. The model is read together with its version, the
+     * mutator is applied and the result is written back only if nobody else has written the ZNode in the meantime.
+     * If another writer got there first the whole cycle is repeated, so the mutator may be invoked more than once.
+     *
+     * @param create  create the ZNode if it doesn't exist
+     * @param mutator applies the required changes to the model
+     * @return the model as saved
+     * @throws ZookeeperException if the ZNode doesn't exist and create is false, the update keeps losing races with
+     *                            other writers or any other error occurs
+     */
+    public T update(final Boolean create, final Consumer<T> mutator) throws ZookeeperException {
+        for (int attempt = 1; attempt <= MAX_UPDATE_ATTEMPTS; attempt++) {
+            final Versioned<T> current = loadVersioned(create);
+            final T model = current.getModel();
+            mutator.accept(model);
+            try {
+                save(model, current.getVersion());
+                return model;
+            } catch (KeeperException.BadVersionException e) {
+                LOG.log(FINEST, format("Concurrent modification of %s, retrying update (attempt %d)", path, attempt));
+            }
+        }
+        throw new ZookeeperException(format("Unable to update %s after %d attempts due to concurrent modifications",
+                path, MAX_UPDATE_ATTEMPTS));
+    }
+
+    /**
+     * Builds a transaction operation which applies the mutator to the current model. The operation is conditional
+     * on the ZNode not having been modified since it was read here, so a transaction containing it fails with
+     * BadVersionException if another writer got there first.
+     *
+     * @param mutator applies the required changes to the model
+     * @return the set data operation, to be committed as part of a transaction
+     * @throws ZookeeperException if the ZNode doesn't exist or an error occurs while reading it
+     */
+    public CuratorOp updateOp(final Consumer<T> mutator) throws ZookeeperException {
+        final Versioned<T> current = loadVersioned(false);
+        mutator.accept(current.getModel());
+        try {
+            return conn.transactionOp().setData().withVersion(current.getVersion())
+                    .forPath(path, toBytes(current.getModel()));
+        } catch (Exception e) {
+            LOG.log(WARNING, format("%s occurred while building set data operation for %s. Message: %s",
+                    e.getClass().getSimpleName(), getPath(), e.getLocalizedMessage()));
+            throw new ZookeeperException(e);
+        }
+    }
+
+    /**
+     * Builds a transaction operation which deletes the associated ZNode.
+     *
+     * @return the delete operation, to be committed as part of a transaction
+     * @throws ZookeeperException if the operation can't be built
+     */
+    public CuratorOp deleteOp() throws ZookeeperException {
+        try {
+            return conn.transactionOp().delete().forPath(path);
+        } catch (Exception e) {
+            LOG.log(WARNING, format("%s occurred while building delete operation for %s. Message: %s",
+                    e.getClass().getSimpleName(), getPath(), e.getLocalizedMessage()));
+            throw new ZookeeperException(e);
+        }
+    }
+
     /**
      * Saves the specified model to Zookeeper using the given create mode attribute. Note: if the CreateMode is one of
      * the SEQUENTIAL varieties, then the generated node id (ZKID) will will be updated appropriately.
@@ -250,6 +434,44 @@ public class ZooKeeperObject<T> {
         }
     }
 
+    /**
+     * Asynchronously creates the ZNode for the specified model using the given create mode. The calling thread is
+     * not blocked, the returned future completes from the Curator event thread once ZooKeeper has responded. If the
+     * CreateMode is one of the SEQUENTIAL varieties, then the path and generated node id (ZKID) are updated before
+     * the future completes.
+     *
+     * @param model the data model
+     * @param mode  the Zookeeper create mode
+     * @return a future holding the created path
+     */
+    public CompletableFuture<String> saveAsync(final T model, final CreateMode mode) {
+        final CompletableFuture<String> future = new CompletableFuture<>();
+        try {
+            conn.create().creatingParentsIfNeeded().withMode(mode).inBackground((client, event) -> {
+                if (event.getResultCode() != KeeperException.Code.OK.intValue()) {
+                    future.completeExceptionally(new ZookeeperException(
+                            KeeperException.create(KeeperException.Code.get(event.getResultCode()), event.getPath())));
+                    return;
+                }
+                final String generatedPath = event.getName();
+                try {
+                    if (mode == CreateMode.EPHEMERAL_SEQUENTIAL || mode == CreateMode.PERSISTENT_SEQUENTIAL) {
+                        setPath(generatedPath);
+                        setZKID(idFromPath(generatedPath));
+                    }
+                    future.complete(generatedPath);
+                } catch (NodePoolException e) {
+                    future.completeExceptionally(e);
+                }
+            }).forPath(path, toBytes(model));
+        } catch (Exception e) {
+            LOG.log(WARNING, format("%s occurred while saving ZK data. Message: %s",
+                    e.getClass().getSimpleName(), e.getLocalizedMessage()));
+            future.completeExceptionally(new ZookeeperException(e));
+        }
+        return future;
+    }
+
     /**
      * See load(Boolean)
      *
@@ -261,33 +483,46 @@ public class ZooKeeperObject<T> {
     }
 
     /**
-     * Reads the data model from Zookeeper.
+     * Reads the data model, from the shared cache if one is available and fresh, otherwise from Zookeeper.
      *
      * @param create Creates a new znode if the required path doesn't exist
      * @return the data model as a Java object
      * @throws ZookeeperException if an error occurs while reading the data model from the Zookeeper node
      */
     public T load(Boolean create) throws ZookeeperException {
+        return load(create, true);
+    }
+
+    /**
+     * Reads the data model directly from Zookeeper, bypassing the shared cache. Use this where a decision must
+     * not be based on stale data, such as read-modify-write updates.
+     *
+     * @return the data model as a Java object
+     * @throws ZookeeperException if an error occurs while reading the data model from the Zookeeper node
+     */
+    public T loadLive() throws ZookeeperException {
+        return load(false, false);
+    }
+
+    /**
+     * Reads the data model from Zookeeper.
+     *
+     * @param create      Creates a new znode if the required path doesn't exist
+     * @param allowCached if true, the data may be served from the shared cache when it is fresh
+     * @return the data model as a Java object
+     * @throws ZookeeperException if an error occurs while reading the data model from the Zookeeper node
+     */
+    public T load(Boolean create, boolean allowCached) throws ZookeeperException {
         try {
-            if (exists()) {
-                byte[] bytes = conn.getData().forPath(this.path);
-                // If no data or empty value
-                if (bytes == null || bytes.length == 0) {
-                    // Return a new empty model
-                    return typeParameterClass.newInstance();
-                } else {
-                    // Convert the value to a string with the proper encoding and unmarshall into the appropriate type
-                    final String jsonString = new String(bytes, StandardCharsets.UTF_8);
-                    //LOG.log(FINEST, format("Loaded model, path: %s, data: %s", path, jsonString));
-                    return GSON.fromJson(jsonString, typeParameterClass);
+            if (allowCached && cache != null) {
+                final ChildData cached = cache.getData(this.path, lastWriteZxid);
+                if (cached != null) {
+                    return fromBytes(cached.getData());
                 }
-            } else if (create) {
-                // Return a new empty model
-                return typeParameterClass.newInstance();
-            } else {
-                // Don't create a new node, because create is false
-                throw new ZookeeperException("Can't read from non-existent znode: " + this.path);
             }
+            return loadVersioned(create).getModel();
+        } catch (ZookeeperException e) {
+            throw e;
         } catch (Exception e) {
             LOG.log(WARNING, format("%s occurred while loading ZK data. Message: %s",
                     e.getClass().getSimpleName(), e.getLocalizedMessage()));
@@ -297,17 +532,79 @@ public class ZooKeeperObject<T> {
         }
     }
 
+    /**
+     * Reads the data model and its stat directly from Zookeeper in a single round trip.
+     *
+     * @param create if true, a new empty model (with a null stat) is returned when the ZNode doesn't exist
+     * @return the data model and the stat it was read with
+     * @throws ZookeeperException if the ZNode doesn't exist and create is false, or an error occurs while reading
+     */
+    public Versioned<T> loadVersioned(Boolean create) throws ZookeeperException {
+        try {
+            final Stat stat = new Stat();
+            final byte[] bytes = conn.getData().storingStatIn(stat).forPath(this.path);
+            return new Versioned<>(fromBytes(bytes), stat);
+        } catch (KeeperException.NoNodeException e) {
+            if (create) {
+                try {
+                    // Return a new empty model
+                    return new Versioned<>(typeParameterClass.newInstance(), null);
+                } catch (InstantiationException | IllegalAccessException ie) {
+                    throw new ZookeeperException(ie);
+                }
+            }
+            // Don't create a new node, because create is false
+            throw new ZookeeperException("Can't read from non-existent znode: " + this.path);
+        } catch (Exception e) {
+            LOG.log(WARNING, format("%s occurred while loading ZK data from %s. Message: %s",
+                    e.getClass().getSimpleName(), getPath(), e.getLocalizedMessage()));
+            // Super annoying that the ZK curator framework throws general exceptions all over the place - return our
+            // specialized type so that we can handle this separately if desired
+            throw new ZookeeperException(e);
+        }
+    }
+
+    /**
+     * Converts the data model into raw znode data.
+     *
+     * @param model the data model
+     * @return the model as UTF-8 encoded JSON
+     */
+    private byte[] toBytes(final T model) {
+        return GSON.toJson(model, model.getClass()).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Converts the raw znode data into the data model.
+     *
+     * @param bytes the raw znode data
+     * @return the data model, or a new empty model if there is no data
+     * @throws Exception if the model can't be instantiated
+     */
+    private T fromBytes(final byte[] bytes) throws Exception {
+        // If no data or empty value
+        if (bytes == null || bytes.length == 0) {
+            // Return a new empty model
+            return typeParameterClass.newInstance();
+        } else {
+            // Convert the value to a string with the proper encoding and unmarshall into the appropriate type
+            final String jsonString = new String(bytes, StandardCharsets.UTF_8);
+            //LOG.log(FINEST, format("Loaded model, path: %s, data: %s", path, jsonString));
+            return GSON.fromJson(jsonString, typeParameterClass);
+        }
+    }
+
     /**
      * Deletes the associated Zookeeper Node.
      */
     public void delete() {
+        // any cached copy is now stale, always read through to Zookeeper from here on
+        lastWriteZxid = Long.MAX_VALUE;
         try {
-            if (exists()) {
-                conn.delete().deletingChildrenIfNeeded().forPath(getPath());
-                LOG.log(FINEST, format("Deleted path: %s", getPath()));
-            } else {
-                LOG.log(FINEST, format("Path already deleted: %s", getPath()));
-            }
+            conn.delete().deletingChildrenIfNeeded().forPath(getPath());
+            LOG.log(FINEST, format("Deleted path: %s", getPath()));
+        } catch (KeeperException.NoNodeException e) {
+            LOG.log(FINEST, format("Path already deleted: %s", getPath()));
         } catch (Exception e) {
             // not sure what else we can do at this point.
             LOG.log(INFO, format("Failed to delete node at path: %s. Message: %s", getPath(), e.getLocalizedMessage()));
@@ -330,19 +627,14 @@ public class ZooKeeperObject<T> {
             throw new NodePoolException("Path is malformed - should start with a '/' character");
         }
 
-        if (path.contains("-")) {
-            final List<String> parts = Arrays.asList(path.split("-"));
-            final String id = parts.get(parts.size() - 1);
-            if (id == null || id.length() == 0) {
+        final String id = NodePoolPaths.lastDashSegment(path);
+        if (id != null) {
+            if (id.isEmpty()) {
                 throw new NodePoolException("Path is malformed - extracted ID is null or empty");
-            } else {
-                try {
-                    Long.parseLong(id);
-                } catch (NumberFormatException nfe) {
-                    throw new NodePoolException(format("Path is malformed - extracted ID is invalid: %s", id));
-                }
-                return id;
+            } else if (!NodePoolPaths.isDigits(id)) {
+                throw new NodePoolException(format("Path is malformed - extracted ID is invalid: %s", id));
             }
+            return id;
         } else {
             throw new NodePoolException("Malformed node path while looking for request id: " + path);
         }
@@ -356,20 +648,18 @@ public class ZooKeeperObject<T> {
      */
     public String asJSON() throws ZookeeperException {
         try {
-            if (exists()) {
-                byte[] bytes = conn.getData().forPath(this.path);
-                // If no data or empty value
-                if (bytes == null || bytes.length == 0) {
-                    // Return a new empty model
-                    return "{}";
-                } else {
-                    // Convert the value to a string with the proper encoding and return
-                    return new String(bytes, StandardCharsets.UTF_8);
-                }
-            } else {
+            byte[] bytes = conn.getData().forPath(this.path);
+            // If no data or empty value
+            if (bytes == null || bytes.length == 0) {
                 // Return a new empty model
                 return "{}";
+            } else {
+                // Convert the value to a string with the proper encoding and return
+                return new String(bytes, StandardCharsets.UTF_8);
             }
+        } catch (KeeperException.NoNodeException e) {
+            // Return a new empty model
+            return "{}";
         } catch (Exception e) {
             LOG.log(WARNING, format("%s occurred while loading ZK data. Message: %s",
                     e.getClass().getSimpleName(), e.getLocalizedMessage()));
@@ -1,10 +1,16 @@
 package com.rackspace.jenkins_nodepool.links;
 
+import com.rackspace.jenkins_nodepool.JanitorScanStats;
+import com.rackspace.jenkins_nodepool.KazooLockMetrics;
 import com.rackspace.jenkins_nodepool.NodePool;
 import com.rackspace.jenkins_nodepool.NodePoolJobHistory;
+import com.rackspace.jenkins_nodepool.NodePoolJobHistoryStore;
+import com.rackspace.jenkins_nodepool.NodePoolMetrics;
 import com.rackspace.jenkins_nodepool.NodePools;
+import com.rackspace.jenkins_nodepool.ProvisioningMetrics;
 import hudson.Extension;
 import jenkins.model.Jenkins;
+import net.sf.json.JSONObject;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
 import org.kohsuke.stapler.interceptor.RequirePOST;
@@ -12,7 +18,11 @@ import org.kohsuke.stapler.interceptor.RequirePOST;
 import javax.annotation.CheckForNull;
 import javax.servlet.ServletException;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
 import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Adds a link under "Manage Jenkins" which can be accessed to display information related to the health and
@@ -21,6 +31,13 @@ import java.util.List;
 @Extension
 public class NodePoolManagementLink extends hudson.model.ManagementLink {
 
+    private static final Logger LOG = Logger.getLogger(NodePoolManagementLink.class.getName());
+
+    /**
+     * Number of stored jobs shown per page
+     */
+    public static final int HISTORY_PAGE_SIZE = 50;
+
     @CheckForNull
     @Override
     public String getIconFileName() {
@@ -54,6 +71,93 @@ public class NodePoolManagementLink extends hudson.model.ManagementLink {
         return nodePools.getJobHistory();
     }
 
+    /**
+     * Returns a page of the on-disk job history, newest first.
+     *
+     * @param page    the page number, starting from 0
+     * @param label   only show jobs for this label, may be null or empty
+     * @param jobName only show builds of this job, may be null or empty
+     * @return the page, or null if the history can't be read
+     */
+    public NodePoolJobHistoryStore.Page getStoredHistory(int page, String label, String jobName) {
+        final NodePoolJobHistoryStore store = NodePools.get().getHistoryStore();
+        if (store == null) {
+            return null;
+        }
+        try {
+            return store.page(new NodePoolJobHistoryStore.Query(label, jobName, 0, 0), page, HISTORY_PAGE_SIZE);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Unable to read NodePool job history: " + e.getLocalizedMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Parses a page number request parameter.
+     *
+     * @param page the parameter value, may be null
+     * @return the page number, 0 if the value is missing or invalid
+     */
+    public int pageNumber(String page) {
+        try {
+            return page == null ? 0 : Math.max(0, Integer.parseInt(page));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Builds the relative link to a page of the stored history, keeping the current filters.
+     *
+     * @param page    the page number, starting from 0
+     * @param label   the label filter, may be null
+     * @param jobName the job filter, may be null
+     * @return the link, with the filters URL-encoded
+     */
+    public String historyPageUrl(int page, String label, String jobName) {
+        return "?historyPage=" + page + "&historyLabel=" + encodeParameter(label)
+                + "&historyJob=" + encodeParameter(jobName);
+    }
+
+    private static String encodeParameter(String value) {
+        if (value == null) {
+            return "";
+        }
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public List<KazooLockMetrics.PathStats> getLockStats() {
+        return KazooLockMetrics.get().getPathStats();
+    }
+
+    public List<JanitorScanStats.ClusterStats> getJanitorScanStats() {
+        return JanitorScanStats.get().getClusterStats();
+    }
+
+    public List<ProvisioningMetrics.Row> getProvisioningLatency() {
+        return ProvisioningMetrics.get().getRows();
+    }
+
+    /**
+     * Serves the provisioning latency percentiles and the plugin's internal metrics as JSON, at nodepool-view/metrics.
+     *
+     * @param req the stapler request object
+     * @param rsp the stapler response object
+     * @throws IOException if the response can't be written
+     */
+    public void doMetrics(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Jenkins.getInstance().checkPermission(Jenkins.READ);
+        final JSONObject json = new JSONObject();
+        json.put("provisioning", ProvisioningMetrics.get().toJson());
+        json.put("internals", NodePoolMetrics.get().toJson());
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().write(json.toString());
+    }
+
     /**
      * Triggers/Performs the page update now.
      *
@@ -0,0 +1,142 @@
+package com.rackspace.jenkins_nodepool;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class AgentBootstrapTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    /**
+     * Output and exit status of a script run under /bin/sh
+     */
+    private static final class Result {
+        final String output;
+        final int exitCode;
+
+        Result(String output, int exitCode) {
+            this.output = output;
+            this.exitCode = exitCode;
+        }
+    }
+
+    @Test
+    public void testQuote() {
+        assertEquals("'/tmp'", AgentBootstrap.quote("/tmp"));
+        assertEquals("'it'\\''s'", AgentBootstrap.quote("it's"));
+    }
+
+    @Test
+    public void testScript() {
+        final String script = AgentBootstrap.script("apt-get install -y openjdk-8-jre-headless", "/tmp/agent dir",
+                "remoting.jar", 1234, "0123abcd");
+        assertTrue(script.startsWith("set -e\n"));
+        assertTrue(script.contains("cd '/tmp/agent dir'\n"));
+        // the installer must not consume the jar from standard input, nor inherit errexit
+        assertTrue(script.contains("(set +e\n  apt-get install -y openjdk-8-jre-headless\n  ) </dev/null || rc=$?\n"));
+        assertTrue(script.contains("cat > 'remoting.jar.tmp'\n"));
+        assertTrue(script.contains("-eq 1234\n"));
+        assertTrue(script.indexOf(AgentBootstrap.MARKER + AgentBootstrap.JAVA_PRESENT)
+                < script.indexOf("cat > "));
+        // the jar is only asked for when the node's copy has a different digest
+        assertTrue(script.contains("if [ \"$current\" = '0123abcd' ]; then\n"));
+        assertTrue(script.indexOf(AgentBootstrap.MARKER + AgentBootstrap.JAR_CURRENT)
+                < script.indexOf(AgentBootstrap.MARKER + AgentBootstrap.JAR_WANTED));
+        assertTrue(script.endsWith("echo '" + AgentBootstrap.MARKER + AgentBootstrap.JAR_RECEIVED + "'\n"));
+    }
+
+    @Test
+    public void testDebianInstallCommandSeparatesWaitLoop() {
+        final String command = new NodePoolDebianOpenJDKInstaller().getInstallCommand();
+        assertTrue(command, command.contains("do sleep 1; echo -n .; done;"));
+    }
+
+    @Test
+    public void testScriptRunsInstallerWithoutErrexit() throws Exception {
+        final File dir = tmp.newFolder("agent");
+        final File installed = new File(dir, "java-installed");
+        final byte[] jar = "not really a jar".getBytes(StandardCharsets.UTF_8);
+        // a failing command in the middle of the installer, like the wait loop of the Debian installer, is not fatal
+        final String install = "false; touch " + AgentBootstrap.quote(installed.getPath());
+
+        Result result = run(AgentBootstrap.script(install, dir.getPath(), "remoting.jar", jar.length,
+                AgentJar.sha256(jar)), installed, jar);
+        assertEquals(result.output, 0, result.exitCode);
+        assertTrue(result.output.contains(AgentBootstrap.MARKER + AgentBootstrap.JAVA_INSTALLED));
+        assertTrue(result.output.contains(AgentBootstrap.MARKER + AgentBootstrap.JAR_RECEIVED));
+        assertArrayEquals(jar, Files.readAllBytes(new File(dir, "remoting.jar").toPath()));
+
+        // a second run finds both Java and the jar
+        result = run(AgentBootstrap.script(install, dir.getPath(), "remoting.jar", jar.length,
+                AgentJar.sha256(jar)), installed, new byte[0]);
+        assertEquals(result.output, 0, result.exitCode);
+        assertTrue(result.output.contains(AgentBootstrap.MARKER + AgentBootstrap.JAVA_PRESENT));
+        assertTrue(result.output.contains(AgentBootstrap.MARKER + AgentBootstrap.JAR_CURRENT));
+        assertFalse(result.output.contains(AgentBootstrap.MARKER + AgentBootstrap.JAR_WANTED));
+    }
+
+    @Test
+    public void testScriptFailsWithInstallerExitCode() throws Exception {
+        final File dir = tmp.newFolder("agent");
+        final byte[] jar = "not really a jar".getBytes(StandardCharsets.UTF_8);
+
+        final Result result = run(AgentBootstrap.script("true; exit 3", dir.getPath(), "remoting.jar", jar.length,
+                AgentJar.sha256(jar)), new File(dir, "java-installed"), jar);
+        assertEquals(result.output, 3, result.exitCode);
+        assertFalse(result.output.contains(AgentBootstrap.MARKER + AgentBootstrap.JAR_WANTED));
+        assertFalse(new File(dir, "remoting.jar").exists());
+    }
+
+    /**
+     * Runs a bootstrap script under /bin/sh with a fake java command that only succeeds once the given file exists.
+     */
+    private Result run(final String script, final File javaInstalled, final byte[] stdin) throws Exception {
+        assumeTrue(new File("/bin/sh").canExecute());
+        final File bin = new File(tmp.getRoot(), "bin");
+        final File java = new File(bin, "java");
+        if (!java.exists()) {
+            assertTrue(bin.mkdirs());
+            Files.write(java.toPath(), ("#!/bin/sh\ntest -f " + AgentBootstrap.quote(javaInstalled.getPath()) + "\n")
+                    .getBytes(StandardCharsets.UTF_8));
+            assertTrue(java.setExecutable(true));
+        }
+        final ProcessBuilder pb = new ProcessBuilder("/bin/sh", "-c", script).redirectErrorStream(true);
+        pb.environment().put("PATH", bin.getPath() + File.pathSeparator + pb.environment().get("PATH"));
+        final Process process = pb.start();
+        try (OutputStream out = process.getOutputStream()) {
+            out.write(stdin);
+        } catch (IOException e) {
+            // the script exited without reading its input
+        }
+        final String output = read(process.getInputStream());
+        assertTrue("script did not finish", process.waitFor(30, TimeUnit.SECONDS));
+        return new Result(output, process.exitValue());
+    }
+
+    private static String read(final InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
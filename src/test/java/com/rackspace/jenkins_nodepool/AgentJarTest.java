@@ -0,0 +1,41 @@
+package com.rackspace.jenkins_nodepool;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AgentJarTest {
+
+    @Test
+    public void testSha256() {
+        final AgentJar jar = new AgentJar("abc".getBytes(StandardCharsets.US_ASCII));
+        assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", jar.getSha256());
+        assertEquals(3, jar.getLength());
+    }
+
+    @Test
+    public void testMatches() {
+        final AgentJar jar = new AgentJar("abc".getBytes(StandardCharsets.US_ASCII));
+        // as printed by sha256sum, trailing newline included
+        assertTrue(jar.matches("BA7816BF8F01CFEA414140DE5DAE2223B00361A396177A9CB410FF61F20015AD\n"));
+        assertFalse(jar.matches(""));
+        assertFalse(jar.matches(null));
+        assertFalse(jar.matches(AgentJar.sha256(new byte[0])));
+    }
+
+    @Test
+    public void testWriteTo() throws Exception {
+        final byte[] bytes = new byte[100 * 1024 + 7];
+        new Random(42).nextBytes(bytes);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new AgentJar(bytes).writeTo(out);
+        assertArrayEquals(bytes, out.toByteArray());
+    }
+}
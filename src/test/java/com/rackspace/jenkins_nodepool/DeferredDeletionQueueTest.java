@@ -0,0 +1,94 @@
+package com.rackspace.jenkins_nodepool;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DeferredDeletionQueueTest {
+
+    private ScheduledExecutorService scheduler;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testDeletionWaitsForGracePeriod() throws InterruptedException {
+        final DeferredDeletionQueue queue = new DeferredDeletionQueue(scheduler, executor, 200L, 4);
+        final CountDownLatch deleted = new CountDownLatch(1);
+        final long start = System.nanoTime();
+
+        assertTrue(queue.schedule("node", deleted::countDown));
+        assertTrue(queue.isPending("node"));
+        assertTrue(deleted.await(5, TimeUnit.SECONDS));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 200L);
+    }
+
+    @Test
+    public void testDuplicateIsIgnored() throws InterruptedException {
+        final DeferredDeletionQueue queue = new DeferredDeletionQueue(scheduler, executor, 100L, 4);
+        final AtomicInteger deletions = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(1);
+
+        assertTrue(queue.schedule("node", () -> {
+            deletions.incrementAndGet();
+            done.countDown();
+        }));
+        assertFalse(queue.schedule("node", deletions::incrementAndGet));
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+
+        // wait for the queue to forget the node, after which it may be queued again
+        final long deadline = System.currentTimeMillis() + 5000L;
+        while (queue.isPending("node") && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, deletions.get());
+        assertEquals(0, queue.getPendingCount());
+    }
+
+    @Test
+    public void testConcurrencyIsBounded() throws InterruptedException {
+        final int nodes = 50;
+        final int maxConcurrent = 3;
+        final DeferredDeletionQueue queue = new DeferredDeletionQueue(scheduler, executor, 10L, maxConcurrent);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(nodes);
+
+        for (int i = 0; i < nodes; i++) {
+            queue.schedule("node-" + i, () -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                running.decrementAndGet();
+                done.countDown();
+            });
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertTrue("max running was " + maxRunning.get(), maxRunning.get() <= maxConcurrent);
+    }
+}
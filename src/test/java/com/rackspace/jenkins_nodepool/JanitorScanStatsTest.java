@@ -0,0 +1,54 @@
+package com.rackspace.jenkins_nodepool;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class JanitorScanStatsTest {
+
+    @After
+    public void tearDown() {
+        JanitorScanStats.get().reset();
+    }
+
+    @Test
+    public void testOverlappingScanIsSkipped() {
+        final JanitorScanStats stats = JanitorScanStats.get();
+        final JanitorScanStats.ClusterStats slow = stats.forCluster("slow");
+
+        assertTrue(stats.started(slow));
+        assertTrue(slow.isRunning());
+        assertFalse(stats.started(slow));
+        assertEquals(1, slow.getSkipped());
+
+        stats.finished(slow, 300, false);
+        assertFalse(slow.isRunning());
+        assertTrue(stats.started(slow));
+        stats.finished(slow, 100, true);
+
+        assertEquals(2, slow.getScans());
+        assertEquals(1, slow.getFailures());
+        assertEquals(100, slow.getLastDurationMs());
+        assertEquals(200, slow.getMeanDurationMs());
+        assertEquals(300, slow.getMaxDurationMs());
+    }
+
+    @Test
+    public void testClustersAreIndependent() {
+        final JanitorScanStats stats = JanitorScanStats.get();
+        final JanitorScanStats.ClusterStats a = stats.forCluster("a");
+        final JanitorScanStats.ClusterStats b = stats.forCluster("b");
+
+        assertTrue(stats.started(a));
+        // a scan still running on one cluster doesn't stop another from being scanned
+        assertTrue(stats.started(b));
+        stats.finished(b, 10, false);
+        stats.finished(a, 50, false);
+
+        assertEquals(2, stats.getClusterStats().size());
+        assertEquals("a", stats.getClusterStats().get(0).getCluster());
+    }
+}
@@ -23,6 +23,7 @@
  */
 package com.rackspace.jenkins_nodepool;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import org.junit.Before;
@@ -64,5 +65,21 @@ public class JanitorTest {
         assertTrue(janitor.hasInvalidLabel(m.nps));
     }
 
+    /**
+     * A hold expiry is queued once per node and expiry time.
+     */
+    @Test
+    public void testScheduleHoldExpiry() {
+        final long expiry = System.currentTimeMillis() + 60000L;
+        janitor.scheduleHoldExpiry("node-1", expiry);
+        janitor.scheduleHoldExpiry("node-1", expiry);
+        assertEquals(1, janitor.getScheduledHoldCount());
+
+        // an extended hold is queued again
+        janitor.scheduleHoldExpiry("node-1", expiry + 1000L);
+        janitor.scheduleHoldExpiry("node-2", expiry);
+        assertEquals(3, janitor.getScheduledHoldCount());
+    }
+
 
 }
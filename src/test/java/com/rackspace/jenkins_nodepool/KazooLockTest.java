@@ -23,6 +23,10 @@
  */
 package com.rackspace.jenkins_nodepool;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
@@ -175,4 +179,96 @@ public class KazooLockTest {
         assertTrue(elapsed > minimumElapsed);
         LOG.info("elapsed:" + elapsed.toString());
     }
+
+    @Test
+    public void testTimedOutContenderLeavesQueue() throws Exception {
+        final KazooLock holder = new KazooLock(path, m.np, m.npj);
+        holder.acquire();
+
+        final KazooLock waiter = new KazooLock(path, 1, TimeUnit.SECONDS, m.np, m.npj);
+        final long start = System.nanoTime();
+        try {
+            waiter.acquire();
+            fail("Expected KazooLockException");
+        } catch (KazooLockException e) {
+            // pass
+        }
+        // one overall deadline, not one per contender
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(3));
+        assertEquals(KazooLock.State.UNLOCKED, waiter.getState());
+        // the timed out contender must not block anyone behind it
+        assertEquals(1, m.conn.getChildren().forPath(path).size());
+        holder.release();
+    }
+
+    @Test
+    public void testQueueOrder() throws Exception {
+        // contenders acquire in sequence order, each one only waiting on the one ahead of it
+        final KazooLock first = new KazooLock(path, m.np, m.npj);
+        first.acquire();
+
+        final List<KazooLock> waiters = new ArrayList<>();
+        final List<Integer> acquired = Collections.synchronizedList(new ArrayList<>());
+        final List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            final int n = i;
+            final KazooLock kl = new KazooLock(path, 30, TimeUnit.SECONDS, m.np, m.npj);
+            waiters.add(kl);
+            final Thread t = new Thread(() -> {
+                try {
+                    kl.acquire();
+                    acquired.add(n);
+                    kl.release();
+                } catch (Exception ex) {
+                    LOG.severe(ex.getMessage());
+                }
+            });
+            threads.add(t);
+            t.start();
+            // wait for the contender to join the queue so the order is known
+            final long deadline = System.currentTimeMillis() + 10000;
+            while (m.conn.getChildren().forPath(path).size() < i + 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+        }
+        assertTrue(acquired.isEmpty());
+
+        first.release();
+        for (Thread t : threads) {
+            t.join(30000);
+        }
+        assertEquals(Arrays.asList(0, 1, 2), acquired);
+        assertEquals(0, m.conn.getChildren().forPath(path).size());
+    }
+
+    @Test
+    public void testTryAcquireRecordsMetrics() throws Exception {
+        final KazooLockMetrics.PathStats stats = KazooLockMetrics.get().forPath(path);
+        final long acquired = stats.getAcquired();
+        final long timeouts = stats.getTimeouts();
+
+        final KazooLock holder = new KazooLock(path, m.np, m.npj);
+        assertTrue(holder.tryAcquire(Duration.ofSeconds(5)));
+
+        final KazooLock waiter = new KazooLock(path, m.np, m.npj);
+        assertFalse(waiter.tryAcquire(Duration.ofMillis(200)));
+        assertEquals(KazooLock.State.UNLOCKED, waiter.getState());
+
+        holder.release();
+        assertTrue(waiter.tryAcquire(Duration.ofSeconds(5)));
+        waiter.release();
+
+        assertEquals(acquired + 2, stats.getAcquired());
+        assertEquals(timeouts + 1, stats.getTimeouts());
+        assertEquals(0, stats.getWaiting());
+        assertTrue(stats.getMaxDepth() >= 1);
+    }
+
+    @Test
+    public void testLockMetricsGroupByPath() {
+        assertEquals("/nodes/*/lock", KazooLockMetrics.groupFor("/nodes/0000123456/lock"));
+        assertEquals("/testkazoolock/locknode1", KazooLockMetrics.groupFor("/testkazoolock/locknode1"));
+        assertSame(KazooLockMetrics.get().forPath("/nodes/0000000001/lock"),
+                KazooLockMetrics.get().forPath("/nodes/0000000002/lock"));
+    }
 }
@@ -0,0 +1,65 @@
+package com.rackspace.jenkins_nodepool;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Before
+    @After
+    public void tearDown() {
+        ProvisioningMetrics.get().reset();
+    }
+
+    @Test
+    public void testBucketBoundaries() {
+        for (long v : new long[]{0, 1, 15, 16, 17, 31, 32, 33, 63, 64, 1000, 123456789L}) {
+            final int index = LatencyHistogram.bucketIndex(v);
+            assertTrue(v + " below bucket", LatencyHistogram.lowestInBucket(index) <= v);
+            assertTrue(v + " above bucket", LatencyHistogram.highestInBucket(index) >= v);
+        }
+        // buckets are contiguous
+        for (int i = 0; i < 200; i++) {
+            assertEquals(LatencyHistogram.highestInBucket(i) + 1, LatencyHistogram.lowestInBucket(i + 1));
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        final LatencyHistogram h = new LatencyHistogram();
+        assertEquals(0.0, h.getPercentileMs(99), 0.0);
+
+        // 1ms .. 1000ms
+        for (int i = 1; i <= 1000; i++) {
+            h.recordMicros(i * 1000L);
+        }
+        assertEquals(1000, h.getCount());
+        assertEquals(500.5, h.getMeanMs(), 0.1);
+        assertEquals(1000.0, h.getMaxMs(), 0.0);
+        assertEquals(500.0, h.getPercentileMs(50), 500.0 / 16);
+        assertEquals(990.0, h.getPercentileMs(99), 990.0 / 16);
+        assertEquals(1000.0, h.getPercentileMs(100), 0.0);
+
+        h.reset();
+        assertEquals(0, h.getCount());
+    }
+
+    @Test
+    public void testSeriesByClusterAndLabel() {
+        final ProvisioningMetrics metrics = ProvisioningMetrics.get();
+        final long start = System.nanoTime();
+        metrics.series("a@zk:2181", "nodepool-debian").record(ProvisioningMetrics.Phase.SSH_CONNECT, start);
+        metrics.series("a@zk:2181", "nodepool-debian").record(ProvisioningMetrics.Phase.SSH_CONNECT, start);
+        metrics.series("a@zk:2181", "nodepool-centos").record(ProvisioningMetrics.Phase.NODE_LOCK, start);
+        metrics.series(null, (String) null).record(ProvisioningMetrics.Phase.AGENT_COPY, start);
+
+        assertEquals(3, metrics.getRows().size());
+        assertEquals(2, metrics.series("a@zk:2181", "nodepool-debian").get(ProvisioningMetrics.Phase.SSH_CONNECT).getCount());
+        assertEquals(3, metrics.toJson().size());
+        assertEquals("SSH_CONNECT", metrics.toJson().getJSONObject(1).getString("phase"));
+    }
+}
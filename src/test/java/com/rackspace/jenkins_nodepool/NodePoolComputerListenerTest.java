@@ -0,0 +1,71 @@
+package com.rackspace.jenkins_nodepool;
+
+import hudson.model.TaskListener;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Tests for the computer listener that drives online detection during provisioning.
+ */
+public class NodePoolComputerListenerTest {
+
+    private Mocks m;
+    private NodePoolComputerListener listener;
+
+    @Before
+    public void setUp() {
+        m = new Mocks();
+        listener = new NodePoolComputerListener();
+        when(m.npc.getName()).thenReturn(m.npcName);
+    }
+
+    @After
+    public void tearDown() {
+        m.cleanup();
+    }
+
+    @Test
+    public void testOnOnlineCompletesWait() {
+        final CompletableFuture<Void> online = NodePoolComputerListener.awaitOnline(m.npcName);
+        assertFalse(online.isDone());
+
+        listener.onOnline(m.npc, mock(TaskListener.class));
+
+        assertTrue(online.isDone());
+        assertFalse(online.isCompletedExceptionally());
+        assertEquals(0, NodePoolComputerListener.getPendingCount());
+    }
+
+    @Test
+    public void testOnLaunchFailureFailsWait() throws Exception {
+        final CompletableFuture<Void> online = NodePoolComputerListener.awaitOnline(m.npcName);
+
+        listener.onLaunchFailure(m.npc, mock(TaskListener.class));
+
+        try {
+            online.get();
+            fail("Expected launch failure");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof NodePoolException);
+        }
+        assertEquals(0, NodePoolComputerListener.getPendingCount());
+    }
+
+    @Test
+    public void testEventsForOtherNodesAreIgnored() {
+        final CompletableFuture<Void> online = NodePoolComputerListener.awaitOnline("some-other-node");
+
+        listener.onOnline(m.npc, mock(TaskListener.class));
+
+        assertFalse(online.isDone());
+        online.cancel(false);
+        assertEquals(0, NodePoolComputerListener.getPendingCount());
+    }
+}
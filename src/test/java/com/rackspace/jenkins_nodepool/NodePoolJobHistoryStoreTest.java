@@ -0,0 +1,146 @@
+package com.rackspace.jenkins_nodepool;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class NodePoolJobHistoryStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static NodePoolJobHistoryStore.JobRecord record(long timeMs, long taskId, String label) {
+        final List<NodePoolJobHistoryStore.AttemptRecord> attempts = new ArrayList<>();
+        attempts.add(new NodePoolJobHistoryStore.AttemptRecord(NodePoolJob.NodeRequestAttemptState.FAILURE, 5,
+                "", "java.lang.Exception: boom"));
+        attempts.add(new NodePoolJobHistoryStore.AttemptRecord(NodePoolJob.NodeRequestAttemptState.SUCCESS, 65,
+                "0000000001", null));
+        return new NodePoolJobHistoryStore.JobRecord(timeMs, taskId, "part of job #" + taskId, "job#" + taskId,
+                "job", "#" + taskId, label, "localhost:2181", NodePoolJob.NodeRequestAttemptState.SUCCESS, 70,
+                attempts);
+    }
+
+    private static List<Long> taskIds(NodePoolJobHistoryStore.Page page) {
+        final List<Long> ids = new ArrayList<>();
+        for (NodePoolJobHistoryStore.JobRecord r : page.getRecords()) {
+            ids.add(r.getTaskId());
+        }
+        return ids;
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        final NodePoolJobHistoryStore.JobRecord r = record(1000L, 7, "nodepool-debian");
+        final NodePoolJobHistoryStore.JobRecord decoded =
+                NodePoolJobHistoryStore.decode(NodePoolJobHistoryStore.encode(r));
+
+        assertEquals(1000L, decoded.getTimeMs());
+        assertEquals(7, decoded.getTaskId());
+        assertEquals("job#7", decoded.getBuildId());
+        assertEquals("nodepool-debian", decoded.getLabel());
+        assertEquals("00:01:10", decoded.getDurationFormatted());
+        assertEquals(2, decoded.getAttempts().size());
+        assertTrue(decoded.getAttempts().get(0).isFailure());
+        assertEquals("java.lang.Exception: boom", decoded.getAttempts().get(0).getError());
+        assertNull(decoded.getAttempts().get(1).getError());
+        assertEquals("0000000001", decoded.getAttempts().get(1).getNodes());
+    }
+
+    @Test
+    public void testPagingAcrossSegmentsAndRestart() throws IOException {
+        final File dir = new File(folder.getRoot(), "history");
+        final long day = TimeUnit.DAYS.toMillis(1);
+        // tiny segments so that the records are spread over many files
+        NodePoolJobHistoryStore store = new NodePoolJobHistoryStore(dir, day, 200);
+        final long now = System.currentTimeMillis();
+        for (int i = 0; i < 25; i++) {
+            store.append(record(now + i, i, i % 2 == 0 ? "even" : "odd"));
+        }
+        store.close();
+        assertTrue(dir.listFiles().length > 1);
+
+        // a new store, as after a restart, reads what the old one wrote and adds to it
+        store = new NodePoolJobHistoryStore(dir, day, 200);
+        store.append(record(now + 25, 25, "odd"));
+
+        final NodePoolJobHistoryStore.Query all = NodePoolJobHistoryStore.Query.all();
+        final NodePoolJobHistoryStore.Page first = store.page(all, 0, 10);
+        assertEquals(Arrays.asList(25L, 24L, 23L, 22L, 21L, 20L, 19L, 18L, 17L, 16L), taskIds(first));
+        assertTrue(first.isHasNext());
+        assertFalse(first.isHasPrevious());
+
+        final NodePoolJobHistoryStore.Page last = store.page(all, 2, 10);
+        assertEquals(Arrays.asList(5L, 4L, 3L, 2L, 1L, 0L), taskIds(last));
+        assertFalse(last.isHasNext());
+
+        final NodePoolJobHistoryStore.Page even = store.page(
+                new NodePoolJobHistoryStore.Query("even", null, now + 10, now + 20), 0, 10);
+        assertEquals(Arrays.asList(20L, 18L, 16L, 14L, 12L, 10L), taskIds(even));
+    }
+
+    @Test
+    public void testTruncatedRecordIsIgnored() throws IOException {
+        final File dir = new File(folder.getRoot(), "history");
+        NodePoolJobHistoryStore store = new NodePoolJobHistoryStore(dir, TimeUnit.DAYS.toMillis(1), 1 << 20);
+        store.append(record(System.currentTimeMillis(), 1, "a"));
+        store.close();
+
+        // simulate a crash part way through writing a record
+        final File segment = dir.listFiles()[0];
+        try (FileOutputStream out = new FileOutputStream(segment, true)) {
+            out.write(new byte[]{0, 0, 1, 0, 1, 2, 3});
+        }
+
+        store = new NodePoolJobHistoryStore(dir, TimeUnit.DAYS.toMillis(1), 1 << 20);
+        assertEquals(Collections.singletonList(1L), taskIds(store.page(NodePoolJobHistoryStore.Query.all(), 0, 10)));
+    }
+
+    @Test
+    public void testRetention() throws IOException {
+        final File dir = new File(folder.getRoot(), "history");
+        final long hour = TimeUnit.HOURS.toMillis(1);
+        NodePoolJobHistoryStore store = new NodePoolJobHistoryStore(dir, hour, 1 << 20);
+        store.append(record(System.currentTimeMillis() - 2 * hour, 1, "a"));
+        store.close();
+        final File old = dir.listFiles()[0];
+        assertTrue(old.setLastModified(System.currentTimeMillis() - 2 * hour));
+
+        store = new NodePoolJobHistoryStore(dir, hour, 1 << 20);
+        store.append(record(System.currentTimeMillis(), 2, "a"));
+
+        assertFalse(old.exists());
+        assertEquals(Collections.singletonList(2L), taskIds(store.page(NodePoolJobHistoryStore.Query.all(), 0, 10)));
+    }
+
+    @Test
+    public void testPruneWithoutNewSegment() throws IOException {
+        final File dir = new File(folder.getRoot(), "history");
+        final long hour = TimeUnit.HOURS.toMillis(1);
+        // the segment is far from full, so appending never starts a new one
+        final NodePoolJobHistoryStore store = new NodePoolJobHistoryStore(dir, hour, 1 << 20);
+        store.append(record(System.currentTimeMillis() - 2 * hour, 1, "a"));
+        final File idle = dir.listFiles()[0];
+        assertTrue(idle.setLastModified(System.currentTimeMillis() - 2 * hour));
+
+        store.prune();
+        assertFalse(idle.exists());
+        assertTrue(store.page(NodePoolJobHistoryStore.Query.all(), 0, 10).getRecords().isEmpty());
+
+        store.append(record(System.currentTimeMillis(), 2, "a"));
+        assertEquals(Collections.singletonList(2L), taskIds(store.page(NodePoolJobHistoryStore.Query.all(), 0, 10)));
+    }
+}
@@ -1,9 +1,14 @@
 package com.rackspace.jenkins_nodepool;
 
+import java.util.Arrays;
 import java.util.Iterator;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.when;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -76,4 +81,31 @@ public class NodePoolJobHistoryTest {
 
         assertNull(nodePoolJobHistory.getJob(2));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testNewestFirstAndIndexes() {
+        when(m.run.getExternalizableId()).thenReturn("folder/job#22");
+        when(m.job.getFullName()).thenReturn("folder/job");
+
+        final NodePoolJob first = new NodePoolJob(m.label, m.task, 1);
+        final NodePoolJob second = new NodePoolJob(m.label, m.task, 2);
+        final NodePoolJob third = new NodePoolJob(m.label, m.task, 3);
+        nodePoolJobHistory.add(first);
+        nodePoolJobHistory.add(second);
+        nodePoolJobHistory.add(third);
+
+        final Iterator<NodePoolJob> iter = nodePoolJobHistory.iterator();
+        assertSame(third, iter.next());
+        assertSame(second, iter.next());
+        assertFalse(iter.hasNext());
+        assertEquals(maxHistoryLength, nodePoolJobHistory.size());
+
+        // the replaced job is no longer indexed
+        assertNull(nodePoolJobHistory.getJob(1));
+        assertSame(second, nodePoolJobHistory.getJob(2));
+        assertEquals(Arrays.asList(third, second), nodePoolJobHistory.getJobsForBuild("folder/job#22"));
+        assertEquals(Arrays.asList(third, second), nodePoolJobHistory.getJobs("folder/job", 22));
+        assertTrue(nodePoolJobHistory.getJobs("folder/job", 23).isEmpty());
+        assertTrue(nodePoolJobHistory.getJobs("other").isEmpty());
+    }
+}
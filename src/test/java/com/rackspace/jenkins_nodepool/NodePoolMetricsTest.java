@@ -0,0 +1,63 @@
+package com.rackspace.jenkins_nodepool;
+
+import hudson.model.labels.LabelAtom;
+import net.sf.json.JSONObject;
+import org.apache.curator.framework.state.ConnectionState;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class NodePoolMetricsTest {
+
+    private static long count(String name) {
+        return ((NodePoolMetrics.Counter) NodePoolMetrics.get().getMetric(name)).getCount();
+    }
+
+    @Test
+    public void testCountersByLabel() {
+        final NodePoolMetrics metrics = NodePoolMetrics.get();
+        final LabelAtom label = new LabelAtom("nodepool-metrics-test");
+        metrics.attempt(label);
+        metrics.attempt(label);
+        metrics.attemptFailed(label);
+
+        assertEquals(2, count("nodepool.attempts.nodepool-metrics-test"));
+        assertEquals(1, count("nodepool.attempts.failed.nodepool-metrics-test"));
+    }
+
+    @Test
+    public void testRegistrarSeesExistingAndNewMetrics() {
+        final NodePoolMetrics metrics = NodePoolMetrics.get();
+        final Map<String, Object> registered = new HashMap<>();
+        metrics.setRegistrar(registered::put);
+        try {
+            assertTrue(registered.get("nodepool.lock.wait") instanceof NodePoolMetrics.Timer);
+            assertTrue(registered.get("nodepool.requests.outstanding") instanceof NodePoolMetrics.Gauge);
+
+            metrics.attempt(new LabelAtom("nodepool-registrar-test"));
+            assertSame(metrics.getMetric("nodepool.attempts.nodepool-registrar-test"),
+                    registered.get("nodepool.attempts.nodepool-registrar-test"));
+        } finally {
+            metrics.setRegistrar((name, metric) -> { });
+        }
+    }
+
+    @Test
+    public void testJson() {
+        final NodePoolMetrics metrics = NodePoolMetrics.get();
+        final long before = count("nodepool.zookeeper.suspended");
+        metrics.connectionState(ConnectionState.SUSPENDED);
+        metrics.lockAcquired(2_000_000);
+
+        final JSONObject json = metrics.toJson();
+        assertEquals(before + 1, json.getLong("nodepool.zookeeper.suspended"));
+        assertTrue(json.getJSONObject("nodepool.lock.wait").getLong("count") >= 1);
+        // no Jenkins in this test, so no NodePools
+        assertEquals(0, json.getLong("nodepool.requests.outstanding"));
+    }
+}
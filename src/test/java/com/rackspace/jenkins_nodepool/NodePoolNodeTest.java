@@ -88,6 +88,8 @@ public class NodePoolNodeTest {
 
             zkWrapper = new ZooKeeperObject<>(nodePath, m.npID, m.conn, NodeModel.class);
             zkWrapper.save(model);
+            // written after npn was created, so npn has to re-read it
+            npn.refresh();
         } catch (Exception ex) {
             LOG.log(Level.SEVERE, format("Error setting up NodePoolNodeTest class. Message: %s", ex.getLocalizedMessage()));
         }
@@ -210,4 +212,23 @@ public class NodePoolNodeTest {
         assertSame("NodePoolState is USED", NodePoolState.USED, model.getState());
         assertEquals(KazooLock.State.UNLOCKED, npn.lock.getState());
     }
+
+    /**
+     * Test that reads are served from the snapshot until refresh is called.
+     */
+    @Test
+    public void testSnapshotUntilRefresh() throws Exception {
+        final NodeModel model = zkWrapper.load();
+        model.setInterface_ip("10.0.0.2");
+        zkWrapper.save(model);
+        assertEquals(m.host, npn.getHost());
+
+        npn.refresh();
+        assertEquals("10.0.0.2", npn.getHost());
+
+        // our own writes update the snapshot
+        npn.setHoldUntil(1234L);
+        assertEquals((Long) 1234L, npn.getHoldUntil());
+        assertEquals("10.0.0.2", npn.getHost());
+    }
 }
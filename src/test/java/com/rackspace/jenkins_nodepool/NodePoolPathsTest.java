@@ -0,0 +1,50 @@
+package com.rackspace.jenkins_nodepool;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the path parsing helpers.
+ */
+public class NodePoolPathsTest {
+
+    @Test
+    public void testSequenceNumber() {
+        assertEquals(7, NodePoolPaths.sequenceNumber("/nodes/0000000001/lock/ab-cd__lock__0000000007"));
+        assertEquals(0, NodePoolPaths.sequenceNumber("x_0"));
+        assertEquals(Integer.MAX_VALUE, NodePoolPaths.sequenceNumber("x_2147483647"));
+        assertEquals(-1, NodePoolPaths.sequenceNumber("x_2147483648"));
+        assertEquals(-1, NodePoolPaths.sequenceNumber("x__lock__"));
+        assertEquals(-1, NodePoolPaths.sequenceNumber("x-0000000007"));
+        assertEquals(-1, NodePoolPaths.sequenceNumber("0000000007"));
+        assertEquals(-1, NodePoolPaths.sequenceNumber(""));
+    }
+
+    @Test
+    public void testLastDashSegment() {
+        assertEquals("0000000001", NodePoolPaths.lastDashSegment("/requests/100-0000000001"));
+        assertEquals("0000000001", NodePoolPaths.lastDashSegment("/nodes/debian-stretch-0000000001"));
+        assertEquals("", NodePoolPaths.lastDashSegment("/requests/100-"));
+        assertNull(NodePoolPaths.lastDashSegment("/nodes/0000000001"));
+    }
+
+    @Test
+    public void testIsDigits() {
+        assertTrue(NodePoolPaths.isDigits("0000000001"));
+        assertFalse(NodePoolPaths.isDigits(""));
+        assertFalse(NodePoolPaths.isDigits("12a4"));
+        assertFalse(NodePoolPaths.isDigits("+1"));
+    }
+
+    @Test
+    public void testEndsWithNodeId() {
+        assertTrue(NodePoolPaths.endsWithNodeId("nodepool-debian-0000123456"));
+        assertTrue(NodePoolPaths.endsWithNodeId("-0000123456"));
+        assertFalse(NodePoolPaths.endsWithNodeId("nodepool-debian"));
+        assertFalse(NodePoolPaths.endsWithNodeId("nodepool-debian-000012345"));
+        assertFalse(NodePoolPaths.endsWithNodeId("nodepool-debian00000123456"));
+        assertFalse(NodePoolPaths.endsWithNodeId("nodepool-debian-00001234x6"));
+        assertFalse(NodePoolPaths.endsWithNodeId("0000123456"));
+    }
+}
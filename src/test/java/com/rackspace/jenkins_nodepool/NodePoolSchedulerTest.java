@@ -0,0 +1,74 @@
+package com.rackspace.jenkins_nodepool;
+
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the provisioning pipeline scheduler.
+ */
+public class NodePoolSchedulerTest {
+
+    private final NodePoolScheduler scheduler = NodePoolScheduler.get();
+
+    @Test
+    public void testWithTimeout() throws Exception {
+        final CompletableFuture<Void> future = scheduler.withTimeout(new CompletableFuture<>(), 100,
+                TimeUnit.MILLISECONDS, () -> new TimeoutException("timed out"));
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("Expected timeout");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+    }
+
+    @Test
+    public void testWithTimeoutCompletedInTime() throws Exception {
+        final CompletableFuture<String> future = new CompletableFuture<>();
+        scheduler.withTimeout(future, 5, TimeUnit.SECONDS, TimeoutException::new);
+        future.complete("done");
+        assertEquals("done", future.get());
+    }
+
+    @Test
+    public void testPollUntil() throws Exception {
+        final AtomicInteger checks = new AtomicInteger();
+        assertTrue(scheduler.pollUntil(() -> checks.incrementAndGet() >= 3, () -> false,
+                10, 5, TimeUnit.SECONDS).get(5, TimeUnit.SECONDS));
+        assertEquals(3, checks.get());
+
+        // abort and timeout both complete with false
+        assertFalse(scheduler.pollUntil(() -> false, () -> true,
+                10, 5, TimeUnit.SECONDS).get(5, TimeUnit.SECONDS));
+        assertFalse(scheduler.pollUntil(() -> false, () -> false,
+                10, 100, TimeUnit.MILLISECONDS).get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testSupplyPropagatesFailure() throws Exception {
+        final CompletableFuture<Object> future = scheduler.supply(() -> {
+            throw new NodePoolException("failed");
+        });
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("Expected failure");
+        } catch (ExecutionException e) {
+            assertTrue(NodePoolScheduler.unwrap(e) instanceof NodePoolException);
+        }
+    }
+
+    @Test
+    public void testUnwrap() {
+        final NodePoolException cause = new NodePoolException("cause");
+        assertSame(cause, NodePoolScheduler.unwrap(new CompletionException(new ExecutionException(cause))));
+        assertSame(cause, NodePoolScheduler.unwrap(cause));
+    }
+}
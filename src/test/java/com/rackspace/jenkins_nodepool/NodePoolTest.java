@@ -23,13 +23,18 @@
  */
 package com.rackspace.jenkins_nodepool;
 
+import com.rackspace.jenkins_nodepool.models.NodeModel;
 import hudson.model.Descriptor;
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.imps.CuratorFrameworkState;
 import org.junit.*;
 import org.jvnet.hudson.test.JenkinsRule;
 
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import static java.lang.String.format;
@@ -106,11 +111,55 @@ public class NodePoolTest {
      */
     @Test
     public void testAcceptNodes() throws Exception {
-        np.requests.add(m.nr);
-        assertTrue(m.nr.getAllocatedNodes().size() == 1);
-        np.acceptNodes(m.nr);
-        verify(m.nr).delete();
-        verify(m.npn).setInUse();
+        final NodeRequest request = fulfilledRequest();
+        np.requests.add(request);
+
+        final List<NodePoolNode> accepted = np.acceptNodes(request);
+
+        assertEquals(1, accepted.size());
+        assertEquals(NodePoolState.IN_USE, m.getNodeData(nodePath()).getState());
+        assertNull("request should be deleted", m.conn.checkExists().forPath(request.getPath()));
+        assertFalse(np.requests.contains(request));
+    }
+
+    /**
+     * A failed acceptance transaction must leave the nodes untouched and unlocked.
+     */
+    @Test
+    public void testAcceptNodesFailureLeavesNodesReady() throws Exception {
+        final NodeRequest request = spy(fulfilledRequest());
+        // make the transaction fail on the request deletion, after the node state write
+        doReturn(m.conn.transactionOp().delete().forPath("/" + m.requestRoot + "/missing"))
+                .when(request).deleteOp();
+
+        try {
+            np.acceptNodes(request);
+            fail("Expected NodePoolException");
+        } catch (NodePoolException e) {
+            // pass
+        }
+
+        assertEquals(NodePoolState.READY, m.getNodeData(nodePath()).getState());
+        assertTrue("lock should be released", m.conn.getChildren().forPath(nodePath() + "/lock").isEmpty());
+        assertNull("request should be deleted", m.conn.checkExists().forPath(request.getPath()));
+    }
+
+    private String nodePath() {
+        return format("/%s/%s", m.nodeRoot, m.npID);
+    }
+
+    /**
+     * Creates a request in ZooKeeper that has been fulfilled with a single ready node.
+     */
+    private NodeRequest fulfilledRequest() throws Exception {
+        final NodeModel node = new NodeModel();
+        node.setState(NodePoolState.READY);
+        m.writeNodeData(nodePath(), node);
+
+        final NodeRequest request = new NodeRequest(np, m.priority, m.npj);
+        request.addAllocatedNodes(Collections.singletonList(m.npID));
+        request.updateState(NodePoolState.FULFILLED);
+        return request;
     }
 
 
@@ -156,7 +205,7 @@ public class NodePoolTest {
     }
 
     /**
-     * Test of provisionNode method, of class NodePool. This method checks that
+     * Test of provisionNodeAsync method, of class NodePool. This method checks that
      * The provision process correctly responds to a node request being
      * fulfilled. Its not exhaustive as no nodes are actually created.
      */
@@ -194,25 +243,27 @@ public class NodePoolTest {
         final NodePoolJob job = new NodePoolJob(m.label, m.task, m.qID);
         job.setNodePoolNode(m.npn);
         job.setNodePoolSlave(m.nps);
-        np.provisionNode(job, m.requestTimeout, m.maxAttempts, m.installTimeout);
+        np.provisionNodeAsync(job, m.requestTimeout, m.maxAttempts, m.installTimeout).get();
 
         // this test will timeout on failure
     }
 
     @Test
-    public void testProvisionNodeTimeout() throws Exception {
+    public void testProvisionNodeAsyncTimeout() throws Exception {
         // this test should timeout, because there is no nodepool instance
-        // to fulfil requests.
-        Long start = System.currentTimeMillis();
+        // to fulfil requests, and the wait for fulfilment must not block the caller
         int requestTimeout = 2;
         final NodeRequest request = new NodeRequest(m.np, m.priority, m.npj);
 
+        Long start = System.currentTimeMillis();
+        final CompletableFuture<Void> future = np.attemptProvisionNodeAsync(request, requestTimeout, m.installTimeout);
+        assertFalse(future.isDone());
         try {
-            np.attemptProvisionNode2(request, requestTimeout, m.installTimeout);
+            future.get(requestTimeout + 10, TimeUnit.SECONDS);
             fail("Exception Expected, but not thrown");
-        } catch (InterruptedException ex) {
-            Long end = System.currentTimeMillis();
-            long elapsed = ((end - start)) / 1000;
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof NodePoolException);
+            long elapsed = (System.currentTimeMillis() - start) / 1000;
             if (elapsed > requestTimeout + 3 || elapsed < requestTimeout) {
                 fail(format("Timeout set to %d, but took %d seconds to fail", requestTimeout, elapsed));
             }
@@ -242,18 +293,14 @@ public class NodePoolTest {
 
         final NodePoolJob job = new NodePoolJob(m.label, m.task, m.qID);
 
-        doReturn(m.nr).when(np).createNodeRequest(job);
-        //doNothing().when(np).attemptProvision(job, timeoutInSec);
-        //when(np.createNodeRequest(job)).thenReturn(m.nr);
-        doThrow(new NodePoolException("request fail"))
-                .doNothing()
+        doReturn(NodePoolScheduler.failed(new NodePoolException("request fail")))
+                .doReturn(CompletableFuture.completedFuture(null))
                 .when(np)
-                .attemptProvision(job, m.requestTimeout, m.installTimeout);
+                .attemptProvisionAsync(job, m.requestTimeout, m.installTimeout);
 
-        //np.attemptProvision(job, timeoutInSec);
-        np.provisionNode(job);  // lack of exception indicates provisioning success
+        np.provisionNodeAsync(job).get();  // lack of exception indicates provisioning success
 
-        verify(np, times(2)).attemptProvision(job, m.requestTimeout, m.installTimeout);
+        verify(np, times(2)).attemptProvisionAsync(job, m.requestTimeout, m.installTimeout);
     }
 
     /**
@@ -280,11 +327,12 @@ public class NodePoolTest {
 
 
         final NodeRequest request = mock(NodeRequest.class);
-        doReturn(request).when(np).createNodeRequest(m.npj);
+        doReturn(CompletableFuture.completedFuture(request)).when(np).createNodeRequestAsync(m.npj);
 
-        doNothing().when(np).attemptProvisionNode2(request, m.requestTimeout, m.installTimeout);
+        doReturn(CompletableFuture.completedFuture(null))
+                .when(np).attemptProvisionNodeAsync(request, m.requestTimeout, m.installTimeout);
 
-        np.attemptProvision(m.npj, m.requestTimeout, m.installTimeout);
+        np.attemptProvisionAsync(m.npj, m.requestTimeout, m.installTimeout).get();
 
         final List<Attempt> attempts = m.npj.getAttempts();
         assertEquals(1, attempts.size());
@@ -319,23 +367,25 @@ public class NodePoolTest {
 
 
         final NodeRequest request = mock(NodeRequest.class);
-        doReturn(request).when(np).createNodeRequest(m.npj);
+        doReturn(CompletableFuture.completedFuture(request)).when(np).createNodeRequestAsync(m.npj);
 
-        doThrow(new NodePoolException("request error")).when(np).attemptProvisionNode2(request, m.requestTimeout, m.installTimeout);
+        doReturn(NodePoolScheduler.failed(new NodePoolException("request error")))
+                .when(np).attemptProvisionNodeAsync(request, m.requestTimeout, m.installTimeout);
 
         // override mock default which is to return a single successful attempt
         when(m.npj.getAttempts()).thenReturn(m.attemptListFailure);
         boolean success = true;
 
         try {
-            np.attemptProvision(m.npj, m.requestTimeout, m.installTimeout);
-        } catch (NodePoolException e) {
+            np.attemptProvisionAsync(m.npj, m.requestTimeout, m.installTimeout).get();
+        } catch (ExecutionException e) {
             // expected
+            assertTrue(e.getCause() instanceof NodePoolException);
             success = false;
         }
 
         if (success) {
-            fail("attemptProvision should have failed.");
+            fail("attemptProvisionAsync should have failed.");
         }
 
         final List<Attempt> attempts = m.npj.getAttempts();
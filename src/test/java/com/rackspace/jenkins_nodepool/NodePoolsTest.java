@@ -27,6 +27,7 @@ import hudson.model.Label;
 import hudson.model.labels.LabelAtom;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Stream;
 import org.junit.After;
 import org.junit.AfterClass;
@@ -39,6 +40,7 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.jvnet.hudson.test.JenkinsRule;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 /**
  *
@@ -136,15 +138,16 @@ public class NodePoolsTest {
     }
 
     /**
-     * Test of provisionNode method, of class NodePools.
+     * Test of provisionNodeAsync method, of class NodePools.
      */
     @Test
     public void testProvisionNode() throws Exception {
+        final NodePoolJob job = new NodePoolJob(m.label, m.task, m.qID);
+        when(m.np.provisionNodeAsync(job)).thenReturn(CompletableFuture.completedFuture(null));
         nps.getNodePools().add(m.np);
-        nps.provisionNode(m.label, m.task, m.qID);
+        nps.provisionNodeAsync(m.label, m.task, m.qID).get();
 
-        final NodePoolJob job = new NodePoolJob(m.label, m.task, m.qID);
-        verify(m.np).provisionNode(job);
+        verify(m.np).provisionNodeAsync(job);
     }
 
     /**
@@ -0,0 +1,109 @@
+package com.rackspace.jenkins_nodepool;
+
+import hudson.model.labels.LabelAtom;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class NodeRequestBatcherTest {
+
+    private ScheduledExecutorService scheduler;
+    private final List<List<NodePoolJob>> batches = new CopyOnWriteArrayList<>();
+    private final List<List<CompletableFuture<Void>>> results = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void setUp() {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    private NodeRequestBatcher batcher(long windowMs, int maxBatchSize) {
+        return new NodeRequestBatcher(jobs -> {
+            final List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < jobs.size(); i++) {
+                futures.add(new CompletableFuture<>());
+            }
+            batches.add(jobs);
+            results.add(futures);
+            return futures;
+        }, scheduler, Runnable::run, windowMs, maxBatchSize);
+    }
+
+    private static NodePoolJob job(String label) {
+        final NodePoolJob job = mock(NodePoolJob.class);
+        when(job.getLabel()).thenReturn(new LabelAtom(label));
+        return job;
+    }
+
+    private void awaitBatches(int n) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (batches.size() < n && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(n, batches.size());
+    }
+
+    @Test
+    public void testDisabled() {
+        assertFalse(batcher(0, 20).isEnabled());
+        assertFalse(batcher(100, 1).isEnabled());
+        assertTrue(batcher(100, 20).isEnabled());
+    }
+
+    @Test
+    public void testWindowGathersSameLabel() throws Exception {
+        final NodeRequestBatcher batcher = batcher(200, 20);
+        final CompletableFuture<Void> a = batcher.submit(job("debian"));
+        final CompletableFuture<Void> b = batcher.submit(job("debian"));
+        final CompletableFuture<Void> c = batcher.submit(job("centos"));
+
+        awaitBatches(2);
+        int debian = batches.get(0).size() == 2 ? 0 : 1;
+        assertEquals(2, batches.get(debian).size());
+        assertEquals(1, batches.get(1 - debian).size());
+
+        // each job's future follows its own result
+        results.get(debian).get(0).complete(null);
+        results.get(debian).get(1).completeExceptionally(new NodePoolException("launch failed"));
+        a.get(1, TimeUnit.SECONDS);
+        try {
+            b.get(1, TimeUnit.SECONDS);
+            fail("expected the second job to fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof NodePoolException);
+        }
+        assertFalse(c.isDone());
+    }
+
+    @Test
+    public void testFullBatchIsSentAtOnce() throws Exception {
+        final NodeRequestBatcher batcher = batcher(TimeUnit.MINUTES.toMillis(10), 3);
+        for (int i = 0; i < 7; i++) {
+            batcher.submit(job("debian"));
+        }
+        // two full batches go straight away, the seventh job waits for its window
+        assertEquals(2, batches.size());
+        assertEquals(3, batches.get(0).size());
+        assertEquals(3, batches.get(1).size());
+    }
+}
@@ -0,0 +1,163 @@
+package com.rackspace.jenkins_nodepool;
+
+import com.google.gson.JsonSyntaxException;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static java.lang.String.format;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the shared request state dispatcher.
+ */
+public class NodeRequestStateDispatcherTest {
+
+    private static final int TIMEOUT_SEC = 10;
+
+    Mocks m;
+    NodeRequestStateDispatcher dispatcher;
+
+    @Before
+    public void setUp() throws Exception {
+        m = new Mocks();
+        dispatcher = new NodeRequestStateDispatcher(m.conn, "/" + m.requestRoot);
+        dispatcher.start();
+    }
+
+    @After
+    public void tearDown() {
+        dispatcher.close();
+        m.cleanup();
+    }
+
+    private String requestPath(int i) {
+        return format("/%s/%s-%010d", m.requestRoot, m.priority, i);
+    }
+
+    private void writeState(String path, NodePoolState state) throws Exception {
+        final byte[] data = format("{\"state\": \"%s\", \"node_types\": [\"%s\"], \"nodes\": []}",
+                state.getStateString(), m.npLabel).getBytes(StandardCharsets.UTF_8);
+        if (m.conn.checkExists().forPath(path) == null) {
+            m.conn.create().creatingParentsIfNeeded().forPath(path, data);
+        } else {
+            m.conn.setData().forPath(path, data);
+        }
+    }
+
+    @Test
+    public void testDecodeState() {
+        assertEquals(NodePoolState.IN_USE, NodeRequestStateDispatcher.decodeState(
+                "{\"nodes\": [\"0000000001\"], \"state\": \"in-use\", \"extra\": {\"a\": 1}}"
+                        .getBytes(StandardCharsets.UTF_8)));
+        assertNull(NodeRequestStateDispatcher.decodeState("{}".getBytes(StandardCharsets.UTF_8)));
+        assertNull(NodeRequestStateDispatcher.decodeState(new byte[0]));
+        assertNull(NodeRequestStateDispatcher.decodeState("{\"state\": null}".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void testDecodeStateSkipsEverythingElse() {
+        final StringBuilder declined = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            declined.append(i == 0 ? "" : ",").append("\"launcher-").append(i).append("\"");
+        }
+        final String json = "{\"declined_by\": [" + declined + "], \"nested\": {\"state\": \"failed\"}, "
+                + "\"requestor\": \"j\\\"enkins\", \"state\": \"fulfilled\", \"trailing\": [1, 2, ";
+        // decoding stops at the state field, so the truncated tail is never read
+        assertEquals(NodePoolState.FULFILLED,
+                NodeRequestStateDispatcher.decodeState(json.getBytes(StandardCharsets.UTF_8)));
+
+        try {
+            NodeRequestStateDispatcher.decodeState("[\"state\"]".getBytes(StandardCharsets.UTF_8));
+            fail("Expected JsonSyntaxException");
+        } catch (JsonSyntaxException e) {
+            // pass
+        }
+    }
+
+    @Test
+    public void testManyRequestsOneWatch() throws Exception {
+        final List<CompletableFuture<NodePoolState>> futures = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            writeState(requestPath(i), NodePoolState.REQUESTED);
+            futures.add(dispatcher.await(requestPath(i), NodePoolState.FULFILLED, m.npj, TIMEOUT_SEC, TimeUnit.SECONDS));
+        }
+        assertEquals(20, dispatcher.getWaiterCount());
+
+        for (int i = 0; i < 20; i++) {
+            writeState(requestPath(i), NodePoolState.PENDING);
+            writeState(requestPath(i), i % 2 == 0 ? NodePoolState.FULFILLED : NodePoolState.FAILED);
+        }
+        for (int i = 0; i < 20; i++) {
+            assertEquals(i % 2 == 0 ? NodePoolState.FULFILLED : NodePoolState.FAILED,
+                    futures.get(i).get(TIMEOUT_SEC, TimeUnit.SECONDS));
+        }
+        assertEquals(0, dispatcher.getWaiterCount());
+    }
+
+    @Test
+    public void testAlreadyFulfilled() throws Exception {
+        writeState(requestPath(1), NodePoolState.FULFILLED);
+        final CompletableFuture<NodePoolState> future = dispatcher.await(
+                requestPath(1), NodePoolState.FULFILLED, m.npj, TIMEOUT_SEC, TimeUnit.SECONDS);
+        assertEquals(NodePoolState.FULFILLED, future.get(TIMEOUT_SEC, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testSharedRequestWaitsWhileAnyBuildRuns() throws Exception {
+        final WorkflowRun finishedRun = mock(WorkflowRun.class);
+        final NodePoolJob finished = mock(NodePoolJob.class);
+        when(finished.getRun()).thenReturn(finishedRun);
+
+        writeState(requestPath(1), NodePoolState.REQUESTED);
+        final CompletableFuture<NodePoolState> wanted = dispatcher.await(requestPath(1), NodePoolState.FULFILLED,
+                Arrays.asList(finished, m.npj), TIMEOUT_SEC, TimeUnit.SECONDS);
+        writeState(requestPath(1), NodePoolState.PENDING);
+        writeState(requestPath(1), NodePoolState.FULFILLED);
+        // the first job's build has finished, but the second one still needs a node
+        assertEquals(NodePoolState.FULFILLED, wanted.get(TIMEOUT_SEC, TimeUnit.SECONDS));
+
+        writeState(requestPath(2), NodePoolState.REQUESTED);
+        final CompletableFuture<NodePoolState> unwanted = dispatcher.await(requestPath(2), NodePoolState.FULFILLED,
+                Arrays.asList(finished, finished), TIMEOUT_SEC, TimeUnit.SECONDS);
+        assertNull(unwanted.get(TIMEOUT_SEC, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        writeState(requestPath(1), NodePoolState.REQUESTED);
+        final CompletableFuture<NodePoolState> future = dispatcher.await(
+                requestPath(1), NodePoolState.FULFILLED, m.npj, 1, TimeUnit.SECONDS);
+        try {
+            future.get(TIMEOUT_SEC, TimeUnit.SECONDS);
+            fail("Expected timeout");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        assertEquals(0, dispatcher.getWaiterCount());
+    }
+
+    @Test
+    public void testMissingRequest() throws Exception {
+        final CompletableFuture<NodePoolState> future = dispatcher.await(
+                requestPath(1), NodePoolState.FULFILLED, m.npj, TIMEOUT_SEC, TimeUnit.SECONDS);
+        try {
+            future.get(TIMEOUT_SEC, TimeUnit.SECONDS);
+            fail("Expected failure for a missing request");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof NodePoolException);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.rackspace.jenkins_nodepool;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compares the path parsing used on the lock and queue listener hot paths against the regex and split based
+ * parsing it replaced.
+ * <p>
+ * Not run as part of the unit tests. Run with:
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=com.rackspace.jenkins_nodepool.PathParsingBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PathParsingBenchmark {
+
+    /**
+     * Lock contender names as returned by getChildren on a node lock
+     */
+    private final String[] contenders = {
+            "_c_2b0a1f5e-46a8-4d2b-9c57-0b1d8b0b2c11-__lock__0000000041",
+            "_c_7e3c2d10-98b1-4b1e-8a0e-3fb1c3a0d2aa-__lock__0000000042",
+            "_c_c41d07f2-1e2a-4f55-b0a4-7d8f3e2c9b10-__lock__0000000043",
+    };
+
+    /**
+     * Queue labels, a plain NodePool label and one naming a specific node
+     */
+    private final String[] labels = {"nodepool-debian-stretch", "nodepool-debian-stretch-0000123456"};
+
+    private final String requestPath = "/nodepool/requests/100-0000004711";
+
+    @Benchmark
+    public void lockSequenceRegex(Blackhole bh) {
+        for (String contender : contenders) {
+            final Matcher m = Pattern.compile("_([0-9]+)$").matcher(contender);
+            bh.consume(m.find() ? Integer.valueOf(m.group(1)) : null);
+        }
+    }
+
+    @Benchmark
+    public void lockSequenceScan(Blackhole bh) {
+        for (String contender : contenders) {
+            bh.consume(NodePoolPaths.sequenceNumber(contender));
+        }
+    }
+
+    @Benchmark
+    public void queueLabelRegex(Blackhole bh) {
+        for (String label : labels) {
+            bh.consume(Pattern.matches(".*-[0-9]{10}$", label));
+        }
+    }
+
+    @Benchmark
+    public void queueLabelScan(Blackhole bh) {
+        for (String label : labels) {
+            bh.consume(NodePoolPaths.endsWithNodeId(label));
+        }
+    }
+
+    @Benchmark
+    public String idSplit() {
+        final List<String> parts = Arrays.asList(requestPath.split("-"));
+        final String id = parts.get(parts.size() - 1);
+        Long.parseLong(id);
+        return id;
+    }
+
+    @Benchmark
+    public String idScan() {
+        final String id = NodePoolPaths.lastDashSegment(requestPath);
+        return NodePoolPaths.isDigits(id) ? id : null;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(PathParsingBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
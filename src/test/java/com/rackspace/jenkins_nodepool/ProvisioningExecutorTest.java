@@ -0,0 +1,121 @@
+package com.rackspace.jenkins_nodepool;
+
+import hudson.model.labels.LabelAtom;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ProvisioningExecutorTest {
+
+    private final List<String> started = new ArrayList<>();
+    private final List<CompletableFuture<Void>> running = new ArrayList<>();
+
+    private static NodePool nodePool(String priority, Integer max) {
+        final NodePool np = mock(NodePool.class);
+        when(np.getPriority()).thenReturn(priority);
+        when(np.getMaxConcurrentProvisions()).thenReturn(max);
+        return np;
+    }
+
+    private static NodePoolJob job(String label, long queueId) {
+        final NodePoolJob job = mock(NodePoolJob.class);
+        when(job.getLabel()).thenReturn(new LabelAtom(label));
+        when(job.getTaskId()).thenReturn(queueId);
+        return job;
+    }
+
+    private CompletableFuture<Void> submit(ProvisioningExecutor executor, NodePool np, String label, long queueId) {
+        final String name = label + queueId;
+        return executor.submit(np, job(label, queueId), () -> {
+            final CompletableFuture<Void> f = new CompletableFuture<>();
+            started.add(name);
+            running.add(f);
+            return f;
+        });
+    }
+
+    @Test
+    public void testPerNodePoolLimit() {
+        final ProvisioningExecutor executor = new ProvisioningExecutor(Runnable::run, 100);
+        final NodePool np = nodePool("100", 2);
+
+        final CompletableFuture<Void> first = submit(executor, np, "debian", 1);
+        submit(executor, np, "debian", 2);
+        submit(executor, np, "debian", 3);
+        assertEquals(2, executor.getRunning());
+        assertEquals(1, executor.getWaiting());
+
+        // a finished provisioning frees its permit for the next job
+        running.get(0).complete(null);
+        assertTrue(first.isDone());
+        assertEquals(3, started.size());
+        assertEquals(2, executor.getRunning());
+        assertEquals(0, executor.getWaiting());
+    }
+
+    @Test
+    public void testFailureReleasesPermit() {
+        final ProvisioningExecutor executor = new ProvisioningExecutor(Runnable::run, 100);
+        final NodePool np = nodePool("100", 1);
+
+        final CompletableFuture<Void> first = submit(executor, np, "debian", 1);
+        submit(executor, np, "debian", 2);
+        running.get(0).completeExceptionally(new NodePoolException("failed"));
+        assertTrue(first.isCompletedExceptionally());
+        assertEquals(2, started.size());
+    }
+
+    @Test
+    public void testLabelsTakeTurns() {
+        final ProvisioningExecutor executor = new ProvisioningExecutor(Runnable::run, 100);
+        final NodePool np = nodePool("100", 1);
+
+        submit(executor, np, "busy", 1);
+        submit(executor, np, "busy", 2);
+        submit(executor, np, "busy", 3);
+        submit(executor, np, "quiet", 4);
+        for (int i = 0; i < 3; i++) {
+            running.get(i).complete(null);
+        }
+        assertEquals("busy1", started.get(0));
+        assertEquals("quiet4", started.get(2));
+    }
+
+    @Test
+    public void testQueueOrderWithinLabel() {
+        final ProvisioningExecutor executor = new ProvisioningExecutor(Runnable::run, 100);
+        final NodePool np = nodePool("100", 1);
+
+        submit(executor, np, "debian", 1);
+        submit(executor, np, "debian", 9);
+        submit(executor, np, "debian", 5);
+        running.get(0).complete(null);
+        running.get(1).complete(null);
+        assertEquals("debian5", started.get(1));
+        assertEquals("debian9", started.get(2));
+    }
+
+    @Test
+    public void testPriorityAcrossNodePools() {
+        final ProvisioningExecutor executor = new ProvisioningExecutor(Runnable::run, 1);
+        final NodePool low = nodePool("300", 10);
+        final NodePool high = nodePool("100", 10);
+
+        submit(executor, low, "a", 1);
+        submit(executor, low, "a", 2);
+        final CompletableFuture<Void> urgent = submit(executor, high, "b", 3);
+        assertFalse(urgent.isDone());
+        assertEquals(1, executor.getRunning());
+
+        running.get(0).complete(null);
+        assertEquals("b3", started.get(1));
+    }
+}
@@ -0,0 +1,91 @@
+package com.rackspace.jenkins_nodepool;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares decoding the state of a node request ZNode by streaming the bytes against the previous approach of
+ * parsing the whole payload into a map.
+ * <p>
+ * Not run as part of the unit tests. Run with:
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=com.rackspace.jenkins_nodepool.RequestStateDecodeBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestStateDecodeBenchmark {
+
+    /**
+     * Number of launchers listed in declined_by, busy clusters decline a request many times
+     */
+    @Param({"0", "10", "500"})
+    public int declinedBy;
+
+    private final Gson gson = new Gson();
+    private byte[] payload;
+
+    @Setup
+    public void setUp() {
+        final StringBuilder declined = new StringBuilder();
+        for (int i = 0; i < declinedBy; i++) {
+            if (i > 0) {
+                declined.append(", ");
+            }
+            declined.append(String.format("\"nl%02d-%d-PoolWorker.provider-%d-main\"", i % 10, 1000 + i, i));
+        }
+        // The same layout nodepool writes - state comes after the lists
+        payload = ("{\"declined_by\": [" + declined + "], "
+                + "\"node_types\": [\"debian-stretch\", \"centos-7\"], "
+                + "\"nodes\": [\"0000123456\", \"0000123457\"], "
+                + "\"reuse\": false, "
+                + "\"requestor\": \"jenkins-master.example.com\", "
+                + "\"state\": \"fulfilled\", "
+                + "\"state_time\": 1541436400.123456, "
+                + "\"build_id\": \"my-folder/my-job#1234\", "
+                + "\"jenkins_label\": \"nodepool-debian-stretch\"}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public NodePoolState mapDecode() {
+        final String jsonString = new String(payload, Charset.forName("UTF-8"));
+        final Map<String, Object> data = gson.fromJson(jsonString, new TypeToken<Map<String, Object>>() {
+        }.getType());
+        return NodePoolState.fromString((String) data.get("state"));
+    }
+
+    @Benchmark
+    public NodePoolState streamingDecode() {
+        return NodeRequestStateDispatcher.decodeState(payload);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(RequestStateDecodeBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,24 @@
+package com.rackspace.jenkins_nodepool;
+
+import org.junit.Test;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class VirtualThreadsTest {
+
+    @Test
+    public void testPlatformThreadsByDefault() {
+        // virtual threads are opt-in, the property is not set for the tests
+        assertFalse(VirtualThreads.isActive());
+        final ThreadFactory platform = Executors.defaultThreadFactory();
+        assertSame(platform, VirtualThreads.orElse(platform));
+        assertNull(VirtualThreads.newThread("copier", () -> {
+        }));
+        assertNull(VirtualThreads.perTaskExecutor("worker"));
+    }
+}
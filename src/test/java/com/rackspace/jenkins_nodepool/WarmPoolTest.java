@@ -0,0 +1,107 @@
+package com.rackspace.jenkins_nodepool;
+
+import hudson.model.Computer;
+import hudson.model.Label;
+import hudson.model.labels.LabelAtom;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class WarmPoolTest {
+
+    private final Label label = new LabelAtom("nodepool-warm");
+
+    private NodePoolSlave agent(boolean online) {
+        final NodePoolSlave slave = mock(NodePoolSlave.class);
+        final Computer computer = mock(Computer.class);
+        when(computer.isOnline()).thenReturn(online);
+        when(slave.toComputer()).thenReturn(computer);
+        when(slave.bind(any())).thenReturn(true);
+        final NodePoolJob warm = NodePoolJob.warm(label);
+        when(slave.getJob()).thenReturn(warm);
+        when(slave.getNodeName()).thenReturn("warm-" + System.identityHashCode(slave));
+        return slave;
+    }
+
+    private NodePoolJob arrival() {
+        final NodePoolJob job = mock(NodePoolJob.class);
+        when(job.getLabel()).thenReturn(label);
+        return job;
+    }
+
+    @Test
+    public void testDisabled() {
+        final List<NodePoolJob> launched = new CopyOnWriteArrayList<>();
+        final WarmPool pool = new WarmPool("test", job -> {
+            launched.add(job);
+            return new CompletableFuture<>();
+        }, () -> true, 0, TimeUnit.MINUTES.toMillis(1));
+
+        assertNull(pool.take(arrival()));
+        pool.refill();
+        assertTrue(launched.isEmpty());
+    }
+
+    @Test
+    public void testSizesFromDemandAndBinds() {
+        final List<CompletableFuture<NodePoolSlave>> launches = new CopyOnWriteArrayList<>();
+        // no latency measured for this cluster, so a launch is assumed to take 2 minutes
+        final WarmPool pool = new WarmPool("warm-pool-test", job -> {
+            assertTrue(job.isWarm());
+            final CompletableFuture<NodePoolSlave> f = new CompletableFuture<>();
+            launches.add(f);
+            return f;
+        }, () -> true, 3, TimeUnit.MINUTES.toMillis(1));
+
+        // nothing ready, the arrival is provisioned as usual but counts as demand
+        assertNull(pool.take(arrival()));
+        pool.refill();
+        // one arrival a minute, two minutes to launch
+        assertEquals(2, pool.targetSize(pool.pool(label)));
+        assertEquals(2, pool.getLaunchingCount(label));
+        assertEquals(2, launches.size());
+
+        final NodePoolSlave first = agent(true);
+        final NodePoolSlave offline = agent(false);
+        launches.get(0).complete(first);
+        launches.get(1).complete(offline);
+        assertEquals(2, pool.getReadyCount(label));
+        assertTrue(pool.isWanted(first));
+
+        final NodePoolJob job = arrival();
+        assertSame(first, pool.take(job));
+        verify(first).bind(job);
+        assertFalse(pool.isWanted(first));
+
+        // the only other agent is offline, so it is dropped rather than bound
+        assertNull(pool.take(arrival()));
+        verify(offline, never()).bind(any());
+    }
+
+    @Test
+    public void testStopsWhenInactive() {
+        final List<NodePoolJob> launched = new CopyOnWriteArrayList<>();
+        final WarmPool pool = new WarmPool("test", job -> {
+            launched.add(job);
+            return new CompletableFuture<>();
+        }, () -> false, 3, TimeUnit.MINUTES.toMillis(1));
+
+        pool.pool(label);
+        pool.refill();
+        assertTrue(launched.isEmpty());
+    }
+}
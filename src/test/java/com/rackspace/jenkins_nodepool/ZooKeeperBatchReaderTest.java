@@ -0,0 +1,100 @@
+package com.rackspace.jenkins_nodepool;
+
+import com.rackspace.jenkins_nodepool.models.NodeModel;
+import org.apache.curator.framework.api.transaction.CuratorOp;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import static java.lang.String.format;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the pipelined child reader used by the Janitor.
+ */
+public class ZooKeeperBatchReaderTest {
+
+    private static final Logger LOG = Logger.getLogger(ZooKeeperBatchReaderTest.class.getName());
+
+    private static final int NODE_COUNT = 5000;
+
+    Mocks m;
+    String root;
+
+    @Before
+    public void setUp() throws Exception {
+        m = new Mocks();
+        root = "/batch" + m.nodeRoot;
+        m.conn.create().creatingParentsIfNeeded().forPath(root);
+    }
+
+    @After
+    public void tearDown() {
+        m.cleanup();
+    }
+
+    private void createNodes(int count) throws Exception {
+        // created in transactions so that setup doesn't dominate the test
+        List<CuratorOp> ops = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            final byte[] data = format("{\"state\": \"ready\", \"type\": [\"%s\"], \"region\": \"r%d\"}", m.npLabel, i)
+                    .getBytes(StandardCharsets.UTF_8);
+            ops.add(m.conn.transactionOp().create().forPath(format("%s/%010d", root, i), data));
+            if (ops.size() == 500) {
+                m.conn.transaction().forOperations(ops);
+                ops = new ArrayList<>();
+            }
+        }
+        if (!ops.isEmpty()) {
+            m.conn.transaction().forOperations(ops);
+        }
+    }
+
+    @Test
+    public void testReadManyChildren() throws Exception {
+        createNodes(NODE_COUNT);
+        final ZooKeeperBatchReader<NodeModel> reader = new ZooKeeperBatchReader<>(m.conn, null, NodeModel.class);
+        // warm up: class loading, JIT and the first round trips of the session shouldn't count against the bound
+        assertEquals(NODE_COUNT, reader.readChildren(root).size());
+
+        final long start = System.currentTimeMillis();
+        final List<ZooKeeperBatchReader.Entry<NodeModel>> entries = reader.readChildren(root);
+        final long elapsed = System.currentTimeMillis() - start;
+        LOG.info(format("Read %d znodes in %d ms", entries.size(), elapsed));
+
+        assertEquals(NODE_COUNT, entries.size());
+        for (ZooKeeperBatchReader.Entry<NodeModel> entry : entries) {
+            assertTrue(entry.hasData());
+            assertEquals(NodePoolState.READY, entry.getModel().getState());
+            assertEquals("r" + Integer.parseInt(entry.getName()), entry.getModel().getRegion());
+        }
+        // a warm read is well under a second locally, the bound leaves some room for slow CI machines
+        assertTrue(format("Reading %d znodes took %d ms", NODE_COUNT, elapsed), elapsed < 1500);
+    }
+
+    @Test
+    public void testEmptyAndMissingChildren() throws Exception {
+        m.conn.create().forPath(root + "/empty");
+        m.conn.create().forPath(root + "/full", "{\"state\": \"used\"}".getBytes(StandardCharsets.UTF_8));
+        final List<String> children = new ArrayList<>();
+        children.add("empty");
+        children.add("gone");
+        children.add("full");
+
+        final List<ZooKeeperBatchReader.Entry<NodeModel>> entries =
+                new ZooKeeperBatchReader<>(m.conn, null, NodeModel.class).read(root, children);
+
+        assertEquals(2, entries.size());
+        assertEquals("empty", entries.get(0).getName());
+        assertFalse(entries.get(0).hasData());
+        assertNull(entries.get(0).getModel());
+        assertEquals("full", entries.get(1).getName());
+        assertEquals(NodePoolState.USED, entries.get(1).getModel().getState());
+        assertNotNull(entries.get(1).getStat());
+    }
+}
@@ -0,0 +1,108 @@
+package com.rackspace.jenkins_nodepool;
+
+import com.rackspace.jenkins_nodepool.models.NodeModel;
+import org.apache.curator.framework.recipes.cache.TreeCacheEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static java.lang.String.format;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the shared ZooKeeper read cache.
+ */
+public class ZooKeeperCacheTest {
+
+    Mocks m;
+    ZooKeeperCache cache;
+    String path;
+
+    @Before
+    public void setUp() throws Exception {
+        m = new Mocks();
+        path = format("/%s/%s", m.nodeRoot, m.npID);
+        final NodeModel model = new NodeModel();
+        model.setState(NodePoolState.READY);
+        m.writeNodeData(path, model);
+        cache = new ZooKeeperCache(m.conn, "/" + m.nodeRoot, "/" + m.requestRoot);
+    }
+
+    @After
+    public void tearDown() {
+        cache.close();
+        m.cleanup();
+    }
+
+    private void waitUntilFresh() throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (!cache.isFresh() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertTrue("cache did not initialize", cache.isFresh());
+    }
+
+    @Test
+    public void testCovers() {
+        assertTrue(cache.covers("/nodes"));
+        assertTrue(cache.covers("/nodes/0000000001"));
+        assertTrue(cache.covers("/requests/100-0000000001"));
+        assertFalse(cache.covers("/nodes/0000000001/lock"));
+        assertFalse(cache.covers("/nodesx/0000000001"));
+        assertFalse(cache.covers("/other/0000000001"));
+    }
+
+    @Test
+    public void testMissUntilInitialized() throws Exception {
+        assertNull(cache.getData(path, ZooKeeperCache.ANY_ZXID));
+        cache.start();
+        waitUntilFresh();
+        assertNotNull(cache.getData(path, ZooKeeperCache.ANY_ZXID));
+        cache.close();
+        assertNull(cache.getData(path, ZooKeeperCache.ANY_ZXID));
+    }
+
+    @Test
+    public void testReadYourWrites() throws Exception {
+        cache.start();
+        waitUntilFresh();
+
+        final ZooKeeperObject<NodeModel> zkObject = new ZooKeeperObject<>(path, m.npID, m.conn, NodeModel.class, cache);
+        assertEquals(NodePoolState.READY, zkObject.load().getState());
+
+        // a write must be visible to the next load even if the cache has not caught up yet
+        final NodeModel model = zkObject.loadLive();
+        model.setState(NodePoolState.IN_USE);
+        zkObject.save(model);
+        assertEquals(NodePoolState.IN_USE, zkObject.load().getState());
+
+        // a deleted object must not be served from the cache
+        zkObject.delete();
+        try {
+            zkObject.load();
+            fail("Expected load of deleted node to fail");
+        } catch (ZookeeperException e) {
+            // pass
+        }
+    }
+
+    @Test
+    public void testLiveReadsUntilResyncedAfterReconnect() throws Exception {
+        cache.start();
+        waitUntilFresh();
+
+        cache.childEvent(m.conn, new TreeCacheEvent(TreeCacheEvent.Type.CONNECTION_SUSPENDED, null));
+        assertNull(cache.getData(path, ZooKeeperCache.ANY_ZXID));
+
+        // usable again once the resync barrier has come back, not as soon as the connection returns
+        cache.childEvent(m.conn, new TreeCacheEvent(TreeCacheEvent.Type.CONNECTION_RECONNECTED, null));
+        waitUntilFresh();
+        assertNotNull(cache.getData(path, ZooKeeperCache.ANY_ZXID));
+
+        // a resync that completes after a later disconnection must not mark the cache usable
+        cache.childEvent(m.conn, new TreeCacheEvent(TreeCacheEvent.Type.CONNECTION_RECONNECTED, null));
+        cache.childEvent(m.conn, new TreeCacheEvent(TreeCacheEvent.Type.CONNECTION_LOST, null));
+        Thread.sleep(500);
+        assertFalse(cache.isFresh());
+    }
+}
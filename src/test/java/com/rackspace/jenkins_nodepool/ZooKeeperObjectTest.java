@@ -0,0 +1,107 @@
+package com.rackspace.jenkins_nodepool;
+
+import com.rackspace.jenkins_nodepool.models.NodeModel;
+import org.apache.zookeeper.KeeperException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.lang.String.format;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the ZooKeeper object wrapper.
+ */
+public class ZooKeeperObjectTest {
+
+    Mocks m;
+    String path;
+    ZooKeeperObject<NodeModel> zkObject;
+
+    @Before
+    public void setUp() {
+        m = new Mocks();
+        path = format("/%s/%s", m.nodeRoot, m.npID);
+        zkObject = new ZooKeeperObject<>(path, m.npID, m.conn, NodeModel.class);
+    }
+
+    @After
+    public void tearDown() {
+        m.cleanup();
+    }
+
+    @Test
+    public void testLoadVersionedMissing() throws Exception {
+        final ZooKeeperObject.Versioned<NodeModel> versioned = zkObject.loadVersioned(true);
+        assertNotNull(versioned.getModel());
+        assertNull(versioned.getStat());
+        assertEquals(-1, versioned.getVersion());
+
+        try {
+            zkObject.loadVersioned(false);
+            fail("Expected ZookeeperException for a missing znode");
+        } catch (ZookeeperException e) {
+            // pass
+        }
+    }
+
+    @Test
+    public void testSaveWithStaleVersionFails() throws Exception {
+        final NodeModel model = new NodeModel();
+        model.setState(NodePoolState.READY);
+        zkObject.save(model);
+
+        final ZooKeeperObject.Versioned<NodeModel> versioned = zkObject.loadVersioned(false);
+        assertEquals(NodePoolState.READY, versioned.getModel().getState());
+
+        // another writer gets in first
+        final NodeModel other = new NodeModel();
+        other.setState(NodePoolState.DELETING);
+        m.writeNodeData(path, other);
+
+        versioned.getModel().setState(NodePoolState.IN_USE);
+        try {
+            zkObject.save(versioned.getModel(), versioned.getVersion());
+            fail("Expected BadVersionException");
+        } catch (KeeperException.BadVersionException e) {
+            // pass
+        }
+        assertEquals(NodePoolState.DELETING, m.getNodeData(path).getState());
+    }
+
+    @Test
+    public void testUpdateRetriesOnConcurrentWrite() throws Exception {
+        final NodeModel model = new NodeModel();
+        model.setState(NodePoolState.READY);
+        zkObject.save(model);
+
+        final AtomicInteger calls = new AtomicInteger();
+        zkObject.update(current -> {
+            if (calls.incrementAndGet() == 1) {
+                // simulate a concurrent writer between our read and our write
+                try {
+                    final NodeModel other = m.getNodeData(path);
+                    other.setHold_job("other-writer");
+                    m.writeNodeData(path, other);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            current.setState(NodePoolState.IN_USE);
+        });
+
+        assertEquals(2, calls.get());
+        final NodeModel saved = m.getNodeData(path);
+        assertEquals(NodePoolState.IN_USE, saved.getState());
+        // the concurrent change was not lost
+        assertEquals("other-writer", saved.getHold_job());
+    }
+
+    @Test
+    public void testDeleteAndAsJSONOnMissingNode() throws Exception {
+        zkObject.delete();
+        assertEquals("{}", zkObject.asJSON());
+    }
+}